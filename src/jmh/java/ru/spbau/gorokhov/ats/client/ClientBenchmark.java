@@ -0,0 +1,109 @@
+package ru.spbau.gorokhov.ats.client;
+
+import org.openjdk.jmh.annotations.*;
+import ru.spbau.gorokhov.ats.metrics.ClientMetrics;
+import ru.spbau.gorokhov.ats.model.AddressKeys;
+import ru.spbau.gorokhov.ats.utils.SyncInfoCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connected client: {@code process} is the estimator update alone, {@code receive} is the whole path of a sync
+ * packet sent to it over loopback, from the socket through the receive queue until the estimator has applied it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ClientBenchmark {
+    private static final int SEED_PORT = 18510;
+    private static final long RECEIVE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @Param({"1", "10", "100", "1000"})
+    private int neighbourCount;
+
+    private ClientRuntime runtime;
+    private Client client;
+    private ClientMetrics metrics;
+    private long[] neighbours;
+
+    private DatagramChannel channel;
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(SyncInfoCodec.PACKET_SIZE);
+
+    private int next = 0;
+    private long time = 1500000000000L;
+
+    @Setup
+    public void setUp() throws IOException {
+        // a runtime of its own, so its metrics count the packets of this client only
+        runtime = new ClientRuntime();
+        metrics = runtime.getMetrics();
+
+        // gossip membership needs no coordinator, the client is its own seed
+        client = new Client(null, 0, new ClientConfig()
+                .setMembership(ClientConfig.Membership.GOSSIP)
+                .setSeeds(Collections.singletonList(String.format("127.0.0.1:%d", SEED_PORT)))
+                .setPort(SEED_PORT)
+                .setRegisterMBean(false)
+                .setPrintDebugInfo(false), runtime);
+        client.connect();
+
+        neighbours = new long[neighbourCount];
+        for (int i = 0; i < neighbourCount; i++) {
+            neighbours[i] = AddressKeys.of(String.format("10.0.%d.%d", i / 256, i % 256), 40000 + i);
+        }
+
+        channel = DatagramChannel.open();
+        channel.connect(new InetSocketAddress("127.0.0.1", SEED_PORT));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+        client.disconnect();
+        runtime.close();
+    }
+
+    @Benchmark
+    public void process() {
+        time += 1000;
+        next = next + 1 == neighbourCount ? 0 : next + 1;
+
+        client.process(neighbours[next], time, 1.00001, 15.5, time + 7);
+    }
+
+    /**
+     * Neighbours differ by the port in the packet, the key is made of the source ip and that port.
+     */
+    @Benchmark
+    public long receive() throws IOException {
+        time += 1000;
+        next = next + 1 == neighbourCount ? 0 : next + 1;
+
+        long applied = metrics.getProcessCount();
+
+        packet.clear();
+        SyncInfoCodec.encode(40000 + next, time, 1.00001, 15.5, packet);
+        packet.flip();
+        channel.write(packet);
+
+        long deadline = System.nanoTime() + RECEIVE_TIMEOUT_NANOS;
+        while (metrics.getProcessCount() == applied && System.nanoTime() - deadline < 0) {
+            // spin: parking would measure the wake-up rather than the path
+        }
+
+        return metrics.getProcessCount();
+    }
+
+    @Benchmark
+    public long getTime() {
+        return client.getTime();
+    }
+}
@@ -0,0 +1,97 @@
+package ru.spbau.gorokhov.ats.client;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.spbau.gorokhov.ats.model.AddressKeys;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readers of synchronized time racing with a thread which keeps updating the estimate.
+ * The main method runs the benchmark with 1 to 64 reader threads and prints the total throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class GetTimeContentionBenchmark {
+    private static final int BATCH_SIZE = 64;
+
+    private Client client;
+
+    private volatile boolean updating;
+    private Thread updater;
+
+    @State(Scope.Thread)
+    public static class Readings {
+        private final long[] localTimes = new long[BATCH_SIZE];
+        private final long[] result = new long[BATCH_SIZE];
+    }
+
+    @Setup
+    public void setUp() {
+        client = new Client("localhost");
+
+        updating = true;
+        updater = new Thread(() -> {
+            long key = AddressKeys.of("10.0.0.1", 40000);
+            long time = 1500000000000L;
+
+            while (updating) {
+                time += 1000;
+                client.process(key, time, 1.00001, 15.5, time + 7);
+            }
+        });
+        updater.setDaemon(true);
+        updater.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        updating = false;
+        updater.join();
+    }
+
+    @Benchmark
+    public long getTime() {
+        return client.getTime();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public long[] getTimes(Readings readings) {
+        long localTime = client.getLocalTime();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            readings.localTimes[i] = localTime + i;
+        }
+
+        client.getTimes(readings.localTimes, readings.result);
+
+        return readings.result;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        StringBuilder report = new StringBuilder(String.format("%-10s %-10s %s%n", "threads", "benchmark", "ops/us"));
+
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .include(GetTimeContentionBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+
+            for (RunResult result : new Runner(options).run()) {
+                String benchmark = result.getParams().getBenchmark();
+                report.append(String.format("%-10d %-10s %.1f%n", threads,
+                        benchmark.substring(benchmark.lastIndexOf('.') + 1), result.getPrimaryResult().getScore()));
+            }
+        }
+
+        System.out.print(report);
+    }
+}
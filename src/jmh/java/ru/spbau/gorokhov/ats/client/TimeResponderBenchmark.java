@@ -0,0 +1,101 @@
+package ru.spbau.gorokhov.ats.client;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.spbau.gorokhov.ats.utils.TimeQueryCodec;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips of time queries to the time service of one client over loopback, each benchmark thread
+ * with a socket of its own. Run with more threads to see the total rate the responder sustains.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class TimeResponderBenchmark {
+    private static final int SEED_PORT = 18500;
+
+    @Param({"1", "2", "4"})
+    private int responderThreads;
+
+    private ClientRuntime runtime;
+    private Client client;
+
+    @State(Scope.Thread)
+    public static class Querier {
+        private final byte[] data = new byte[TimeQueryCodec.RESPONSE_SIZE];
+        private final ByteBuffer buffer = ByteBuffer.wrap(data);
+        private final DatagramPacket packet = new DatagramPacket(data, data.length);
+
+        private DatagramSocket socket;
+
+        @Setup
+        public void setUp(TimeResponderBenchmark benchmark) throws IOException {
+            socket = new DatagramSocket();
+            socket.connect(new InetSocketAddress("127.0.0.1", benchmark.client.getTimeServicePort()));
+            socket.setSoTimeout(1000);
+        }
+
+        @TearDown
+        public void tearDown() {
+            socket.close();
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        runtime = new ClientRuntime();
+
+        // gossip membership needs no coordinator, the client is its own seed
+        client = new Client(null, 0, new ClientConfig()
+                .setMembership(ClientConfig.Membership.GOSSIP)
+                .setSeeds(Collections.singletonList(String.format("127.0.0.1:%d", SEED_PORT)))
+                .setPort(SEED_PORT)
+                .setTimeServicePort(0)
+                .setTimeServiceThreads(responderThreads)
+                .setRegisterMBean(false)
+                .setPrintDebugInfo(false), runtime);
+        client.connect();
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.disconnect();
+        runtime.close();
+    }
+
+    @Benchmark
+    public int query(Querier querier) throws IOException {
+        querier.buffer.clear();
+        TimeQueryCodec.encodeQuery(System.nanoTime(), querier.buffer);
+        querier.packet.setData(querier.data, 0, TimeQueryCodec.QUERY_SIZE);
+        querier.socket.send(querier.packet);
+
+        querier.packet.setData(querier.data, 0, querier.data.length);
+        querier.socket.receive(querier.packet);
+
+        return querier.packet.getLength();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(TimeResponderBenchmark.class.getSimpleName())
+                .threads(args.length > 0 ? Integer.parseInt(args[0]) : 8)
+                .build();
+
+        new Runner(options).run();
+    }
+}
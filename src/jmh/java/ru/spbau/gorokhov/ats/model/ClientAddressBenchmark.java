@@ -0,0 +1,63 @@
+package ru.spbau.gorokhov.ats.model;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientAddressBenchmark {
+    @Param({"10", "1000"})
+    private int size;
+
+    private final Map<ClientAddress, Double> map = new TreeMap<>();
+    private ClientAddress[] keys;
+
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        keys = new ClientAddress[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = new ClientAddress(String.format("192.168.%d.%d", i / 256, i % 256), 40000 + i);
+            map.put(keys[i], 1D);
+        }
+    }
+
+    private ClientAddress nextKey() {
+        next = next + 1 == size ? 0 : next + 1;
+        return keys[next];
+    }
+
+    // a key as the receive loop builds it, equal but not identical to the stored one
+    private ClientAddress freshKey() {
+        ClientAddress key = nextKey();
+        return new ClientAddress(new String(key.getIp()), key.getPort());
+    }
+
+    @Benchmark
+    public Double treeMapGet() {
+        return map.get(freshKey());
+    }
+
+    @Benchmark
+    public Double treeMapPut() {
+        return map.put(freshKey(), 2D);
+    }
+
+    @Benchmark
+    public int compareTo() {
+        return freshKey().compareTo(keys[0]);
+    }
+
+    @Benchmark
+    public boolean equalsTo() {
+        return freshKey().equals(keys[0]);
+    }
+}
@@ -0,0 +1,60 @@
+package ru.spbau.gorokhov.ats.server;
+
+import org.openjdk.jmh.annotations.*;
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+import ru.spbau.gorokhov.ats.model.NeighboursDelta;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ServerBenchmark {
+    @Param({"1000", "10000", "100000"})
+    private int clientCount;
+
+    private Server server;
+    private ClientAddress[] clients;
+    // neighbour set version each client holds, so a delta op is the steady state poll of an up to date client
+    private long[] versions;
+
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        server = new Server();
+
+        clients = new ClientAddress[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            clients[i] = new ClientAddress(String.format("10.%d.%d.%d", i >> 16, (i >> 8) & 255, i & 255), 40000);
+            server.register(clients[i]);
+        }
+
+        versions = new long[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            versions[i] = server.getNeighboursDelta(clients[i], 0).getVersion();
+        }
+    }
+
+    private ClientAddress nextClient() {
+        next = next + 1 == clientCount ? 0 : next + 1;
+        return clients[next];
+    }
+
+    @Benchmark
+    public List<ClientAddress> getNeighbours() {
+        return server.getNeighbours(nextClient());
+    }
+
+    @Benchmark
+    public NeighboursDelta getNeighboursDelta() {
+        NeighboursDelta delta = server.getNeighboursDelta(nextClient(), versions[next]);
+        versions[next] = delta.getVersion();
+
+        return delta;
+    }
+}
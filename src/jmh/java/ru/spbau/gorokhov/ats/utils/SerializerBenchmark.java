@@ -0,0 +1,37 @@
+package ru.spbau.gorokhov.ats.utils;
+
+import org.openjdk.jmh.annotations.*;
+import ru.spbau.gorokhov.ats.model.SyncInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+    private final SyncInfo syncInfo = new SyncInfo(45678, 1500000000000L, 1.0000123, -12345.678);
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(SyncInfoCodec.PACKET_SIZE);
+    private final SyncInfoCodec codec = new SyncInfoCodec();
+
+    @Benchmark
+    public SyncInfo serializerRoundTrip() throws IOException, ClassNotFoundException {
+        return Serializer.deserialize(Serializer.serialize(syncInfo), SyncInfo.class);
+    }
+
+    @Benchmark
+    public long codecRoundTrip() {
+        buffer.clear();
+        SyncInfoCodec.encode(syncInfo.getPort(), syncInfo.getTime(), syncInfo.getSkew(), syncInfo.getOffset(), buffer);
+        buffer.flip();
+
+        codec.decode(buffer);
+
+        return codec.getTime();
+    }
+}
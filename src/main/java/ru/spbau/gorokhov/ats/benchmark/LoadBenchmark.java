@@ -0,0 +1,231 @@
+package ru.spbau.gorokhov.ats.benchmark;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.gorokhov.ats.client.Client;
+import ru.spbau.gorokhov.ats.client.ClientConfig;
+import ru.spbau.gorokhov.ats.client.ClientRuntime;
+import ru.spbau.gorokhov.ats.client.estimator.EstimatorConfig;
+import ru.spbau.gorokhov.ats.metrics.ClientMetrics;
+import ru.spbau.gorokhov.ats.metrics.LatencyHistogram;
+import ru.spbau.gorokhov.ats.metrics.ServerMetrics;
+import ru.spbau.gorokhov.ats.server.Server;
+import ru.spbau.gorokhov.ats.server.ServerConfig;
+import ru.spbau.gorokhov.ats.server.stats.ClusterStats;
+import ru.spbau.gorokhov.ats.utils.Sleepyhead;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs a coordinator and clients on loopback in one JVM for a fixed time and writes the results as JSON:
+ * time to the target error, gossip and coordinator rates, {@code process} latency, GC and heap use,
+ * and a timeline of samples.
+ */
+public class LoadBenchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadBenchmark.class);
+
+    private final LoadBenchmarkConfig config;
+
+    private final List<LoadSample> samples = new ArrayList<>();
+
+    public LoadBenchmark(LoadBenchmarkConfig config) {
+        this.config = config;
+    }
+
+    public String run() throws IOException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTime();
+
+        Server server = new Server(config.getServerPort(), new ServerConfig().setStatsPort(-1));
+        server.start();
+
+        ClientRuntime runtime = new ClientRuntime(config.getRuntimeThreads());
+        ClientConfig clientConfig = new ClientConfig()
+                .setGossipFanout(config.getGossipFanout())
+                .setEstimator(config.getEstimator())
+                .setPrintDebugInfo(false);
+
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < config.getClients(); i++) {
+            Client client = new Client("localhost", config.getServerPort(), clientConfig, runtime);
+            client.connect();
+            clients.add(client);
+        }
+
+        ClientMetrics clientMetrics = runtime.getMetrics();
+        ServerMetrics serverMetrics = server.getMetrics();
+
+        long start = System.currentTimeMillis();
+        long timeToTarget = -1;
+        long peakHeap = 0;
+        long lastPackets = 0;
+        long lastRequests = 0;
+        long lastSample = start;
+
+        for (long now = start; now - start < config.getDurationMs(); now = System.currentTimeMillis()) {
+            Sleepyhead.sleep(config.getSampleIntervalMs());
+            now = System.currentTimeMillis();
+
+            ClusterStats stats = server.getStats();
+            long packets = clientMetrics.getPacketsSent();
+            long requests = serverMetrics.getRequests();
+            long heap = memory.getHeapMemoryUsage().getUsed();
+            double elapsed = Math.max(1, now - lastSample) / 1000D;
+
+            double maxError = stats.getClients() == 0 ? Double.NaN : stats.getMaxPairwiseError();
+
+            samples.add(new LoadSample(now - start, stats.getClients(), maxError,
+                    (packets - lastPackets) / elapsed, (requests - lastRequests) / elapsed, heap));
+
+            if (timeToTarget < 0 && stats.getClients() == config.getClients() && maxError <= config.getTargetErrorMs()) {
+                timeToTarget = now - start;
+            }
+
+            peakHeap = Math.max(peakHeap, heap);
+            lastPackets = packets;
+            lastRequests = requests;
+            lastSample = now;
+        }
+
+        long duration = System.currentTimeMillis() - start;
+        double seconds = duration / 1000D;
+
+        for (Client client : clients) {
+            client.disconnect();
+        }
+        runtime.close();
+        server.stop();
+
+        LatencyHistogram process = clientMetrics.getProcessLatency();
+        LoadSample last = samples.isEmpty() ? null : samples.get(samples.size() - 1);
+
+        StringBuilder json = new StringBuilder("{\n");
+        field(json, "label", '"' + config.getLabel().replace("\\", "\\\\").replace("\"", "\\\"") + '"');
+        field(json, "java_version", '"' + System.getProperty("java.version") + '"');
+        field(json, "staging", '"' + config.getEstimator().getStaging().name().toLowerCase() + '"');
+        field(json, "clients", config.getClients());
+        field(json, "duration_s", number(seconds));
+        field(json, "target_error_ms", number(config.getTargetErrorMs()));
+        field(json, "time_to_target_s", timeToTarget < 0 ? "null" : number(timeToTarget / 1000D));
+        field(json, "final_max_error_ms", last == null ? "null" : number(last.getMaxErrorMs()));
+        field(json, "gossip_packets_per_s", number(clientMetrics.getPacketsSent() / seconds));
+        field(json, "received_packets_per_s", number(clientMetrics.getPacketsReceived() / seconds));
+        field(json, "coordinator_requests_per_s", number(serverMetrics.getRequests() / seconds));
+        field(json, "process_count", process.getCount());
+        field(json, "process_p50_ns", process.getPercentile(0.5));
+        field(json, "process_p99_ns", process.getPercentile(0.99));
+        field(json, "process_max_ns", process.getMax());
+        field(json, "receive_queue_drops", clientMetrics.getReceiveQueueDrops());
+        field(json, "estimator_batch_mean_size", number(clientMetrics.getEstimatorBatchMeanSize()));
+        field(json, "handler_p50_ns", serverMetrics.getHandlerP50Nanos());
+        field(json, "handler_p99_ns", serverMetrics.getHandlerP99Nanos());
+        field(json, "gc_count", gcCount() - gcCountBefore);
+        field(json, "gc_time_ms", gcTime() - gcTimeBefore);
+        field(json, "peak_heap_used", peakHeap);
+
+        json.append("  \"samples\": [\n");
+        for (int i = 0; i < samples.size(); i++) {
+            json.append("    ").append(samples.get(i).toJson()).append(i + 1 < samples.size() ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+
+        return json.toString();
+    }
+
+    public List<LoadSample> getSamples() {
+        return samples;
+    }
+
+    private static void field(StringBuilder json, String name, Object value) {
+        json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+
+    static String number(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * Arguments are {@code key=value} pairs: clients, duration (s), target (max error, ms), port, threads (runtime),
+     * fanout, staging (fixed, concurrent or convergence), label, out (result file).
+     */
+    public static void main(String[] args) throws IOException {
+        LoadBenchmarkConfig config = new LoadBenchmarkConfig();
+
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+
+            switch (parts[0]) {
+                case "clients":
+                    config.setClients(Integer.parseInt(parts[1]));
+                    break;
+
+                case "duration":
+                    config.setDurationMs(Long.parseLong(parts[1]) * 1000);
+                    break;
+
+                case "target":
+                    config.setTargetErrorMs(Double.parseDouble(parts[1]));
+                    break;
+
+                case "port":
+                    config.setServerPort(Integer.parseInt(parts[1]));
+                    break;
+
+                case "threads":
+                    config.setRuntimeThreads(Integer.parseInt(parts[1]));
+                    break;
+
+                case "fanout":
+                    config.setGossipFanout(Integer.parseInt(parts[1]));
+                    break;
+
+                case "staging":
+                    config.getEstimator().setStaging(EstimatorConfig.Staging.valueOf(parts[1].toUpperCase()));
+                    break;
+
+                case "label":
+                    config.setLabel(parts[1]);
+                    break;
+
+                case "out":
+                    config.setOutput(parts[1]);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown argument: %s", arg));
+            }
+        }
+
+        String result = new LoadBenchmark(config).run();
+
+        try (PrintWriter out = new PrintWriter(config.getOutput(), "UTF-8")) {
+            out.print(result);
+        }
+
+        LOG.info("Results of {} clients for {} s were written to {}.", config.getClients(), config.getDurationMs() / 1000, config.getOutput());
+    }
+}
@@ -0,0 +1,34 @@
+package ru.spbau.gorokhov.ats.benchmark;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import ru.spbau.gorokhov.ats.client.estimator.AtsEstimator;
+import ru.spbau.gorokhov.ats.client.estimator.EstimatorConfig;
+
+@Getter
+@Setter
+@Accessors(chain = true)
+public class LoadBenchmarkConfig {
+    // free-form name of the build or setup, copied to the results
+    private String label = "";
+
+    private int clients = 100;
+
+    private long durationMs = 3 * AtsEstimator.STAGE_TIME + 50000;
+
+    // max pairwise error of reported virtual clocks which counts as converged
+    private double targetErrorMs = 10;
+
+    private int serverPort = 18080;
+
+    private int runtimeThreads = 2;
+
+    private int gossipFanout = 1;
+
+    private EstimatorConfig estimator = new EstimatorConfig();
+
+    private long sampleIntervalMs = 1000;
+
+    private String output = "load-benchmark.json";
+}
@@ -0,0 +1,24 @@
+package ru.spbau.gorokhov.ats.benchmark;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import java.util.Locale;
+
+@Getter
+@ToString
+@RequiredArgsConstructor
+public class LoadSample {
+    private final long timeMs;
+    private final int reportedClients;
+    private final double maxErrorMs;
+    private final double packetsPerSecond;
+    private final double requestsPerSecond;
+    private final long heapUsed;
+
+    public String toJson() {
+        return String.format(Locale.ROOT, "{\"time_s\":%.3f,\"reported_clients\":%d,\"max_error_ms\":%s,\"packets_per_s\":%.1f,\"requests_per_s\":%.1f,\"heap_used\":%d}",
+                timeMs / 1000D, reportedClients, LoadBenchmark.number(maxErrorMs), packetsPerSecond, requestsPerSecond, heapUsed);
+    }
+}
@@ -2,296 +2,902 @@ package ru.spbau.gorokhov.ats.client;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.spbau.gorokhov.ats.client.estimator.AtsEstimator;
+import ru.spbau.gorokhov.ats.client.estimator.ClockEstimate;
+import ru.spbau.gorokhov.ats.client.estimator.EstimatorSnapshot;
+import ru.spbau.gorokhov.ats.client.estimator.NeighbourTable;
+import ru.spbau.gorokhov.ats.client.estimator.SnapshotFile;
 import ru.spbau.gorokhov.ats.client.utils.Clock;
+import ru.spbau.gorokhov.ats.metrics.ClientMetrics;
+import ru.spbau.gorokhov.ats.metrics.Jmx;
+import ru.spbau.gorokhov.ats.model.AddressKeys;
 import ru.spbau.gorokhov.ats.model.ClientAddress;
+import ru.spbau.gorokhov.ats.model.NeighboursDelta;
 import ru.spbau.gorokhov.ats.model.Request;
-import ru.spbau.gorokhov.ats.model.SyncInfo;
 import ru.spbau.gorokhov.ats.model.TimeInfo;
-import ru.spbau.gorokhov.ats.utils.Serializer;
-import ru.spbau.gorokhov.ats.utils.Sleepyhead;
+import ru.spbau.gorokhov.ats.utils.LogRateLimiter;
+import ru.spbau.gorokhov.ats.utils.NeighboursCodec;
+import ru.spbau.gorokhov.ats.utils.ShardRing;
+import ru.spbau.gorokhov.ats.utils.SyncInfoCodec;
 
+import javax.management.ObjectName;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class Client {
+public class Client implements ClientMXBean {
     private static int id = 1;
     private Logger LOG = LoggerFactory.getLogger(String.format("Client-%d", id++));
 
     private static final Random RANDOM = new Random(System.currentTimeMillis());
 
+    // per-event messages of all clients together
+    private static final LogRateLimiter RECEIVE_LOG = new LogRateLimiter(10);
+    private static final LogRateLimiter SEND_LOG = new LogRateLimiter(10);
+    private static final LogRateLimiter TIME_LOG = new LogRateLimiter(10);
+    private static final LogRateLimiter QUEUE_LOG = new LogRateLimiter(10);
+
     private static final int DEFAULT_SERVER_PORT = 8080;
+    // 127.0.0.1
+    private static final long LOOPBACK_IP = 0x7F000001L;
 
     private final String serverHostname;
     private final int serverPort;
     private int localPort;
 
-    private final Clock clock;
+    private final ClientConfig config;
+
+    // null if the client runs on a runtime of its own
+    private final ClientRuntime sharedRuntime;
+    private ClientRuntime runtime;
+
+    private DatagramEndpoint endpoint;
+    // the packet being received, on the I/O thread
+    private final Datagram datagram = new Datagram();
+    private SyncInfoCodec codec;
+    private GossipSender sender;
+    // answers pings on the I/O thread
+    private GossipSender ackSender;
+
+    // null if neighbours come from the coordinator
+    private GossipMembership membership;
+
+    // null unless sync packets go to a multicast group; keys of our own packets coming back from it
+    private MulticastEndpoint multicastEndpoint;
+    private GossipSender multicastSender;
+    private MulticastFilter multicastFilter;
+    private long[] selfKeys;
+
+    private ClientMetrics metrics;
+
+    private TimeResponder timeResponder;
+
+    private SnapshotFile snapshotFile;
+    private ObjectName mbeanName;
+
+    private final List<ScheduledFuture<?>> scheduledTasks = new ArrayList<>();
+
+    // replaced by the one from a snapshot, a simulated clock is random per process
+    private volatile Clock clock;
 
     private static final long UPDATE_DELAY = 4000;
-    private static final long SEND_DATA_DELAY = 1000;
+    private static final long FIRST_SEND_DELAY = 3000;
+    private static final long MEMBERSHIP_TICK = 500;
+
+    // per readiness event, so one flooded client does not starve the others on the runtime
+    private static final int MAX_PACKETS_PER_READ = 64;
 
     private static final long PACKET_DELIVERY_DELAY = 1;
 
-    private static final long STAGE_TIME = 50000;
     private long startTime;
 
-    private static final double RELATIVE_SKEW_TUNE = 0.6;
-    private static final double SKEW_TUNE = 0.6;
-    private static final double OFFSET_ERROR_TUNE = 0.6;
+    private final AtsEstimator estimator;
 
-    private final Map<ClientAddress, Double> relativeSkew = new TreeMap<>();
-    private final Map<ClientAddress, Long> lastClientTime = new TreeMap<>();
-    private final Map<ClientAddress, Long> lastLocalTime = new TreeMap<>();
+    // decoded packets on their way from the I/O thread to the estimator stage
+    private final ReceiveQueue receiveQueue;
+    // an estimator stage task is submitted or running, so there is one writer at a time
+    private final AtomicBoolean applying = new AtomicBoolean();
+    private final Runnable applyTask = this::applyUpdates;
 
-    private double skew = 1;
-    private double offsetError = 0;
+    private final List<Neighbour> neighbours = new ArrayList<>();
+    private long neighboursVersion = 0;
 
-    private final List<ClientAddress> neighbours = new ArrayList<>();
+    private volatile CoordinatorSession session;
 
-    private boolean running = false;
+    private volatile boolean running = false;
 
-    public Client(String serverHostname, int serverPort) {
+    /**
+     * @param runtime shared by many clients, it is not closed on {@link #disconnect()}
+     */
+    public Client(String serverHostname, int serverPort, ClientConfig config, ClientRuntime runtime) {
         this.serverHostname = serverHostname;
         this.serverPort = serverPort;
+        this.config = config;
+        this.sharedRuntime = runtime;
 
         clock = new Clock();
+        estimator = new AtsEstimator(PACKET_DELIVERY_DELAY, config.getEstimator());
+        receiveQueue = new ReceiveQueue(config.getReceiveQueueCapacity());
+    }
+
+    public Client(String serverHostname, int serverPort, ClientConfig config) {
+        this(serverHostname, serverPort, config, null);
+    }
+
+    public Client(String serverHostname, int serverPort) {
+        this(serverHostname, serverPort, new ClientConfig());
     }
 
     public Client(String serverHostname) {
         this(serverHostname, DEFAULT_SERVER_PORT);
     }
 
+    public Client(String serverHostname, ClientRuntime runtime) {
+        this(serverHostname, DEFAULT_SERVER_PORT, new ClientConfig(), runtime);
+    }
+
     public void connect() throws IOException {
+        runtime = sharedRuntime == null ? new ClientRuntime() : sharedRuntime;
+
+        endpoint = config.getTransport().open(runtime, config.getPort(), config.getReceiveBufferSize());
+        localPort = endpoint.getLocalPort();
+
+        metrics = runtime.getMetrics();
+
+        if (config.getMembership() == ClientConfig.Membership.GOSSIP) {
+            membership = new GossipMembership(config, localIps(), localPort, resolveSeeds());
+            ackSender = new GossipSender(config, membership, endpoint);
+        }
+
+        if (config.getMembership() == ClientConfig.Membership.MULTICAST) {
+            InetSocketAddress group = ShardRing.parseEndpoint(config.getMulticastGroup());
+
+            multicastEndpoint = MulticastEndpoint.open(runtime, new InetSocketAddress(group.getHostString(), group.getPort()),
+                    config.getMulticastInterface(), config.getMulticastTtl(), config.getReceiveBufferSize());
+            multicastSender = new GossipSender(config, null, multicastEndpoint);
+            multicastFilter = new MulticastFilter(config.getMulticastMinInterval());
+            selfKeys = localIps().stream().mapToLong(ip -> ip << 16 | localPort).toArray();
+        }
+
+        codec = new SyncInfoCodec(config.isLegacyWireCompatible());
+        sender = new GossipSender(config, membership, endpoint);
+
+        startTime = Clock.getRealTime();
+
+        if (config.getSnapshotPath() != null) {
+            resumeFromSnapshot();
+        }
+
         running = true;
 
-        new Thread(() -> {
-            try (DatagramSocket socket = new DatagramSocket()) {
-                localPort = socket.getLocalPort();
+        LOG.info("Client started. Listening to {} port.", localPort);
+
+        if (config.getTimeServicePort() >= 0) {
+            timeResponder = new TimeResponder(this, metrics, config.getTimeServiceHost(), config.getTimeServicePort());
+            timeResponder.start(config.getTimeServiceThreads());
+        }
+
+        if (config.isRegisterMBean()) {
+            mbeanName = Jmx.register(String.format("type=Client,port=%d", localPort), this);
+        }
 
-                LOG.info("Client started. Listening to {} port.", localPort);
+        endpoint.start(() -> receive(endpoint));
+        if (multicastEndpoint != null) {
+            multicastEndpoint.start(() -> receive(multicastEndpoint));
+        }
 
-                try {
-                    register();
+        String coordinatorHostname = serverHostname;
+        int coordinatorPort = serverPort;
 
-                    LOG.info("Connected to the server.");
-                } catch (IOException e) {
-                    LOG.error("Failed to connect to the server.", e);
-                }
+        boolean coordinatorNeighbours = config.getMembership() == ClientConfig.Membership.COORDINATOR;
+
+        if (!coordinatorNeighbours && serverHostname == null) {
+            coordinatorHostname = null;
+        } else if (!config.getShards().isEmpty()) {
+            ShardRing ring = new ShardRing(config.getShards());
+            InetSocketAddress shard = ring.getShards().get(ring.shardFor(shardKey(localIps(), localPort)));
+
+            coordinatorHostname = shard.getHostString();
+            coordinatorPort = shard.getPort();
+
+            LOG.info("Routed to coordinator shard {}:{}.", coordinatorHostname, coordinatorPort);
+        }
+
+        if (coordinatorHostname != null) {
+            // with gossip or multicast membership the coordinator only observes: it gets registrations and time reports
+            Runnable onConnected = () -> {
+                register();
 
                 sendTime();
 
-                updateNeighbours();
+                if (coordinatorNeighbours) {
+                    updateNeighbours();
+                }
+            };
 
-                byte[] data = new byte[128];
+            session = new CoordinatorSession(coordinatorHostname, coordinatorPort, localPort, config.getRequestTimeout(),
+                    config.getTransport(), runtime, onConnected);
+            session.open();
+        }
 
-                startTime = Clock.getRealTime();
+        ScheduledExecutorService scheduler = runtime.getScheduler();
 
-                while (running) {
-                    DatagramPacket packet = new DatagramPacket(data, data.length);
+        scheduler.schedule(this::gossip, FIRST_SEND_DELAY, TimeUnit.MILLISECONDS);
 
-                    try {
-                        socket.receive(packet);
-                    } catch (IOException e) {
-                        LOG.error("Failed to receive packet.", e);
-                        continue;
-                    }
+        if (snapshotFile != null) {
+            scheduledTasks.add(scheduler.scheduleWithFixedDelay(this::saveSnapshot,
+                    config.getSnapshotInterval(), config.getSnapshotInterval(), TimeUnit.MILLISECONDS));
+        }
 
-                    long localTime = clock.getTime() - PACKET_DELIVERY_DELAY;
+        if (membership != null) {
+            scheduledTasks.add(scheduler.scheduleWithFixedDelay(() -> membership.tick(System.currentTimeMillis()),
+                    MEMBERSHIP_TICK, MEMBERSHIP_TICK, TimeUnit.MILLISECONDS));
+        } else if (coordinatorNeighbours) {
+            scheduledTasks.add(scheduler.scheduleWithFixedDelay(this::updateNeighbours, UPDATE_DELAY, 2 * UPDATE_DELAY, TimeUnit.MILLISECONDS));
+        }
 
-                    SyncInfo syncInfo;
+        if (config.getPeerSilenceTimeout() > 0) {
+            scheduledTasks.add(scheduler.scheduleWithFixedDelay(this::pruneSilentPeers, 2 * UPDATE_DELAY, 2 * UPDATE_DELAY, TimeUnit.MILLISECONDS));
+        }
+        scheduledTasks.add(scheduler.scheduleWithFixedDelay(() -> {
+            sendTime();
 
-                    try {
-                        syncInfo = Serializer.deserialize(packet.getData(), SyncInfo.class);
-                    } catch (IOException | ClassNotFoundException e) {
-                        LOG.error("Failed to deserialize sync info.", e);
-                        continue;
-                    }
+            if (config.isPrintDebugInfo()) {
+                showDebugInfo();
+            }
+        }, 2 * UPDATE_DELAY, 2 * UPDATE_DELAY, TimeUnit.MILLISECONDS));
+    }
 
-                    ClientAddress clientAddress = new ClientAddress(packet.getAddress().getHostAddress(), syncInfo.getPort());
+    /**
+     * Any key stable for this host will do, only clients route by it. The lowest non-loopback address is taken from
+     * the interface list, which unlike the host name needs no DNS lookup.
+     */
+    private static long shardKey(Set<Long> ips, int port) {
+        long ip = ips.stream()
+                .min(Comparator.comparing((Long candidate) -> candidate >>> 24 == 127).thenComparing(Comparator.naturalOrder()))
+                .orElse(LOOPBACK_IP);
+
+        return ip << 16 | port;
+    }
 
-                    LOG.info("Got sync info from {}: {}", clientAddress, syncInfo);
+    private static Set<Long> localIps() throws SocketException {
+        Set<Long> ips = new HashSet<>();
 
-                    process(clientAddress, syncInfo.getTime(), syncInfo.getSkew(), syncInfo.getOffset(), localTime);
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                if (address instanceof Inet4Address) {
+                    ips.add(AddressKeys.of(address, 0) >>> 16);
                 }
-            } catch (SocketException e) {
-                LOG.error("Failed to start client.", e);
             }
-        }).start();
+        }
+
+        return ips;
+    }
 
-        new Thread(() -> {
-            Sleepyhead.sleep(3000);
+    private List<Neighbour> resolveSeeds() {
+        List<Neighbour> seeds = new ArrayList<>();
 
-            while (running) {
-                Sleepyhead.sleep(SEND_DATA_DELAY);
+        for (String seed : config.getSeeds()) {
+            InetSocketAddress endpoint = ShardRing.parseEndpoint(seed);
 
-                sendData();
+            try {
+                String ip = InetAddress.getByName(endpoint.getHostString()).getHostAddress();
+                seeds.add(new Neighbour(new ClientAddress(ip, endpoint.getPort())));
+            } catch (UnknownHostException e) {
+                LOG.warn("Skipped seed {}: {}", seed, e.getMessage());
             }
-        }).start();
+        }
 
-        new Thread(() -> {
-            while (running) {
-                Sleepyhead.sleep(UPDATE_DELAY);
+        return seeds;
+    }
 
-                updateNeighbours();
+    private void resumeFromSnapshot() {
+        try {
+            snapshotFile = new SnapshotFile(Paths.get(config.getSnapshotPath()), config.getSnapshotNeighbours());
+        } catch (IOException e) {
+            LOG.error("Failed to open snapshot file {}.", config.getSnapshotPath(), e);
+            return;
+        }
 
-                Sleepyhead.sleep(UPDATE_DELAY);
+        EstimatorSnapshot snapshot = snapshotFile.read();
 
-                sendTime();
+        if (snapshot == null) {
+            return;
+        }
 
-                showDebugInfo();
-            }
-        }).start();
+        long age = Clock.getRealTime() - snapshot.getWrittenAt();
+
+        if (age < 0 || age > config.getMaxSnapshotAge()) {
+            LOG.info("Snapshot is {} ms old, starting from scratch.", age);
+            return;
+        }
+
+        clock = new Clock(snapshot.getClockSkew(), snapshot.getClockOffset());
+
+        synchronized (this) {
+            estimator.restore(snapshot);
+        }
+
+        // continue from the same stage
+        startTime -= snapshot.getWorkTime();
+
+        LOG.info("Resumed from a {} ms old snapshot: work time={}, estimate={}, {} neighbours.",
+                age, snapshot.getWorkTime(), estimator.getEstimate(), snapshot.getNeighbourCount());
     }
 
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss");
+    private synchronized void saveSnapshot() {
+        snapshotFile.write(estimator, clock.getSkew(), clock.getOffset(), getWorkTime(), Clock.getRealTime());
+    }
 
-    private void showDebugInfo() {
-        System.out.println("\n"+
-                String.format("port=%d", localPort) + "\n" +
-                String.format("Work time=%d", getWorkTime()) + "\n" +
-                String.format("time=%s, timeV=%s", DATE_FORMAT.format(new Date(clock.getTime())), DATE_FORMAT.format(new Date(getTime()))) + "\n" +
-                "alpha=" + clock.getSkew() + " beta=" + clock.getOffset() + " alpha^=" + skew + " o^=" + offsetError + "\n" +
-                relativeSkew + "\n");
+    /**
+     * Both endpoints are read on the runtime's I/O thread, so they share the datagram, the codec and the receive queue.
+     */
+    private void receive(DatagramEndpoint from) {
+        boolean queued = false;
+
+        for (int packets = 0; packets < MAX_PACKETS_PER_READ; packets++) {
+            try {
+                if (!from.receive(datagram)) {
+                    break;
+                }
+            } catch (IOException e) {
+                LOG.error("Failed to receive packet.", e);
+                break;
+            }
+
+            long receiveNanos = System.nanoTime();
+            long localTime = clock.getTime();
+
+            ByteBuffer buffer = datagram.getBuffer();
+            InetSocketAddress source = datagram.getSource();
+
+            metrics.packetReceived();
+
+            // estimator rows are keyed by address, only IPv4 ones pack into a key without collisions
+            if (!(source.getAddress() instanceof Inet4Address)) {
+                metrics.sourceRejected();
+
+                if (RECEIVE_LOG.tryAcquire()) {
+                    LOG.warn("Dropped sync packet from non IPv4 address {} ({} similar suppressed).", source, RECEIVE_LOG.takeSuppressed());
+                }
+                continue;
+            }
+
+            if (!codec.decode(buffer)) {
+                metrics.decodeFailed();
+
+                if (RECEIVE_LOG.tryAcquire()) {
+                    LOG.warn("Dropped malformed sync packet from {} ({} similar suppressed).", source, RECEIVE_LOG.takeSuppressed());
+                }
+                continue;
+            }
+
+            long clientKey = AddressKeys.of(source.getAddress(), codec.getPort());
+
+            if (from == multicastEndpoint && !admitMulticast(clientKey, receiveNanos)) {
+                continue;
+            }
+
+            if (LOG.isInfoEnabled() && RECEIVE_LOG.tryAcquire()) {
+                LOG.info("Got sync info from {}:{}: time={}, skew={}, offset={} ({} similar suppressed)",
+                        source.getAddress(), codec.getPort(), codec.getTime(), codec.getSkew(), codec.getOffset(), RECEIVE_LOG.takeSuppressed());
+            }
+
+            if (receiveQueue.offer(clientKey, codec.getTime(), codec.getSkew(), codec.getOffset(), localTime,
+                    codec.getSendStamp(), codec.getEchoStamp(), codec.getEchoHold(), receiveNanos)) {
+                queued = true;
+            } else {
+                metrics.receiveQueueDropped();
+
+                if (QUEUE_LOG.tryAcquire()) {
+                    LOG.warn("Dropped sync packet from {}, {} packets are waiting for the estimator ({} similar suppressed).",
+                            source, receiveQueue.capacity(), QUEUE_LOG.takeSuppressed());
+                }
+            }
+
+            if (membership != null && codec.getVersion() == SyncInfoCodec.MEMBERSHIP_VERSION) {
+                long now = System.currentTimeMillis();
+
+                membership.onPacket(clientKey, codec.getIncarnation(), codec.getMemberKeys(), codec.getMemberIncarnations(),
+                        codec.getMemberStatuses(), codec.getMemberCount(), now);
+
+                if ((codec.getFlags() & SyncInfoCodec.FLAG_PING) != 0) {
+                    if (membership.acknowledges(AddressKeys.of(source.getAddress(), source.getPort()), clientKey, codec.getIncarnation(), now)) {
+                        acknowledge(source, codec.getSendStamp(), receiveNanos);
+                    } else {
+                        metrics.ackSuppressed();
+                    }
+                }
+            }
+        }
+
+        if (!queued) {
+            return;
+        }
+
+        if (config.isEstimatorThreads()) {
+            // once per readiness event, waking the estimator stage per packet would cost more than applying it
+            scheduleApply();
+        } else {
+            while (applyBatch() > 0) {
+                // the queue only fills on this thread, so it is drained here
+            }
+        }
     }
 
-    private synchronized void process(ClientAddress clientAddress, long clientTime, double clientSkew, double clientOffsetError, long localTime) {
-        if (!relativeSkew.containsKey(clientAddress)) {
-            relativeSkew.put(clientAddress, 1D);
+    /**
+     * @return false for our own packets looped back by the group, duplicates and packets of sources over their rate
+     */
+    private boolean admitMulticast(long clientKey, long receiveNanos) {
+        for (long selfKey : selfKeys) {
+            if (clientKey == selfKey) {
+                return false;
+            }
         }
 
-        long workTime = Clock.getRealTime() - startTime;
+        switch (multicastFilter.accept(clientKey, codec.getSendStamp(), receiveNanos)) {
+            case MulticastFilter.DUPLICATE:
+                metrics.multicastDuplicate();
+                return false;
 
-        double currentRelativeSkew = relativeSkew.get(clientAddress);
+            case MulticastFilter.RATE_LIMITED:
+                metrics.multicastRateLimited();
+                return false;
 
-        if (workTime < STAGE_TIME && lastLocalTime.containsKey(clientAddress)) {
-            long prevClientTime = lastClientTime.get(clientAddress);
-            long prevLocalTime = lastLocalTime.get(clientAddress);
+            default:
+                return true;
+        }
+    }
 
-            double newRelativeSkew = RELATIVE_SKEW_TUNE * currentRelativeSkew + (1 - RELATIVE_SKEW_TUNE) * (clientTime - prevClientTime) / (localTime - prevLocalTime);
-            relativeSkew.put(clientAddress, newRelativeSkew);
-        } else if (workTime > STAGE_TIME && workTime < 2 * STAGE_TIME) {
-            skew = SKEW_TUNE * skew + (1 - SKEW_TUNE) * currentRelativeSkew * clientSkew;
-        } else if (workTime > 2 * STAGE_TIME){
-            offsetError = offsetError + (1 - OFFSET_ERROR_TUNE) * (clientSkew * clientTime + clientOffsetError - skew * localTime - offsetError);
+    /**
+     * Pairs with {@link #applyUpdates}: the queue publishes a packet and the stage clears the flag with volatile writes
+     * before each looks at the other side, so at least one of them sees the packet and applies it.
+     */
+    private void scheduleApply() {
+        if (!applying.get() && applying.compareAndSet(false, true)) {
+            runtime.getEstimatorExecutor().execute(applyTask);
         }
+    }
+
+    /**
+     * Estimator stage on the runtime's estimator threads. A client with more packets waiting after one batch
+     * goes to the back of the executor queue, so a flooded one does not hold an estimator thread up.
+     */
+    private void applyUpdates() {
+        applyBatch();
 
-        lastClientTime.put(clientAddress, clientTime);
-        lastLocalTime.put(clientAddress, localTime);
+        applying.set(false);
+
+        // packets offered after the batch size was read
+        if (!receiveQueue.isEmpty() && running) {
+            scheduleApply();
+        }
     }
 
-    private long getWorkTime() {
-        return Clock.getRealTime() - startTime;
+    /**
+     * Applies one batch of queued packets under a single lock and publishes the estimate once.
+     *
+     * @return number of packets applied
+     */
+    private int applyBatch() {
+        int count = Math.min(receiveQueue.size(), config.getEstimatorBatchSize());
+
+        if (count > 0) {
+            long workTime = getWorkTime();
+
+            synchronized (this) {
+                estimator.startBatch();
+
+                for (int i = 0; i < count; i++) {
+                    int slot = estimator.slotFor(receiveQueue.getKey(i));
+
+                    if (receiveQueue.getSendStamp(i) != 0) {
+                        estimator.recordRoundTrip(slot, receiveQueue.getSendStamp(i), receiveQueue.getEchoStamp(i),
+                                receiveQueue.getEchoHold(i), receiveQueue.getReceiveNanos(i));
+                    }
+
+                    estimator.process(slot, receiveQueue.getTime(i), receiveQueue.getSkew(i), receiveQueue.getOffset(i),
+                            receiveQueue.getLocalTime(i), workTime);
+                }
+
+                estimator.finishBatch();
+            }
+
+            long appliedNanos = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                metrics.processed(appliedNanos - receiveQueue.getReceiveNanos(i));
+            }
+
+            receiveQueue.release(count);
+            metrics.estimatorBatch(count);
+        }
+
+        return count;
     }
 
-    private void register() throws IOException {
-        try (Socket socket = new Socket(serverHostname, serverPort);
-             DataOutputStream serverInput = new DataOutputStream(socket.getOutputStream())) {
+    /**
+     * Answers a ping right away with a sync packet of our own, so the sender hears from us well within its ping timeout.
+     */
+    private void acknowledge(InetSocketAddress source, long pingStamp, long receiveNanos) {
+        long sendStamp = System.nanoTime();
 
-            serverInput.writeInt(localPort);
+        ackSender.prepare(localPort, clock.getTime(), estimator.getEstimate(), sendStamp, SyncInfoCodec.FLAG_ACK);
 
-            serverInput.writeInt(Request.REGISTER);
+        try {
+            if (ackSender.send(source, pingStamp, pingStamp == 0 ? 0 : sendStamp - receiveNanos)) {
+                metrics.packetSent();
+            } else {
+                metrics.sendDropped();
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to acknowledge ping of {}.", source, e);
+        }
+    }
 
-        } catch (IOException rethrown) {
-            throw rethrown;
+    private void gossip() {
+        if (!running) {
+            return;
         }
+
+        sendData();
+
+        runtime.getScheduler().schedule(this::gossip, sender.nextDelay(estimator.getEstimate()), TimeUnit.MILLISECONDS);
     }
 
-    private void updateNeighbours() {
-        try (Socket socket = new Socket(serverHostname, serverPort);
-             DataOutputStream serverInput = new DataOutputStream(socket.getOutputStream());
-             DataInputStream serverOutput = new DataInputStream(socket.getInputStream())) {
+    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss");
+
+    private void showDebugInfo() {
+        System.out.println("\n"+
+                String.format("port=%d", localPort) + "\n" +
+                String.format("Work time=%d", getWorkTime()) + "\n" +
+                String.format("time=%s, timeV=%s", DATE_FORMAT.format(new Date(clock.getTime())), DATE_FORMAT.format(new Date(getTime()))) + "\n" +
+                "alpha=" + clock.getSkew() + " beta=" + clock.getOffset() + " estimate=" + estimator.getEstimate() + "\n" +
+                estimator.neighboursToString() + "\n");
+    }
+
+    synchronized void process(long clientKey, long clientTime, double clientSkew, double clientOffsetError, long localTime) {
+        estimator.process(clientKey, clientTime, clientSkew, clientOffsetError, localTime, getWorkTime());
+    }
 
-            serverInput.writeInt(localPort);
+    private long getWorkTime() {
+        return Clock.getRealTime() - startTime;
+    }
 
-            serverInput.writeInt(Request.UPDATE_NEIGHBOURS);
+    private void register() {
+        session.request(Request.REGISTER, null).whenComplete((response, e) -> {
+            if (e != null) {
+                LOG.error("Failed to connect to the server.", e);
+            } else {
+                LOG.info("Connected to the server.");
+            }
+        });
+    }
 
-            List<ClientAddress> newNeighbours = new ArrayList<>();
+    private void updateNeighbours() {
+        if (session == null) {
+            return;
+        }
 
-            int count = serverOutput.readInt();
+        ByteBuffer payload = ByteBuffer.allocate(8);
+        synchronized (neighbours) {
+            payload.putLong(neighboursVersion);
+        }
+        payload.flip();
 
-            while (count --> 0) {
-                String ip = serverOutput.readUTF();
-                int port = serverOutput.readInt();
-                newNeighbours.add(new ClientAddress(ip, port));
+        session.request(Request.NEIGHBOURS_DELTA, payload).whenComplete((response, e) -> {
+            if (e != null) {
+                LOG.error("Failed to update neighbours.", e);
+                return;
             }
 
+            NeighboursDelta delta = NeighboursCodec.decodeDelta(response);
+
             synchronized (neighbours) {
-                for (ClientAddress neighbour : newNeighbours) {
+                if (delta.isReset()) {
+                    neighbours.clear();
+                }
+
+                neighbours.removeIf(neighbour -> delta.getRemoved().contains(neighbour.getAddress()));
+
+                for (ClientAddress address : delta.getAdded()) {
+                    Neighbour neighbour = new Neighbour(address);
+
                     if (!neighbours.contains(neighbour)) {
                         neighbours.add(neighbour);
                     }
                 }
+
+                neighboursVersion = delta.getVersion();
             }
 
-            // TODO: handle removed neighbours
-            LOG.info("Got new neighbours: {}", newNeighbours);
-        } catch (IOException e) {
-            LOG.error("Failed to update neighbours.", e);
+            if (delta.isReset() || !delta.getAdded().isEmpty() || !delta.getRemoved().isEmpty()) {
+                LOG.info("Got neighbours update: {}", delta);
+            }
+        });
+    }
+
+    /**
+     * Drops the estimator rows of peers which have gone silent, so stale readings stop counting. Gossip targets are
+     * left alone: a silent peer may only have lost its packets to us, and the coordinator or the membership protocol
+     * removes the dead ones.
+     */
+    private void pruneSilentPeers() {
+        long localTime = clock.getTime();
+        int silent = 0;
+
+        synchronized (this) {
+            NeighbourTable table = estimator.getNeighbours();
+
+            // backwards, so swap-remove only moves slots which are already checked
+            for (int slot = table.size() - 1; slot >= 0; slot--) {
+                if (localTime - table.getLastLocalTime(slot) > config.getPeerSilenceTimeout()) {
+                    table.remove(slot);
+                    silent++;
+                }
+            }
+        }
+
+        if (silent > 0) {
+            LOG.info("Dropped estimates of {} peers silent for more than {} ms.", silent, config.getPeerSilenceTimeout());
         }
     }
 
     private void sendTime() {
-        try (Socket socket = new Socket(serverHostname, serverPort);
-             DataOutputStream serverInput = new DataOutputStream(socket.getOutputStream())) {
-
-            serverInput.writeInt(localPort);
+        if (session == null) {
+            return;
+        }
 
-            serverInput.writeInt(Request.SEND_TIME);
+        ClockEstimate estimate = estimator.getEstimate();
 
-            TimeInfo timeInfo = new TimeInfo(skew * clock.getSkew(), skew * clock.getOffset() + offsetError);
+        TimeInfo timeInfo = new TimeInfo(estimate.getSkew() * clock.getSkew(), estimate.getSkew() * clock.getOffset() + estimate.getOffsetError());
 
-            serverInput.writeDouble(timeInfo.getSkew());
-            serverInput.writeDouble(timeInfo.getOffset());
+        ByteBuffer payload = ByteBuffer.allocate(16);
+        payload.putDouble(timeInfo.getSkew());
+        payload.putDouble(timeInfo.getOffset());
+        payload.flip();
 
-            LOG.info("Time info was sent: {}", timeInfo);
-        } catch (IOException e) {
-            LOG.error("Failed to send time info.", e);
-        }
+        session.request(Request.SEND_TIME, payload).whenComplete((response, e) -> {
+            if (e != null) {
+                LOG.error("Failed to send time info.", e);
+            } else if (LOG.isInfoEnabled() && TIME_LOG.tryAcquire()) {
+                LOG.info("Time info was sent: {} ({} similar suppressed)", timeInfo, TIME_LOG.takeSuppressed());
+            }
+        });
     }
 
-    private ClientAddress chooseNeighbour() {
+    /**
+     * @return up to {@code count} distinct random neighbours
+     */
+    private List<Neighbour> chooseNeighbours(int count) {
         synchronized (neighbours) {
-            int count = neighbours.size();
+            int size = neighbours.size();
+
+            if (count >= size) {
+                return new ArrayList<>(neighbours);
+            }
+
+            List<Neighbour> chosen = new ArrayList<>(count);
 
-            if (count == 0) {
-                return null;
+            // partial Fisher-Yates over the list itself, its order does not matter
+            for (int i = 0; i < count; i++) {
+                Collections.swap(neighbours, i, i + RANDOM.nextInt(size - i));
+                chosen.add(neighbours.get(i));
             }
 
-            return neighbours.get(RANDOM.nextInt(count));
+            return chosen;
         }
     }
 
     private void sendData() {
-        if (neighbours.size() == 0) {
+        if (multicastEndpoint != null) {
+            sendMulticast();
             return;
         }
 
-        ClientAddress neighbour = chooseNeighbour();
+        List<Neighbour> targets = membership != null
+                ? membership.chooseTargets(config.getGossipFanout(), System.currentTimeMillis())
+                : chooseNeighbours(config.getGossipFanout());
 
-        try (DatagramSocket socket = new DatagramSocket()) {
-            SyncInfo syncInfo;
+        if (targets.isEmpty()) {
+            return;
+        }
 
-            synchronized (this) {
-                syncInfo = new SyncInfo(localPort, clock.getTime(), skew, offsetError);
+        ClockEstimate estimate = estimator.getEstimate();
+        long time = clock.getTime();
+        long sendStamp = System.nanoTime();
+
+        sender.prepare(localPort, time, estimate, sendStamp, SyncInfoCodec.FLAG_PING);
+
+        for (Neighbour neighbour : targets) {
+            long echoStamp = 0;
+            long echoHold = 0;
+
+            if (config.isRoundTripDelay()) {
+                synchronized (this) {
+                    NeighbourTable table = estimator.getNeighbours();
+                    int slot = table.slotOf(neighbour.getKey());
+
+                    if (slot >= 0 && table.getLastRemoteStamp(slot) != 0) {
+                        echoStamp = table.getLastRemoteStamp(slot);
+                        echoHold = sendStamp - table.getLastReceiveNanos(slot);
+                    }
+                }
             }
 
-            byte[] data = Serializer.serialize(syncInfo);
-            DatagramPacket packet = new DatagramPacket(data, data.length, InetAddress.getByName(neighbour.getIp()), neighbour.getPort());
-            socket.send(packet);
+            try {
+                if (sender.send(neighbour, echoStamp, echoHold)) {
+                    metrics.packetSent();
 
-            LOG.info("Sync info was sent to {}: {}", neighbour, syncInfo);
+                    if (LOG.isInfoEnabled() && SEND_LOG.tryAcquire()) {
+                        LOG.info("Sync info was sent to {}: time={}, estimate={} ({} similar suppressed)", neighbour, time, estimate, SEND_LOG.takeSuppressed());
+                    }
+                } else {
+                    metrics.sendDropped();
+
+                    if (SEND_LOG.tryAcquire()) {
+                        LOG.warn("Sync info to {} was dropped, socket buffer is full ({} similar suppressed).", neighbour, SEND_LOG.takeSuppressed());
+                    }
+                }
+            } catch (IOException e) {
+                LOG.error("Failed to send sync info to {}.", neighbour, e);
+            }
+        }
+    }
+
+    /**
+     * One packet for the whole group. It echoes nobody's stamp, the round trip delay is only measured over unicast.
+     */
+    private void sendMulticast() {
+        ClockEstimate estimate = estimator.getEstimate();
+        long time = clock.getTime();
+
+        multicastSender.prepare(localPort, time, estimate, System.nanoTime(), 0);
+
+        try {
+            if (multicastSender.send(multicastEndpoint.getGroup(), 0, 0)) {
+                metrics.packetSent();
+
+                if (LOG.isInfoEnabled() && SEND_LOG.tryAcquire()) {
+                    LOG.info("Sync info was multicast to {}: time={}, estimate={} ({} similar suppressed)",
+                            multicastEndpoint.getGroup(), time, estimate, SEND_LOG.takeSuppressed());
+                }
+            } else {
+                metrics.sendDropped();
+            }
         } catch (IOException e) {
-            LOG.error("Failed to send sync info to {}.", neighbour, e);
+            LOG.error("Failed to multicast sync info to {}.", multicastEndpoint.getGroup(), e);
         }
     }
 
     public void disconnect() {
         running = false;
+
+        for (ScheduledFuture<?> task : scheduledTasks) {
+            task.cancel(false);
+        }
+
+        Jmx.unregister(mbeanName);
+
+        if (timeResponder != null) {
+            timeResponder.stop();
+        }
+
+        if (snapshotFile != null) {
+            saveSnapshot();
+
+            try {
+                snapshotFile.close();
+            } catch (IOException e) {
+                LOG.error("Failed to close snapshot file.", e);
+            }
+        }
+
+        if (session != null) {
+            session.close();
+        }
+
+        if (endpoint != null) {
+            endpoint.close();
+        }
+
+        if (multicastEndpoint != null) {
+            multicastEndpoint.close();
+        }
+
+        if (runtime != null && sharedRuntime == null) {
+            // after the session has been closed on the I/O thread
+            runtime.execute(runtime::close);
+        }
+    }
+
+    @Override
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    @Override
+    public double getSkew() {
+        return estimator.getEstimate().getSkew();
+    }
+
+    @Override
+    public double getOffsetError() {
+        return estimator.getEstimate().getOffsetError();
+    }
+
+    @Override
+    public double getDispersion() {
+        return estimator.getDispersion();
+    }
+
+    @Override
+    public int getNeighbourCount() {
+        if (membership != null) {
+            return membership.size();
+        }
+
+        if (multicastEndpoint != null) {
+            // everyone in the group is a neighbour, those heard from are known
+            return getKnownPeerCount();
+        }
+
+        synchronized (neighbours) {
+            return neighbours.size();
+        }
+    }
+
+    @Override
+    public synchronized int getKnownPeerCount() {
+        return estimator.getNeighbours().size();
     }
 
+    @Override
+    public int getReceiveQueueDepth() {
+        return receiveQueue.size();
+    }
+
+    @Override
     public long getTime() {
-        return (long) (skew * clock.getTime() + offsetError);
+        return estimator.getTime(clock.getTime());
+    }
+
+    @Override
+    public long getLocalTime() {
+        return clock.getTime();
+    }
+
+    /**
+     * @return port of the time service, or -1 if it is disabled
+     */
+    public int getTimeServicePort() throws IOException {
+        return timeResponder == null ? -1 : timeResponder.getPort();
+    }
+
+    Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Same as {@link #getTimes(long[], long[])} for fractional local times, without allocating.
+     *
+     * @return skew of the estimate the times were converted with
+     */
+    double getTimes(double[] localTimes, double[] result) {
+        return estimator.getTimes(localTimes, result);
+    }
+
+    /**
+     * Converts local clock readings taken with {@link #getLocalTime()} to synchronized time,
+     * all of them with the same estimate.
+     */
+    public void getTimes(long[] localTimes, long[] result) {
+        estimator.getEstimate().getTimes(localTimes, result);
     }
 }
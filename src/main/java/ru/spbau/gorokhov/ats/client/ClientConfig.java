@@ -0,0 +1,113 @@
+package ru.spbau.gorokhov.ats.client;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import ru.spbau.gorokhov.ats.client.estimator.EstimatorConfig;
+
+import java.util.Collections;
+import java.util.List;
+
+@Getter
+@Setter
+@Accessors(chain = true)
+public class ClientConfig {
+    public enum Membership {
+        // neighbours are assigned by the coordinator
+        COORDINATOR,
+        // neighbours are discovered by gossip starting from the seeds, the coordinator only observes if given at all
+        GOSSIP,
+        // every sync packet is multicast to the group and all its members apply it, the coordinator only observes if given
+        MULTICAST
+    }
+
+    private Membership membership = Membership.COORDINATOR;
+
+    // host:port of nodes to join the gossip through, they should have a fixed port
+    private List<String> seeds = Collections.emptyList();
+
+    // UDP port to listen to, zero picks a free one
+    private int port = 0;
+
+    // members kept by a node, and members piggybacked on each sync packet
+    private int membershipViewSize = 32;
+    private int membershipDigestSize = 8;
+
+    // a member which does not answer a ping for this long is suspected, a suspect not heard of for the suspect timeout is dead
+    private long pingTimeout = 2000;
+    private long suspectTimeout = 10000;
+    // a ping is answered only if it comes from the member address it claims, at most once per this interval, ms
+    private long ackMinInterval = 200;
+    // dead members are not taken back with the same incarnation for this long
+    private long deadMemberRetention = 60000;
+
+    // ip:port of the multicast group, the port is shared by all members; and the interface to join it on,
+    // null picks the first multicast capable one or else the loopback
+    private String multicastGroup = "239.255.42.99:18400";
+    private String multicastInterface = null;
+    private int multicastTtl = 1;
+    // a member applies at most one packet of each source per interval, ms
+    private long multicastMinInterval = 500;
+
+    // host:port of all coordinator shards, the client picks its own one by consistent hashing of its address;
+    // if empty, the coordinator given to the client serves it
+    private List<String> shards = Collections.emptyList();
+
+    // a coordinator request not answered for this long fails and the session is reconnected, non-positive waits forever
+    private long requestTimeout = 10000;
+
+    // accept java-serialized packets from not yet updated nodes; only SyncInfo and its field types are ever resolved,
+    // but java deserialization of unauthenticated packets stays a needless attack surface, so it is off by default
+    // and meant only for migrating a trusted network
+    private boolean legacyWireCompatible = false;
+
+    // measure delivery delay with timestamps echoed in gossip packets, needs all nodes to understand them
+    private boolean roundTripDelay = false;
+
+    // staging and tuning of the clock update rules
+    private EstimatorConfig estimator = new EstimatorConfig();
+
+    // how gossip packets travel, MemoryTransport keeps them inside the JVM
+    private Transport transport = new SocketTransport();
+
+    // SO_RCVBUF of the gossip socket, absorbs bursts before the receive stage gets to them; zero keeps the system default
+    private int receiveBufferSize = 0;
+
+    // received packets waiting for the estimator, more are dropped; and packets applied under one lock.
+    // The ring is preallocated, 72 bytes a packet, so it is kept small: a client hears from a few neighbours
+    // a second, and bursts wait in the socket buffer
+    private int receiveQueueCapacity = 64;
+    private int estimatorBatchSize = 64;
+    // apply the packets on the runtime's estimator threads; otherwise the I/O thread applies them after each read,
+    // which saves the hand-off where there is no spare core for the estimator stage
+    private boolean estimatorThreads = true;
+
+    // neighbours which get each sync packet
+    private int gossipFanout = 1;
+
+    // gossip period, grows up to the max one while the estimate stays stable
+    private long minSendDelay = 1000;
+    private long maxSendDelay = 4000;
+
+    // peers not heard of for this long are dropped from the estimator, not from gossip targets, non-positive disables it
+    private long peerSilenceTimeout = 5 * 60 * 1000;
+
+    // UDP port answering time queries of applications on the same host, see TimeServiceClient;
+    // negative disables the time service, zero picks a free port
+    private int timeServicePort = -1;
+    private String timeServiceHost = "127.0.0.1";
+    private int timeServiceThreads = 2;
+
+    // print the clock and neighbours state to stdout along with every time report
+    private boolean printDebugInfo = true;
+
+    // register the client's gauges as an MBean, see ClientMXBean
+    private boolean registerMBean = true;
+
+    // file to checkpoint the estimator to and resume from on start, null disables snapshots
+    private String snapshotPath = null;
+    private long snapshotInterval = 5000;
+    // older snapshots are ignored, the clocks have drifted too far since
+    private long maxSnapshotAge = 10 * 60 * 1000;
+    private int snapshotNeighbours = 64;
+}
@@ -0,0 +1,24 @@
+package ru.spbau.gorokhov.ats.client;
+
+public interface ClientMXBean {
+    int getLocalPort();
+
+    double getSkew();
+
+    double getOffsetError();
+
+    // mean distance from the neighbours' virtual time at offset updates, ms; negative before the first one
+    double getDispersion();
+
+    int getNeighbourCount();
+
+    // nodes which sent us sync packets
+    int getKnownPeerCount();
+
+    // received packets waiting for the estimator
+    int getReceiveQueueDepth();
+
+    long getTime();
+
+    long getLocalTime();
+}
@@ -0,0 +1,173 @@
+package ru.spbau.gorokhov.ats.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.gorokhov.ats.metrics.ClientMetrics;
+import ru.spbau.gorokhov.ats.metrics.Jmx;
+
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by any number of clients: a scheduler for their periodic work, one selector thread for all their
+ * sockets and estimator threads applying the packets the selector thread has queued, so a client costs its state only.
+ */
+public class ClientRuntime implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ClientRuntime.class);
+
+    private static final AtomicInteger RUNTIMES = new AtomicInteger();
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Called on the I/O thread when the channel is ready, must not block.
+     */
+    interface IoHandler {
+        void onReady(SelectionKey key);
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService estimatorExecutor;
+
+    private final Selector selector;
+    private final Thread ioThread;
+
+    // used by I/O handlers only
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final ClientMetrics metrics = new ClientMetrics();
+    private final ObjectName metricsName;
+
+    private volatile boolean running = true;
+
+    public ClientRuntime(int schedulerThreads, int estimatorThreads) throws IOException {
+        int id = RUNTIMES.incrementAndGet();
+
+        AtomicInteger schedulerThreadId = new AtomicInteger();
+        scheduler = Executors.newScheduledThreadPool(schedulerThreads,
+                task -> new Thread(task, String.format("client-runtime-%d-scheduler-%d", id, schedulerThreadId.incrementAndGet())));
+
+        AtomicInteger estimatorThreadId = new AtomicInteger();
+        estimatorExecutor = Executors.newFixedThreadPool(estimatorThreads,
+                task -> new Thread(task, String.format("client-runtime-%d-estimator-%d", id, estimatorThreadId.incrementAndGet())));
+
+        metricsName = Jmx.register(String.format("type=ClientRuntime,id=%d", id), metrics);
+
+        selector = Selector.open();
+        ioThread = new Thread(this::run, String.format("client-runtime-%d-io", id));
+        ioThread.start();
+    }
+
+    public ClientRuntime(int schedulerThreads) throws IOException {
+        this(schedulerThreads, 1);
+    }
+
+    public ClientRuntime() throws IOException {
+        this(1);
+    }
+
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    ExecutorService getEstimatorExecutor() {
+        return estimatorExecutor;
+    }
+
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * Runs the task on the I/O thread, right away if called from it.
+     */
+    void execute(Runnable task) {
+        if (Thread.currentThread() == ioThread) {
+            task.run();
+            return;
+        }
+
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Must be called on the I/O thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, IoHandler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                LOG.error("Client runtime crushed.", e);
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                runSafely(task);
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (key.isValid()) {
+                    runSafely(() -> ((IoHandler) key.attachment()).onReady(key));
+                }
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            LOG.error("Client task failed.", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+
+        scheduler.shutdownNow();
+        estimatorExecutor.shutdownNow();
+        selector.wakeup();
+
+        Jmx.unregister(metricsName);
+    }
+}
@@ -0,0 +1,307 @@
+package ru.spbau.gorokhov.ats.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.gorokhov.ats.client.utils.RandomUtils;
+import ru.spbau.gorokhov.ats.model.Request;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived connection to the coordinator which carries all requests of one client.
+ * Requests are pipelined and their responses are matched by request number.
+ * The session reconnects with exponential backoff and calls {@code onConnected} every time it is (re)established.
+ * A request not answered within the request timeout fails, and the session is dropped and reconnected,
+ * since a coordinator which stopped answering one request will not answer the ones behind it either.
+ * The stream comes from the client's {@link Transport}. All stream work runs on the I/O thread of the
+ * {@link ClientRuntime}, as do {@code onConnected} and the completion of responses, so neither may block.
+ */
+public class CoordinatorSession {
+    private static final Logger LOG = LoggerFactory.getLogger(CoordinatorSession.class);
+
+    private static final long MIN_RECONNECT_DELAY = 100;
+    private static final long MAX_RECONNECT_DELAY = 10000;
+
+    private static final int MAX_RESPONSE_SIZE = 16 * 1024 * 1024;
+
+    private final String serverHostname;
+    private final int serverPort;
+    private final int localPort;
+    private final long requestTimeout;
+    private final Transport transport;
+    private final ClientRuntime runtime;
+    private final Runnable onConnected;
+
+    private final Map<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestNo = new AtomicInteger();
+
+    // I/O thread only
+    private StreamEndpoint stream;
+    private boolean established = false;
+    private final Queue<ByteBuffer> output = new ArrayDeque<>();
+    // bytes of a response which arrived partially
+    private ByteBuffer input = ByteBuffer.allocate(64);
+    private long reconnectDelay = MIN_RECONNECT_DELAY;
+
+    private volatile boolean connected = false;
+    private volatile boolean running = false;
+
+    public CoordinatorSession(String serverHostname, int serverPort, int localPort, long requestTimeout,
+                              Transport transport, ClientRuntime runtime, Runnable onConnected) {
+        this.serverHostname = serverHostname;
+        this.serverPort = serverPort;
+        this.localPort = localPort;
+        this.requestTimeout = requestTimeout;
+        this.transport = transport;
+        this.runtime = runtime;
+        this.onConnected = onConnected;
+    }
+
+    public void open() {
+        running = true;
+
+        runtime.execute(this::connect);
+    }
+
+    public void close() {
+        running = false;
+
+        runtime.execute(this::drop);
+    }
+
+    public CompletableFuture<ByteBuffer> request(int requestId, ByteBuffer payload) {
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+
+        if (!connected) {
+            response.completeExceptionally(new IOException("Session is not connected."));
+            return response;
+        }
+
+        int requestNo = nextRequestNo.incrementAndGet();
+        int payloadSize = payload == null ? 0 : payload.remaining();
+
+        ByteBuffer frame = ByteBuffer.allocate(12 + payloadSize);
+        frame.putInt(8 + payloadSize);
+        frame.putInt(requestNo);
+        frame.putInt(requestId);
+        if (payload != null) {
+            frame.put(payload);
+        }
+        frame.flip();
+
+        pending.put(requestNo, response);
+
+        if (requestTimeout > 0) {
+            ScheduledFuture<?> deadline = runtime.getScheduler().schedule(() -> runtime.execute(() -> expire(requestNo)),
+                    requestTimeout, TimeUnit.MILLISECONDS);
+            response.whenComplete((data, error) -> deadline.cancel(false));
+        }
+
+        runtime.execute(() -> {
+            if (stream == null || !established) {
+                pending.remove(requestNo);
+                response.completeExceptionally(new IOException("Session is not connected."));
+                return;
+            }
+
+            output.add(frame);
+            flush();
+        });
+
+        return response;
+    }
+
+    private void expire(int requestNo) {
+        CompletableFuture<ByteBuffer> response = pending.remove(requestNo);
+
+        // answered, or failed with the session it was sent on
+        if (response == null) {
+            return;
+        }
+
+        String message = String.format("Request %d was not answered within %d ms.", requestNo, requestTimeout);
+        response.completeExceptionally(new IOException(message));
+
+        dropAndReconnect(new IOException(message));
+    }
+
+    private void connect() {
+        if (!running) {
+            return;
+        }
+
+        try {
+            StreamEndpoint opened = transport.connect(runtime, serverHostname, serverPort);
+
+            stream = opened;
+            established = false;
+
+            // calls of a stream dropped meanwhile are stale
+            opened.start(() -> {
+                if (stream == opened) {
+                    onReady();
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            dropAndReconnect(e);
+        }
+    }
+
+    private void onReady() {
+        try {
+            if (!established) {
+                if (!stream.finishConnect()) {
+                    return;
+                }
+                onEstablished();
+            }
+
+            // dropped while it was writing
+            if (stream == null) {
+                return;
+            }
+
+            read();
+            flush();
+        } catch (IOException e) {
+            dropAndReconnect(e);
+        }
+    }
+
+    private void onEstablished() {
+        ByteBuffer handshake = ByteBuffer.allocate(8);
+        handshake.putInt(localPort);
+        handshake.putInt(Request.OPEN_SESSION);
+        handshake.flip();
+
+        output.add(handshake);
+
+        established = true;
+        connected = true;
+        reconnectDelay = MIN_RECONNECT_DELAY;
+
+        LOG.info("Session with {}:{} opened.", serverHostname, serverPort);
+
+        flush();
+
+        onConnected.run();
+    }
+
+    private void read() throws IOException {
+        ByteBuffer in = runtime.getReadBuffer();
+        in.clear();
+
+        int read = stream.read(in);
+
+        if (read < 0) {
+            throw new IOException("Connection was closed by the coordinator.");
+        }
+
+        in.flip();
+
+        if (input.remaining() < in.remaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * input.capacity(), input.position() + in.remaining()));
+            input.flip();
+            grown.put(input);
+            input = grown;
+        }
+        input.put(in);
+        input.flip();
+
+        while (input.remaining() >= 4) {
+            int start = input.position();
+            int length = input.getInt(start);
+
+            if (length < 4 || length > MAX_RESPONSE_SIZE) {
+                throw new IOException(String.format("Malformed response of length %d.", length));
+            }
+
+            if (input.remaining() < 4 + length) {
+                break;
+            }
+
+            int requestNo = input.getInt(start + 4);
+
+            byte[] data = new byte[length - 4];
+            input.position(start + 8);
+            input.get(data);
+
+            CompletableFuture<ByteBuffer> response = pending.remove(requestNo);
+
+            if (response != null) {
+                response.complete(ByteBuffer.wrap(data));
+            }
+        }
+
+        input.compact();
+    }
+
+    private void flush() {
+        try {
+            while (!output.isEmpty()) {
+                ByteBuffer head = output.peek();
+                stream.write(head);
+
+                // the stream calls back once it has room
+                if (head.hasRemaining()) {
+                    return;
+                }
+
+                output.poll();
+            }
+        } catch (IOException e) {
+            dropAndReconnect(e);
+        }
+    }
+
+    private void dropAndReconnect(Exception cause) {
+        if (running) {
+            LOG.warn("Session with {}:{} dropped: {}", serverHostname, serverPort, cause.getMessage());
+        }
+
+        drop();
+
+        if (running && runtime.isRunning()) {
+            long delay = reconnectDelay + RandomUtils.nextLong(reconnectDelay / 2);
+            reconnectDelay = Math.min(2 * reconnectDelay, MAX_RECONNECT_DELAY);
+
+            runtime.getScheduler().schedule(() -> runtime.execute(this::connect), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void drop() {
+        connected = false;
+        established = false;
+
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+
+        output.clear();
+        input.clear();
+
+        failPending();
+    }
+
+    private void failPending() {
+        IOException cause = new IOException("Session was closed.");
+
+        Iterator<CompletableFuture<ByteBuffer>> responses = pending.values().iterator();
+        while (responses.hasNext()) {
+            CompletableFuture<ByteBuffer> response = responses.next();
+            responses.remove();
+            response.completeExceptionally(cause);
+        }
+    }
+}
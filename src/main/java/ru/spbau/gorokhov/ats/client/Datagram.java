@@ -0,0 +1,21 @@
+package ru.spbau.gorokhov.ats.client;
+
+import lombok.Getter;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Received packet: the buffer is flipped for reading and belongs to the endpoint, it stays valid only until
+ * the next {@link DatagramEndpoint#receive(Datagram)}. Reused for every packet, so receiving allocates nothing.
+ */
+@Getter
+public class Datagram {
+    private ByteBuffer buffer;
+    private InetSocketAddress source;
+
+    void set(ByteBuffer buffer, InetSocketAddress source) {
+        this.buffer = buffer;
+        this.source = source;
+    }
+}
@@ -0,0 +1,34 @@
+package ru.spbau.gorokhov.ats.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Bound datagram socket of a {@link Transport}. Receiving happens on the runtime's I/O thread only,
+ * sending from any thread.
+ */
+public interface DatagramEndpoint extends Closeable {
+    int getLocalPort();
+
+    /**
+     * @param onReadable called on the runtime's I/O thread while packets are pending
+     */
+    void start(Runnable onReadable);
+
+    /**
+     * @return false if no packet is pending
+     */
+    boolean receive(Datagram datagram) throws IOException;
+
+    /**
+     * Sends the packet from the buffer position to its limit, the buffer can be reused once this returns.
+     *
+     * @return false if the packet was dropped for lack of room
+     */
+    boolean send(ByteBuffer packet, InetSocketAddress target) throws IOException;
+
+    @Override
+    void close();
+}
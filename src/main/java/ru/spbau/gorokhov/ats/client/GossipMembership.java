@@ -0,0 +1,375 @@
+package ru.spbau.gorokhov.ats.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.gorokhov.ats.model.AddressKeys;
+
+import java.util.*;
+
+/**
+ * SWIM-style membership without a coordinator. Every sync packet pings its recipient, which answers with a sync packet
+ * of its own; a member which does not answer in time becomes suspect, and dead if no one hears from it
+ * for the suspect timeout. A member refutes a suspicion by gossiping a higher incarnation.
+ * Status changes are piggybacked on sync packets a logarithmic number of times, the rest of the digest
+ * carries random members so views keep mixing. The view is partial: it keeps at most {@code membershipViewSize} members
+ * and replaces random ones with newly learned members once it is full.
+ * Only IPv4 members are supported, the digest carries packed address keys.
+ */
+class GossipMembership {
+    private static final Logger LOG = LoggerFactory.getLogger(GossipMembership.class);
+
+    static final int ALIVE = 0;
+    static final int SUSPECT = 1;
+    static final int DEAD = 2;
+
+    // status changes are sent this many times the log of the view size
+    private static final int RETRANSMIT_MULTIPLIER = 3;
+
+    // incarnations start from the seconds since this, so a restarted member outranks its own tombstone
+    private static final long INCARNATION_EPOCH = 1577836800000L;
+
+    private static final Random RANDOM = new Random();
+
+    private static class Member {
+        private final Neighbour neighbour;
+        private int incarnation;
+        private int status = ALIVE;
+        private long statusSince;
+        private long lastHeard;
+        // time of the first ping not answered yet, zero if none is pending
+        private long pingSent;
+        // remaining piggybacks of the latest status change
+        private int transmits;
+
+        Member(Neighbour neighbour, int incarnation, long now) {
+            this.neighbour = neighbour;
+            this.incarnation = incarnation;
+            statusSince = now;
+            lastHeard = now;
+        }
+    }
+
+    private final ClientConfig config;
+    private final Set<Long> localIps;
+    private final int localPort;
+    private final List<Neighbour> seeds;
+
+    private final Map<Long, Member> members = new HashMap<>();
+    // the same members, for random picks
+    private final List<Member> view = new ArrayList<>();
+    // dead members are not taken back with the same incarnation until the tombstone expires
+    private final Map<Long, Integer> tombstones = new HashMap<>();
+    private final Map<Long, Long> tombstoneExpiry = new HashMap<>();
+    // members with status changes still to piggyback, dead ones included
+    private final List<Member> updates = new ArrayList<>();
+    // time of the last ACK per address, pruned on every tick
+    private final Map<Long, Long> acknowledged = new HashMap<>();
+
+    private int incarnation;
+
+    GossipMembership(ClientConfig config, Set<Long> localIps, int localPort, List<Neighbour> seeds) {
+        this.config = config;
+        this.localIps = localIps;
+        this.localPort = localPort;
+        this.seeds = seeds;
+
+        incarnation = (int) ((System.currentTimeMillis() - INCARNATION_EPOCH) / 1000);
+
+        join(System.currentTimeMillis());
+    }
+
+    private void join(long now) {
+        for (Neighbour seed : seeds) {
+            if (!isSelf(seed.getKey()) && !members.containsKey(seed.getKey())) {
+                add(new Member(seed, 0, now));
+            }
+        }
+    }
+
+    synchronized int getIncarnation() {
+        return incarnation;
+    }
+
+    synchronized int size() {
+        return view.size();
+    }
+
+    /**
+     * Decides whether a ping is answered. The ACK goes where the ping came from, so it is sent only if that is the
+     * member address the ping claims, the member is not one we hold dead, and the address got no ACK within
+     * {@code ackMinInterval}: forged pings can then aim ACKs only at member addresses, each at a bounded rate.
+     * A sender which is not in the view is answered too, with partial views it would suspect us for nothing.
+     *
+     * @param sourceKey address the ping came from
+     * @param senderKey member address the ping claims
+     */
+    synchronized boolean acknowledges(long sourceKey, long senderKey, int senderIncarnation, long now) {
+        Integer deadIncarnation = tombstones.get(senderKey);
+
+        if (sourceKey != senderKey || deadIncarnation != null && senderIncarnation <= deadIncarnation) {
+            return false;
+        }
+
+        Long last = acknowledged.get(senderKey);
+
+        if (last != null && now - last < config.getAckMinInterval()) {
+            return false;
+        }
+
+        acknowledged.put(senderKey, now);
+
+        return true;
+    }
+
+    /**
+     * Takes a packet of a member: the sender itself is alive with the given incarnation, the digest is merged.
+     */
+    synchronized void onPacket(long senderKey, int senderIncarnation, long[] keys, int[] incarnations, int[] statuses, int count, long now) {
+        expireTombstones(now);
+
+        Member sender = members.get(senderKey);
+
+        if (sender == null) {
+            sender = learn(senderKey, senderIncarnation, ALIVE, now);
+        } else if (senderIncarnation > sender.incarnation || sender.status == SUSPECT) {
+            // direct contact: a newer incarnation is news for everyone, the same one only clears our own suspicion
+            boolean news = senderIncarnation > sender.incarnation;
+            sender.incarnation = Math.max(sender.incarnation, senderIncarnation);
+            setStatus(sender, ALIVE, now, news);
+        }
+
+        if (sender != null) {
+            sender.lastHeard = now;
+            sender.pingSent = 0;
+        }
+
+        for (int i = 0; i < count; i++) {
+            merge(keys[i], incarnations[i], statuses[i], now);
+        }
+    }
+
+    private void merge(long key, int memberIncarnation, int status, long now) {
+        if (status < ALIVE || status > DEAD || !AddressKeys.isIpv4(key)) {
+            return;
+        }
+
+        if (isSelf(key)) {
+            if (status != ALIVE && memberIncarnation >= incarnation) {
+                // refute, our own entry goes with every packet
+                incarnation = memberIncarnation + 1;
+
+                LOG.info("Refuted {} about this node with incarnation {}.", status == DEAD ? "death" : "suspicion", incarnation);
+            }
+            return;
+        }
+
+        Member member = members.get(key);
+
+        if (member == null) {
+            if (status != DEAD) {
+                learn(key, memberIncarnation, status, now);
+            }
+            return;
+        }
+
+        switch (status) {
+            case ALIVE:
+                if (memberIncarnation > member.incarnation) {
+                    member.incarnation = memberIncarnation;
+                    setStatus(member, ALIVE, now, true);
+                }
+                break;
+
+            case SUSPECT:
+                if (memberIncarnation > member.incarnation || memberIncarnation == member.incarnation && member.status == ALIVE) {
+                    member.incarnation = memberIncarnation;
+                    setStatus(member, SUSPECT, now, true);
+                }
+                break;
+
+            case DEAD:
+                if (memberIncarnation >= member.incarnation) {
+                    member.incarnation = memberIncarnation;
+                    bury(member, now);
+                }
+                break;
+        }
+    }
+
+    /**
+     * @return the new member, or null if it did not make it into the view
+     */
+    private Member learn(long key, int memberIncarnation, int status, long now) {
+        Integer deadIncarnation = tombstones.get(key);
+
+        if (!AddressKeys.isIpv4(key) || deadIncarnation != null && memberIncarnation <= deadIncarnation) {
+            return null;
+        }
+
+        if (view.size() >= config.getMembershipViewSize()) {
+            // keep the view mixing, but let members stay long enough to be probed
+            if (RANDOM.nextBoolean()) {
+                return null;
+            }
+            remove(view.get(RANDOM.nextInt(view.size())));
+        }
+
+        Member member = new Member(new Neighbour(AddressKeys.toAddress(key)), memberIncarnation, now);
+        member.status = status;
+        add(member);
+
+        return member;
+    }
+
+    private void add(Member member) {
+        members.put(member.neighbour.getKey(), member);
+        view.add(member);
+    }
+
+    private void remove(Member member) {
+        members.remove(member.neighbour.getKey());
+        view.remove(member);
+    }
+
+    private void setStatus(Member member, int status, long now, boolean disseminate) {
+        if (member.status != status) {
+            member.status = status;
+            member.statusSince = now;
+        }
+
+        if (disseminate) {
+            member.transmits = retransmits();
+            if (!updates.contains(member)) {
+                updates.add(member);
+            }
+        }
+    }
+
+    private void bury(Member member, long now) {
+        setStatus(member, DEAD, now, true);
+        remove(member);
+
+        tombstones.put(member.neighbour.getKey(), member.incarnation);
+        tombstoneExpiry.put(member.neighbour.getKey(), now + config.getDeadMemberRetention());
+
+        LOG.info("Member {} is dead.", member.neighbour);
+    }
+
+    private int retransmits() {
+        return RETRANSMIT_MULTIPLIER * (32 - Integer.numberOfLeadingZeros(view.size() + 1));
+    }
+
+    /**
+     * Suspects members which did not answer a ping in time and buries suspects nobody has heard from since.
+     */
+    synchronized void tick(long now) {
+        expireTombstones(now);
+        acknowledged.values().removeIf(time -> now - time >= config.getAckMinInterval());
+
+        for (int i = view.size() - 1; i >= 0; i--) {
+            Member member = view.get(i);
+
+            if (member.status == ALIVE && member.pingSent > 0 && now - member.pingSent > config.getPingTimeout()) {
+                setStatus(member, SUSPECT, now, true);
+
+                LOG.info("Member {} is suspected, it did not answer for {} ms.", member.neighbour, now - member.pingSent);
+            } else if (member.status == SUSPECT && now - Math.max(member.statusSince, member.lastHeard) > config.getSuspectTimeout()) {
+                bury(member, now);
+            }
+        }
+
+        if (view.isEmpty()) {
+            join(now);
+        }
+    }
+
+    private void expireTombstones(long now) {
+        if (tombstoneExpiry.isEmpty()) {
+            return;
+        }
+
+        Iterator<Map.Entry<Long, Long>> expiries = tombstoneExpiry.entrySet().iterator();
+        while (expiries.hasNext()) {
+            Map.Entry<Long, Long> expiry = expiries.next();
+
+            if (expiry.getValue() <= now) {
+                expiries.remove();
+                tombstones.remove(expiry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Picks up to {@code count} distinct random members to gossip to and marks them pinged.
+     */
+    synchronized List<Neighbour> chooseTargets(int count, long now) {
+        int size = view.size();
+        List<Neighbour> targets = new ArrayList<>(Math.min(count, size));
+
+        // partial Fisher-Yates over the view itself, its order does not matter
+        for (int i = 0; i < Math.min(count, size); i++) {
+            Collections.swap(view, i, i + RANDOM.nextInt(size - i));
+
+            Member member = view.get(i);
+            if (member.pingSent == 0) {
+                member.pingSent = now;
+            }
+            targets.add(member.neighbour);
+        }
+
+        return targets;
+    }
+
+    /**
+     * Fills the digest of an outgoing packet: pending status changes first, random members after them.
+     *
+     * @return number of members written
+     */
+    synchronized int digest(long[] keys, int[] incarnations, int[] statuses) {
+        int capacity = Math.min(keys.length, config.getMembershipDigestSize());
+        int count = 0;
+
+        // the most recent changes have the most transmits left
+        updates.sort((a, b) -> Integer.compare(b.transmits, a.transmits));
+
+        Iterator<Member> pending = updates.iterator();
+        while (pending.hasNext() && count < capacity) {
+            Member member = pending.next();
+
+            keys[count] = member.neighbour.getKey();
+            incarnations[count] = member.incarnation;
+            statuses[count] = member.status;
+            count++;
+
+            if (--member.transmits <= 0) {
+                pending.remove();
+            }
+        }
+
+        for (int attempt = 0; count < capacity && attempt < 2 * capacity && !view.isEmpty(); attempt++) {
+            Member member = view.get(RANDOM.nextInt(view.size()));
+
+            if (!contains(keys, count, member.neighbour.getKey())) {
+                keys[count] = member.neighbour.getKey();
+                incarnations[count] = member.incarnation;
+                statuses[count] = member.status;
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static boolean contains(long[] keys, int count, long key) {
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSelf(long key) {
+        return (key & 0xFFFF) == localPort && localIps.contains(key >>> 16);
+    }
+}
@@ -0,0 +1,103 @@
+package ru.spbau.gorokhov.ats.client;
+
+import ru.spbau.gorokhov.ats.client.estimator.ClockEstimate;
+import ru.spbau.gorokhov.ats.utils.SyncInfoCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends one encoded sync packet to several neighbours through the client's endpoint.
+ * Only the echo stamps are patched per neighbour. Used by one thread at a time.
+ * With gossip membership the packet also carries the membership digest.
+ */
+class GossipSender {
+    private static final int ECHO_STAMP_POSITION = 40;
+    private static final int ECHO_HOLD_POSITION = 48;
+
+    // estimate changes below these are considered converged
+    private static final double STABLE_SKEW_CHANGE = 1e-7;
+    private static final double STABLE_OFFSET_CHANGE = 1;
+
+    private final ClientConfig config;
+    // null if neighbours come from the coordinator
+    private final GossipMembership membership;
+
+    private final DatagramEndpoint endpoint;
+    // packets carry the timestamp exchange fields
+    private final boolean stamped;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(SyncInfoCodec.MAX_PACKET_SIZE);
+
+    private final long[] memberKeys = new long[SyncInfoCodec.MAX_MEMBERS];
+    private final int[] memberIncarnations = new int[SyncInfoCodec.MAX_MEMBERS];
+    private final int[] memberStatuses = new int[SyncInfoCodec.MAX_MEMBERS];
+
+    private long sendDelay;
+    private ClockEstimate lastEstimate;
+
+    GossipSender(ClientConfig config, GossipMembership membership, DatagramEndpoint endpoint) {
+        this.config = config;
+        this.membership = membership;
+        this.endpoint = endpoint;
+
+        // multicast members tell duplicates apart by send stamps
+        stamped = config.isRoundTripDelay() || config.getMembership() == ClientConfig.Membership.MULTICAST;
+
+        sendDelay = config.getMinSendDelay();
+    }
+
+    /**
+     * Backs off while the estimate stays put and returns to the fastest rate as soon as it moves.
+     * Unchanged estimates do not count, they mean the estimator is still learning relative skews.
+     */
+    long nextDelay(ClockEstimate estimate) {
+        if (lastEstimate != null && !lastEstimate.equals(estimate)) {
+            boolean stable = Math.abs(estimate.getSkew() - lastEstimate.getSkew()) < STABLE_SKEW_CHANGE
+                    && Math.abs(estimate.getOffsetError() - lastEstimate.getOffsetError()) < STABLE_OFFSET_CHANGE;
+
+            sendDelay = stable ? Math.min(config.getMaxSendDelay(), sendDelay * 3 / 2) : config.getMinSendDelay();
+        }
+
+        lastEstimate = estimate;
+
+        return sendDelay;
+    }
+
+    /**
+     * @param flags {@link SyncInfoCodec#FLAG_PING} or {@link SyncInfoCodec#FLAG_ACK}, only sent with membership
+     */
+    void prepare(int port, long time, ClockEstimate estimate, long sendStamp, int flags) {
+        buffer.clear();
+
+        if (membership != null) {
+            int count = membership.digest(memberKeys, memberIncarnations, memberStatuses);
+
+            SyncInfoCodec.encode(port, time, estimate.getSkew(), estimate.getOffsetError(), stamped ? sendStamp : 0, 0, 0,
+                    flags, membership.getIncarnation(), memberKeys, memberIncarnations, memberStatuses, count, buffer);
+        } else if (stamped) {
+            SyncInfoCodec.encode(port, time, estimate.getSkew(), estimate.getOffsetError(), sendStamp, 0, 0, buffer);
+        } else {
+            SyncInfoCodec.encode(port, time, estimate.getSkew(), estimate.getOffsetError(), buffer);
+        }
+
+        buffer.flip();
+    }
+
+    /**
+     * @return false if the endpoint had no room for the packet
+     */
+    boolean send(Neighbour neighbour, long echoStamp, long echoHold) throws IOException {
+        return send(neighbour.getSocketAddress(), echoStamp, echoHold);
+    }
+
+    boolean send(InetSocketAddress address, long echoStamp, long echoHold) throws IOException {
+        if (membership != null || stamped) {
+            buffer.putLong(ECHO_STAMP_POSITION, echoStamp);
+            buffer.putLong(ECHO_HOLD_POSITION, echoHold);
+        }
+
+        buffer.position(0);
+        return endpoint.send(buffer, address);
+    }
+}
@@ -0,0 +1,655 @@
+package ru.spbau.gorokhov.ats.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Datagram network inside one JVM: endpoints live on the loopback address with ports of their own, independent
+ * of the system ones. A sent packet is copied once into a pooled buffer, since senders reuse theirs, and the same
+ * buffer goes through lock-free queues to the receiver, which decodes it in place and returns it to the pool.
+ * Latency, jitter, loss and reordering are drawn per endpoint from a seeded random, so a given send sequence
+ * always meets the same faults; delayed packets are delivered by a network thread of the transport.
+ * Receive room is counted in packets, see {@link MemoryTransportConfig#getReceiveQueueCapacity()}, rather than
+ * in bytes given to {@link #open}.
+ * <p>
+ * Streams to the coordinator have ports of their own, a coordinator takes them with {@link #listen}. Every write
+ * travels as a pooled packet with latency and jitter, but never overtakes the ones written before it; streams lose
+ * nothing and are not limited in room.
+ */
+public class MemoryTransport implements Transport, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MemoryTransport.class);
+
+    private static final AtomicInteger NETWORKS = new AtomicInteger();
+
+    private static final int MAX_PORT = 0xFFFF;
+    private static final int MIN_PACKET_CAPACITY = 512;
+
+    // the network thread looks for new packets at least this often
+    private static final long MAX_PARK_NANOS = 1000000;
+    private static final long AWAKE = Long.MIN_VALUE;
+
+    // IPv4 whatever the JVM prefers, clients only take packets from IPv4 sources
+    private static final InetAddress ADDRESS = ipv4Loopback();
+
+    private final MemoryTransportConfig config;
+
+    private final ConcurrentHashMap<Integer, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final AtomicInteger nextPort = new AtomicInteger(1);
+
+    private final ConcurrentHashMap<Integer, Listener> listeners = new ConcurrentHashMap<>();
+    // tells the faults of streams to the same port apart
+    private final AtomicInteger nextStream = new AtomicInteger();
+
+    private final Queue<Packet> pool = new ConcurrentLinkedQueue<>();
+
+    // delayed packets from senders to the network thread, which alone owns the schedule
+    private final Queue<Packet> submitted = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Packet> scheduled = new PriorityQueue<>((a, b) ->
+            a.deliverAt != b.deliverAt ? Long.compare(a.deliverAt, b.deliverAt) : Long.compare(a.sequence, b.sequence));
+    // keeps packets due at the same time in sending order
+    private final AtomicLong sequence = new AtomicLong();
+    private final Thread networkThread;
+    // when the network thread is going to wake up by itself, AWAKE while it is not parked
+    private volatile long wakeAt = AWAKE;
+    private volatile boolean running = true;
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final LongAdder unreachable = new LongAdder();
+
+    public MemoryTransport(MemoryTransportConfig config) {
+        this.config = config;
+
+        networkThread = new Thread(this::run, String.format("memory-transport-%d", NETWORKS.incrementAndGet()));
+        networkThread.setDaemon(true);
+        networkThread.start();
+    }
+
+    public MemoryTransport() {
+        this(new MemoryTransportConfig());
+    }
+
+    private static InetAddress ipv4Loopback() {
+        try {
+            return InetAddress.getByAddress(new byte[]{127, 0, 0, 1});
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Packet {
+        private ByteBuffer buffer = ByteBuffer.allocate(MIN_PACKET_CAPACITY);
+        private InetSocketAddress source;
+        private Endpoint target;
+        // set instead of the target for bytes of a stream, an empty packet ends the stream
+        private Stream stream;
+        private long deliverAt;
+        private long sequence;
+    }
+
+    @Override
+    public DatagramEndpoint open(ClientRuntime runtime, int port, int receiveBufferSize) throws IOException {
+        if (port == 0) {
+            // skips ports taken explicitly
+            do {
+                port = nextPort.getAndIncrement();
+            } while (port <= MAX_PORT && endpoints.containsKey(port));
+        }
+
+        if (port <= 0 || port > MAX_PORT) {
+            throw new BindException(String.format("No port %d in the memory network.", port));
+        }
+
+        Endpoint endpoint = new Endpoint(runtime, port);
+
+        if (endpoints.putIfAbsent(port, endpoint) != null) {
+            throw new BindException(String.format("Port %d of the memory network is taken.", port));
+        }
+
+        return endpoint;
+    }
+
+    /**
+     * Takes streams connected to the port, which is independent of the datagram ports.
+     *
+     * @param executor   runs the callback and everything the accepted streams tell their owner
+     * @param onAccepted gets every new stream, which is connected already
+     * @return closing it stops accepting, streams accepted before stay open
+     */
+    public Closeable listen(int port, Executor executor, Consumer<StreamEndpoint> onAccepted) throws IOException {
+        Listener listener = new Listener(port, executor, onAccepted);
+
+        if (port <= 0 || port > MAX_PORT || listeners.putIfAbsent(port, listener) != null) {
+            throw new BindException(String.format("Stream port %d of the memory network is not free.", port));
+        }
+
+        return listener;
+    }
+
+    @Override
+    public StreamEndpoint connect(ClientRuntime runtime, String host, int port) throws IOException {
+        InetAddress address = InetAddress.getByName(host);
+        Listener listener = address.isLoopbackAddress() ? listeners.get(port) : null;
+
+        if (listener == null) {
+            throw new ConnectException(String.format("Nobody listens to stream port %d of the memory network.", port));
+        }
+
+        int index = nextStream.incrementAndGet();
+
+        Stream client = new Stream(runtime::execute, new InetSocketAddress(ADDRESS, port), port, 2 * index);
+        Stream server = new Stream(listener.executor, new InetSocketAddress(ADDRESS, 0), port, 2 * index + 1);
+        client.peer = server;
+        server.peer = client;
+
+        listener.executor.execute(() -> listener.onAccepted.accept(server));
+
+        return client;
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getLost() {
+        return lost.sum();
+    }
+
+    // dropped because the receiver had too many packets pending
+    public long getOverflowed() {
+        return overflowed.sum();
+    }
+
+    // sent to ports nobody listens to
+    public long getUnreachable() {
+        return unreachable.sum();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(networkThread);
+    }
+
+    private Packet takePacket(int size) {
+        Packet packet = pool.poll();
+
+        if (packet == null) {
+            packet = new Packet();
+        }
+        if (packet.buffer.capacity() < size) {
+            packet.buffer = ByteBuffer.allocate(Math.max(size, MIN_PACKET_CAPACITY));
+        }
+
+        return packet;
+    }
+
+    private void release(Packet packet) {
+        packet.target = null;
+        packet.stream = null;
+        pool.add(packet);
+    }
+
+    private void schedule(Packet packet) {
+        submitted.add(packet);
+
+        long wake = wakeAt;
+
+        // an awake network thread polls the submitted packets before it parks again, a parked one is woken up only
+        // if the packet is due before it wakes up by itself
+        if (wake != AWAKE && packet.deliverAt - wake < 0) {
+            LockSupport.unpark(networkThread);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            Packet packet;
+            while ((packet = submitted.poll()) != null) {
+                scheduled.add(packet);
+            }
+
+            long now = System.nanoTime();
+            while (!scheduled.isEmpty() && scheduled.peek().deliverAt - now <= 0) {
+                deliver(scheduled.poll());
+            }
+
+            long park = scheduled.isEmpty() ? MAX_PARK_NANOS : Math.min(MAX_PARK_NANOS, scheduled.peek().deliverAt - now);
+            wakeAt = now + park;
+
+            // packets submitted before wakeAt was lowered would otherwise wait for the next wake up
+            if (submitted.isEmpty()) {
+                LockSupport.parkNanos(this, park);
+            }
+            wakeAt = AWAKE;
+        }
+
+        LOG.debug("Memory network stopped, {} packets delivered.", getDelivered());
+    }
+
+    private void deliver(Packet packet) {
+        if (packet.stream != null) {
+            packet.stream.arrived(packet);
+            return;
+        }
+
+        Endpoint target = packet.target;
+
+        if (target.closed) {
+            unreachable.increment();
+            release(packet);
+            return;
+        }
+
+        if (target.pending.incrementAndGet() > config.getReceiveQueueCapacity()) {
+            target.pending.decrementAndGet();
+            overflowed.increment();
+            release(packet);
+            return;
+        }
+
+        target.inbox.add(packet);
+        delivered.increment();
+        target.notifyReadable();
+    }
+
+    private class Endpoint implements DatagramEndpoint {
+        private final ClientRuntime runtime;
+        private final int port;
+        private final InetSocketAddress address;
+        // null until started, packets wait in the inbox meanwhile
+        private volatile Runnable onReadable;
+
+        private final Random random;
+
+        private final Queue<Packet> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        // a readiness call is queued on the I/O thread
+        private final AtomicBoolean notified = new AtomicBoolean();
+        private final Runnable readableTask = this::readable;
+
+        // packet handed out by the last receive, the receiver owns it until the next one
+        private Packet current;
+
+        private volatile boolean closed = false;
+
+        Endpoint(ClientRuntime runtime, int port) {
+            this.runtime = runtime;
+            this.port = port;
+
+            address = new InetSocketAddress(ADDRESS, port);
+            random = new Random(config.getSeed() * 31 + port);
+        }
+
+        @Override
+        public int getLocalPort() {
+            return port;
+        }
+
+        @Override
+        public void start(Runnable onReadable) {
+            this.onReadable = onReadable;
+            notifyReadable();
+        }
+
+        void notifyReadable() {
+            if (onReadable != null && notified.compareAndSet(false, true)) {
+                runtime.execute(readableTask);
+            }
+        }
+
+        private void readable() {
+            notified.set(false);
+
+            if (!closed) {
+                onReadable.run();
+            }
+
+            // like a level-triggered selector: packets the handler left for later call it again
+            if (!inbox.isEmpty() && !closed) {
+                notifyReadable();
+            }
+        }
+
+        @Override
+        public boolean receive(Datagram datagram) {
+            if (current != null) {
+                release(current);
+                current = null;
+            }
+
+            Packet packet = inbox.poll();
+
+            if (packet == null) {
+                return false;
+            }
+
+            pending.decrementAndGet();
+            current = packet;
+            datagram.set(packet.buffer, packet.source);
+
+            return true;
+        }
+
+        @Override
+        public boolean send(ByteBuffer data, InetSocketAddress target) {
+            if (closed) {
+                return false;
+            }
+
+            Endpoint receiver = target.getAddress() != null && target.getAddress().isLoopbackAddress() ? endpoints.get(target.getPort()) : null;
+
+            if (receiver == null) {
+                unreachable.increment();
+                data.position(data.limit());
+                return true;
+            }
+
+            long delayMicros;
+            synchronized (random) {
+                if (random.nextDouble() < config.getLoss()) {
+                    lost.increment();
+                    data.position(data.limit());
+                    return true;
+                }
+
+                delayMicros = config.getLatencyMicros();
+                if (config.getJitterMicros() > 0) {
+                    delayMicros += (long) (random.nextDouble() * config.getJitterMicros());
+                }
+                if (config.getReorder() > 0 && random.nextDouble() < config.getReorder()) {
+                    delayMicros += config.getReorderDelayMicros();
+                }
+            }
+
+            Packet packet = takePacket(data.remaining());
+            packet.buffer.clear();
+            packet.buffer.put(data);
+            packet.buffer.flip();
+            packet.source = address;
+            packet.target = receiver;
+
+            if (delayMicros == 0) {
+                deliver(packet);
+            } else {
+                packet.deliverAt = System.nanoTime() + delayMicros * 1000;
+                packet.sequence = sequence.getAndIncrement();
+                schedule(packet);
+            }
+
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            endpoints.remove(port, this);
+
+            // the I/O thread is the only one to receive, so it drains what is left
+            runtime.execute(() -> {
+                Datagram datagram = new Datagram();
+                while (receive(datagram)) {
+                    // dropped
+                }
+                if (current != null) {
+                    release(current);
+                    current = null;
+                }
+            });
+        }
+    }
+
+    private class Listener implements Closeable {
+        private final int port;
+        private final Executor executor;
+        private final Consumer<StreamEndpoint> onAccepted;
+
+        Listener(int port, Executor executor, Consumer<StreamEndpoint> onAccepted) {
+            this.port = port;
+            this.executor = executor;
+            this.onAccepted = onAccepted;
+        }
+
+        @Override
+        public void close() {
+            listeners.remove(port, this);
+        }
+    }
+
+    /**
+     * One end of a stream, its peer is the other one. Packets it writes go to the peer's inbox in order.
+     */
+    private class Stream implements StreamEndpoint {
+        private final Executor executor;
+        private final InetSocketAddress remoteAddress;
+        // faults of the packets this end writes
+        private final Random random;
+
+        private Stream peer;
+
+        // null until started, packets wait in the inbox meanwhile
+        private volatile Runnable onReady;
+
+        private final Queue<Packet> inbox = new ConcurrentLinkedQueue<>();
+
+        // a readiness call is queued on the owner's executor
+        private final AtomicBoolean notified = new AtomicBoolean();
+        private final Runnable readyTask = this::ready;
+
+        // owner only: packet being read, and whether the peer's end of the stream was read
+        private Packet current;
+        private boolean finished = false;
+
+        // guarded by random: once a packet was delayed, all following ones are scheduled no earlier than the last one
+        private boolean delayed = false;
+        private long lastDeliverAt;
+
+        private volatile boolean closed = false;
+
+        Stream(Executor executor, InetSocketAddress remoteAddress, int port, int index) {
+            this.executor = executor;
+            this.remoteAddress = remoteAddress;
+
+            random = new Random((config.getSeed() * 31 + port) * 31 + index);
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void start(Runnable onReady) {
+            this.onReady = onReady;
+            // tells the owner it is connected
+            notified.set(true);
+            executor.execute(readyTask);
+        }
+
+        void arrived(Packet packet) {
+            if (closed) {
+                release(packet);
+                return;
+            }
+
+            inbox.add(packet);
+            notifyReady();
+        }
+
+        private void notifyReady() {
+            if (onReady != null && notified.compareAndSet(false, true)) {
+                executor.execute(readyTask);
+            }
+        }
+
+        private void ready() {
+            notified.set(false);
+
+            if (!closed) {
+                onReady.run();
+            }
+
+            // like a level-triggered selector: bytes the owner left for later call it again
+            if ((current != null || !inbox.isEmpty()) && !closed) {
+                notifyReady();
+            }
+        }
+
+        @Override
+        public boolean finishConnect() throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            return true;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            int read = 0;
+
+            while (buffer.hasRemaining() && !finished) {
+                if (current == null) {
+                    current = inbox.poll();
+
+                    if (current == null) {
+                        break;
+                    }
+                }
+
+                ByteBuffer data = current.buffer;
+
+                if (!data.hasRemaining()) {
+                    finished = true;
+                } else if (data.remaining() <= buffer.remaining()) {
+                    read += data.remaining();
+                    buffer.put(data);
+                } else {
+                    int limit = data.limit();
+                    data.limit(data.position() + buffer.remaining());
+                    read += data.remaining();
+                    buffer.put(data);
+                    data.limit(limit);
+                }
+
+                if (!data.hasRemaining()) {
+                    release(current);
+                    current = null;
+                }
+            }
+
+            return read == 0 && finished ? -1 : read;
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            int size = buffer.remaining();
+
+            if (size == 0) {
+                return 0;
+            }
+
+            Packet packet = takePacket(size);
+            packet.buffer.clear();
+            packet.buffer.put(buffer);
+            packet.buffer.flip();
+
+            send(packet);
+
+            return size;
+        }
+
+        /**
+         * Packets to a closed peer are dropped, like bytes sent to a socket which is being reset.
+         */
+        private void send(Packet packet) {
+            packet.stream = peer;
+
+            boolean scheduled = false;
+            synchronized (random) {
+                long delayMicros = config.getLatencyMicros();
+                if (config.getJitterMicros() > 0) {
+                    delayMicros += (long) (random.nextDouble() * config.getJitterMicros());
+                }
+
+                if (delayMicros > 0 || delayed) {
+                    long deliverAt = System.nanoTime() + delayMicros * 1000;
+                    if (delayed && deliverAt - lastDeliverAt < 0) {
+                        deliverAt = lastDeliverAt;
+                    }
+
+                    delayed = true;
+                    scheduled = true;
+                    lastDeliverAt = deliverAt;
+
+                    // packets due at the same time are delivered in sequence order
+                    packet.deliverAt = deliverAt;
+                    packet.sequence = sequence.getAndIncrement();
+                }
+            }
+
+            if (scheduled) {
+                schedule(packet);
+            } else {
+                deliver(packet);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            // the end of the stream follows the bytes written before it
+            Packet end = takePacket(0);
+            end.buffer.clear();
+            end.buffer.flip();
+            send(end);
+
+            // the owner is the only one to read, so it drains what is left
+            executor.execute(() -> {
+                Packet packet;
+                while ((packet = inbox.poll()) != null) {
+                    release(packet);
+                }
+                if (current != null) {
+                    release(current);
+                    current = null;
+                }
+            });
+        }
+    }
+}
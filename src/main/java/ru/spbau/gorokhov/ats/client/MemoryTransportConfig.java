@@ -0,0 +1,27 @@
+package ru.spbau.gorokhov.ats.client;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+@Getter
+@Setter
+@Accessors(chain = true)
+public class MemoryTransportConfig {
+    // every packet takes latency plus a uniform random part of jitter, in microseconds
+    private long latencyMicros = 0;
+    private long jitterMicros = 0;
+
+    // probability of a packet being lost
+    private double loss = 0;
+
+    // probability of a packet being held back by the reorder delay, so packets sent after it overtake it
+    private double reorder = 0;
+    private long reorderDelayMicros = 5000;
+
+    // packets waiting to be received by an endpoint, more are dropped as by a full socket buffer
+    private int receiveQueueCapacity = 4096;
+
+    // faults of an endpoint are drawn from a random seeded with this and its port
+    private long seed = 42;
+}
@@ -0,0 +1,163 @@
+package ru.spbau.gorokhov.ats.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Collections;
+
+/**
+ * Non-blocking UDP channel joined to a multicast group on the runtime's selector. Every member binds the group port
+ * with address reuse, so any number of them can run on one host, and with multicast loopback on they hear each other
+ * and themselves. Packets are received into the runtime's read buffer.
+ */
+class MulticastEndpoint implements DatagramEndpoint {
+    private static final Logger LOG = LoggerFactory.getLogger(MulticastEndpoint.class);
+
+    private final ClientRuntime runtime;
+    private final DatagramChannel channel;
+    private final ByteBuffer readBuffer;
+    private final InetSocketAddress group;
+
+    private MulticastEndpoint(ClientRuntime runtime, DatagramChannel channel, InetSocketAddress group) {
+        this.runtime = runtime;
+        this.channel = channel;
+        this.group = group;
+
+        readBuffer = runtime.getReadBuffer();
+    }
+
+    /**
+     * @param interfaceName null picks the first multicast interface with an IPv4 address, or the loopback one
+     * @param ttl           routers the packets may cross, 1 keeps them in the local network
+     */
+    static MulticastEndpoint open(ClientRuntime runtime, InetSocketAddress group, String interfaceName, int ttl,
+                                  int receiveBufferSize) throws IOException {
+        NetworkInterface networkInterface = chooseInterface(interfaceName);
+
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (receiveBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            channel.bind(new InetSocketAddress(group.getPort()));
+            channel.join(group.getAddress(), networkInterface);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        LOG.info("Joined multicast group {} on {}.", group, networkInterface.getName());
+
+        return new MulticastEndpoint(runtime, channel, group);
+    }
+
+    private static NetworkInterface chooseInterface(String name) throws SocketException {
+        if (name != null) {
+            NetworkInterface networkInterface = NetworkInterface.getByName(name);
+
+            if (networkInterface == null) {
+                throw new SocketException(String.format("No network interface %s.", name));
+            }
+
+            return networkInterface;
+        }
+
+        NetworkInterface loopback = null;
+
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!networkInterface.isUp() || !hasIpv4Address(networkInterface)) {
+                continue;
+            }
+
+            if (networkInterface.isLoopback()) {
+                loopback = networkInterface;
+            } else if (networkInterface.supportsMulticast()) {
+                return networkInterface;
+            }
+        }
+
+        if (loopback == null) {
+            throw new SocketException("No network interface for multicast.");
+        }
+
+        return loopback;
+    }
+
+    private static boolean hasIpv4Address(NetworkInterface networkInterface) {
+        for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+            if (address instanceof Inet4Address) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    InetSocketAddress getGroup() {
+        return group;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return group.getPort();
+    }
+
+    @Override
+    public void start(Runnable onReadable) {
+        runtime.execute(() -> {
+            try {
+                runtime.register(channel, SelectionKey.OP_READ, key -> onReadable.run());
+            } catch (ClosedChannelException e) {
+                LOG.error("Endpoint was closed before it started.", e);
+            }
+        });
+    }
+
+    @Override
+    public boolean receive(Datagram datagram) throws IOException {
+        readBuffer.clear();
+
+        InetSocketAddress source = (InetSocketAddress) channel.receive(readBuffer);
+
+        if (source == null) {
+            return false;
+        }
+
+        readBuffer.flip();
+        datagram.set(readBuffer, source);
+
+        return true;
+    }
+
+    @Override
+    public boolean send(ByteBuffer packet, InetSocketAddress target) throws IOException {
+        return channel.send(packet, target) > 0;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.error("Failed to close multicast socket.", e);
+        }
+    }
+}
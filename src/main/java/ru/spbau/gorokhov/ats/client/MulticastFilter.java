@@ -0,0 +1,147 @@
+package ru.spbau.gorokhov.ats.client;
+
+import ru.spbau.gorokhov.ats.utils.Hashing;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission of multicast sync packets per source, on the I/O thread. Send stamps are the sender's
+ * {@code System.nanoTime()}, so they grow from packet to packet and serve as sequence numbers: a packet not newer than
+ * the last one seen from its source is a duplicate or came out of order. nanoTime has no fixed origin, though, so a
+ * stamp further behind than any reordering could put it means the sender restarted, and its stamps start over.
+ * Of the rest, a source gets at most one packet per min interval through to the estimator. Sources live in an
+ * open-addressed table of primitive columns; those no packet was admitted from for a while are dropped whenever it
+ * fills up, so it stays sized to the live group. Not thread-safe.
+ */
+class MulticastFilter {
+    static final int ACCEPTED = 0;
+    static final int DUPLICATE = 1;
+    static final int RATE_LIMITED = 2;
+
+    private static final int MIN_CELLS = 16;
+    private static final long STALE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long MAX_REORDER_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long minIntervalNanos;
+
+    private boolean[] used;
+    private long[] keys;
+    private long[] lastStamps;
+    private long[] lastAccepted;
+    // last admitted packet, duplicates and rate limited ones do not keep a source alive
+    private long[] lastSeen;
+    private int mask;
+
+    private int size = 0;
+
+    /**
+     * @param minInterval min time between packets of one source which are let through, ms
+     */
+    MulticastFilter(long minInterval) {
+        minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minInterval);
+
+        allocate(MIN_CELLS);
+    }
+
+    private void allocate(int cells) {
+        used = new boolean[cells];
+        keys = new long[cells];
+        lastStamps = new long[cells];
+        lastAccepted = new long[cells];
+        lastSeen = new long[cells];
+        mask = cells - 1;
+    }
+
+    private static int hash(long key) {
+        return (int) Hashing.mix(key);
+    }
+
+    /**
+     * @param sendStamp zero if the packet carries none, then it is never taken for a duplicate
+     * @return {@link #ACCEPTED}, {@link #DUPLICATE} or {@link #RATE_LIMITED}
+     */
+    int accept(long key, long sendStamp, long receiveNanos) {
+        int cell = hash(key) & mask;
+
+        while (used[cell] && keys[cell] != key) {
+            cell = (cell + 1) & mask;
+        }
+
+        if (!used[cell]) {
+            if (2 * (size + 1) > used.length) {
+                rebuild(receiveNanos);
+
+                cell = hash(key) & mask;
+                while (used[cell]) {
+                    cell = (cell + 1) & mask;
+                }
+            }
+
+            used[cell] = true;
+            keys[cell] = key;
+            lastStamps[cell] = sendStamp;
+            lastAccepted[cell] = receiveNanos;
+            lastSeen[cell] = receiveNanos;
+            size++;
+
+            return ACCEPTED;
+        }
+
+        if (sendStamp != 0) {
+            long behind = lastStamps[cell] - sendStamp;
+
+            if (behind >= 0 && behind <= MAX_REORDER_NANOS) {
+                return DUPLICATE;
+            }
+            // newer, or a restart; either way the rate limit still applies
+            lastStamps[cell] = sendStamp;
+        }
+
+        if (receiveNanos - lastAccepted[cell] < minIntervalNanos) {
+            return RATE_LIMITED;
+        }
+
+        lastAccepted[cell] = receiveNanos;
+        lastSeen[cell] = receiveNanos;
+
+        return ACCEPTED;
+    }
+
+    /**
+     * Drops stale sources and sizes the table to a quarter full, so the live ones have room to double.
+     */
+    private void rebuild(long now) {
+        boolean[] oldUsed = used;
+        long[] oldKeys = keys;
+        long[] oldStamps = lastStamps;
+        long[] oldAccepted = lastAccepted;
+        long[] oldSeen = lastSeen;
+
+        int live = 0;
+        for (int cell = 0; cell < oldUsed.length; cell++) {
+            if (oldUsed[cell] && now - oldSeen[cell] <= STALE_NANOS) {
+                live++;
+            }
+        }
+
+        allocate(Math.max(MIN_CELLS, Integer.highestOneBit(4 * (live + 1) - 1) << 1));
+        size = live;
+
+        for (int old = 0; old < oldUsed.length; old++) {
+            if (!oldUsed[old] || now - oldSeen[old] > STALE_NANOS) {
+                continue;
+            }
+
+            int cell = hash(oldKeys[old]) & mask;
+            while (used[cell]) {
+                cell = (cell + 1) & mask;
+            }
+
+            used[cell] = true;
+            keys[cell] = oldKeys[old];
+            lastStamps[cell] = oldStamps[old];
+            lastAccepted[cell] = oldAccepted[old];
+            lastSeen[cell] = oldSeen[old];
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ru.spbau.gorokhov.ats.client;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import ru.spbau.gorokhov.ats.model.AddressKeys;
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Neighbour address resolved once, when the neighbour is added.
+ */
+@Getter
+@EqualsAndHashCode(of = "address")
+class Neighbour {
+    private final ClientAddress address;
+    private final long key;
+    private final InetSocketAddress socketAddress;
+
+    Neighbour(ClientAddress address) {
+        this.address = address;
+
+        key = AddressKeys.of(address);
+        socketAddress = new InetSocketAddress(address.getIp(), address.getPort());
+    }
+
+    @Override
+    public String toString() {
+        return address.toString();
+    }
+}
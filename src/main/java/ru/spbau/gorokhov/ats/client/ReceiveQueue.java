@@ -0,0 +1,144 @@
+package ru.spbau.gorokhov.ats.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer single-consumer ring of decoded sync packets waiting for the estimator, kept in
+ * preallocated primitive columns. The I/O thread offers packets, the estimator stage reads a batch in place
+ * with the getters, indexed from the oldest packet, and releases it afterwards.
+ */
+class ReceiveQueue {
+    private final int mask;
+
+    private final long[] keys;
+    private final long[] times;
+    private final double[] skews;
+    private final double[] offsets;
+    private final long[] localTimes;
+    private final long[] sendStamps;
+    private final long[] echoStamps;
+    private final long[] echoHolds;
+    private final long[] receiveNanos;
+
+    // next slot to read and next slot to write, only ever growing
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // producer's last look at the head, saves reading it on every offer
+    private long cachedHead;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    ReceiveQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+
+        keys = new long[size];
+        times = new long[size];
+        skews = new double[size];
+        offsets = new double[size];
+        localTimes = new long[size];
+        sendStamps = new long[size];
+        echoStamps = new long[size];
+        echoHolds = new long[size];
+        receiveNanos = new long[size];
+    }
+
+    /**
+     * Producer only.
+     *
+     * @return false if the queue is full and the packet is dropped
+     */
+    boolean offer(long key, long time, double skew, double offset, long localTime,
+                  long sendStamp, long echoStamp, long echoHold, long receiveNanos) {
+        long position = tail.get();
+
+        if (position - cachedHead > mask) {
+            cachedHead = head.get();
+
+            if (position - cachedHead > mask) {
+                return false;
+            }
+        }
+
+        int index = (int) position & mask;
+        keys[index] = key;
+        times[index] = time;
+        skews[index] = skew;
+        offsets[index] = offset;
+        localTimes[index] = localTime;
+        sendStamps[index] = sendStamp;
+        echoStamps[index] = echoStamp;
+        echoHolds[index] = echoHold;
+        this.receiveNanos[index] = receiveNanos;
+
+        // publishes the columns written above to the consumer; a full volatile write rather than a lazy one, so the
+        // producer's following look at whether the consumer is still running can not be ordered before it
+        tail.set(position + 1);
+
+        return true;
+    }
+
+    /**
+     * Exact for the consumer, a snapshot for anyone else.
+     */
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Consumer only: drops the oldest {@code count} packets.
+     */
+    void release(int count) {
+        head.lazySet(head.get() + count);
+    }
+
+    private int index(int i) {
+        return (int) (head.get() + i) & mask;
+    }
+
+    long getKey(int i) {
+        return keys[index(i)];
+    }
+
+    long getTime(int i) {
+        return times[index(i)];
+    }
+
+    double getSkew(int i) {
+        return skews[index(i)];
+    }
+
+    double getOffset(int i) {
+        return offsets[index(i)];
+    }
+
+    long getLocalTime(int i) {
+        return localTimes[index(i)];
+    }
+
+    long getSendStamp(int i) {
+        return sendStamps[index(i)];
+    }
+
+    long getEchoStamp(int i) {
+        return echoStamps[index(i)];
+    }
+
+    long getEchoHold(int i) {
+        return echoHolds[index(i)];
+    }
+
+    long getReceiveNanos(int i) {
+        return receiveNanos[index(i)];
+    }
+}
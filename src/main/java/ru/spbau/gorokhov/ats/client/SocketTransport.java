@@ -0,0 +1,198 @@
+package ru.spbau.gorokhov.ats.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking UDP and TCP channels on the runtime's selector. Packets are received into the runtime's read buffer.
+ */
+public class SocketTransport implements Transport {
+    private static final Logger LOG = LoggerFactory.getLogger(SocketTransport.class);
+
+    @Override
+    public DatagramEndpoint open(ClientRuntime runtime, int port, int receiveBufferSize) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        if (receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+        channel.bind(port > 0 ? new InetSocketAddress(port) : null);
+
+        return new Endpoint(runtime, channel);
+    }
+
+    @Override
+    public StreamEndpoint connect(ClientRuntime runtime, String host, int port) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        SocketChannel channel = SocketChannel.open();
+
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            // an idle session to a vanished coordinator host is noticed even with no request in flight
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            channel.connect(address);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        return new Stream(runtime, channel, address);
+    }
+
+    private static class Endpoint implements DatagramEndpoint {
+        private final ClientRuntime runtime;
+        private final DatagramChannel channel;
+        private final ByteBuffer readBuffer;
+        private final int localPort;
+
+        Endpoint(ClientRuntime runtime, DatagramChannel channel) throws IOException {
+            this.runtime = runtime;
+            this.channel = channel;
+
+            readBuffer = runtime.getReadBuffer();
+            localPort = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return localPort;
+        }
+
+        @Override
+        public void start(Runnable onReadable) {
+            runtime.execute(() -> {
+                try {
+                    runtime.register(channel, SelectionKey.OP_READ, key -> onReadable.run());
+                } catch (ClosedChannelException e) {
+                    LOG.error("Endpoint was closed before it started.", e);
+                }
+            });
+        }
+
+        @Override
+        public boolean receive(Datagram datagram) throws IOException {
+            readBuffer.clear();
+
+            InetSocketAddress source = (InetSocketAddress) channel.receive(readBuffer);
+
+            if (source == null) {
+                return false;
+            }
+
+            readBuffer.flip();
+            datagram.set(readBuffer, source);
+
+            return true;
+        }
+
+        @Override
+        public boolean send(ByteBuffer packet, InetSocketAddress target) throws IOException {
+            return channel.send(packet, target) > 0;
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.error("Failed to close socket.", e);
+            }
+        }
+    }
+
+    private static class Stream implements StreamEndpoint, ClientRuntime.IoHandler {
+        private final ClientRuntime runtime;
+        private final SocketChannel channel;
+        private final InetSocketAddress address;
+
+        private SelectionKey key;
+        private Runnable onReady;
+
+        Stream(ClientRuntime runtime, SocketChannel channel, InetSocketAddress address) {
+            this.runtime = runtime;
+            this.channel = channel;
+            this.address = address;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return address;
+        }
+
+        @Override
+        public void start(Runnable onReady) {
+            this.onReady = onReady;
+
+            runtime.execute(() -> {
+                try {
+                    // a connection established right away is told about by the first writable event
+                    int ops = channel.isConnectionPending() ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+                    key = runtime.register(channel, ops, this);
+                } catch (ClosedChannelException e) {
+                    LOG.debug("Stream was closed before it started.");
+                }
+            });
+        }
+
+        @Override
+        public void onReady(SelectionKey key) {
+            // connected or has room again, only reads are waited for until the next short write
+            if (key.isConnectable() || key.isWritable()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+
+            onReady.run();
+        }
+
+        @Override
+        public boolean finishConnect() throws IOException {
+            return channel.finishConnect();
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            int read = channel.read(buffer);
+
+            // the end of the stream stays readable, it is not waited for again
+            if (read < 0 && key != null && key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+
+            return read;
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            int written = channel.write(buffer);
+
+            if (buffer.hasRemaining() && key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+
+            return written;
+        }
+
+        @Override
+        public void close() {
+            if (key != null) {
+                key.cancel();
+            }
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.error("Failed to close stream.", e);
+            }
+        }
+    }
+}
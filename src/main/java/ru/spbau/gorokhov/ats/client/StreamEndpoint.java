@@ -0,0 +1,42 @@
+package ru.spbau.gorokhov.ats.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Connected byte stream of a {@link Transport}, used like a non-blocking socket channel: nothing blocks, reads and
+ * writes may move fewer bytes than asked, and the owner is called back once more may be possible. All calls are
+ * made on the owner's thread: the runtime's I/O thread for streams opened by {@link Transport#connect}.
+ */
+public interface StreamEndpoint extends Closeable {
+    InetSocketAddress getRemoteAddress();
+
+    /**
+     * @param onReady called on the owner's thread once the stream is connected, has bytes to read
+     *                or has room again after a short write
+     */
+    void start(Runnable onReady);
+
+    /**
+     * @return false while the connection is being established
+     * @throws IOException if it could not be
+     */
+    boolean finishConnect() throws IOException;
+
+    /**
+     * @return bytes read, -1 at the end of the stream
+     */
+    int read(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Writes from the buffer position, the owner is called back once there is room for what is left.
+     *
+     * @return bytes written
+     */
+    int write(ByteBuffer buffer) throws IOException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,159 @@
+package ru.spbau.gorokhov.ats.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.gorokhov.ats.client.utils.Clock;
+import ru.spbau.gorokhov.ats.metrics.ClientMetrics;
+import ru.spbau.gorokhov.ats.utils.TimeQueryCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answers time queries of applications next to a client, see {@link TimeServiceClient}.
+ * Worker threads share one blocking channel and answer from buffers of their own: a query is read,
+ * stamped with the virtual time from the latest published estimate and sent back in place, so answering takes
+ * neither locks nor allocations (the channel reuses the sender address while queries come from the same socket).
+ */
+class TimeResponder {
+    private static final Logger LOG = LoggerFactory.getLogger(TimeResponder.class);
+
+    // currentTimeMillis moving away from the anchor by more than this is a step of the wall clock, not drift
+    private static final long MAX_ANCHOR_DRIFT = 100;
+
+    private final Client client;
+    private final ClientMetrics metrics;
+
+    private final DatagramChannel channel;
+    private final List<Thread> workers = new ArrayList<>();
+
+    TimeResponder(Client client, ClientMetrics metrics, String host, int port) throws IOException {
+        this.client = client;
+        this.metrics = metrics;
+
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(host, port));
+    }
+
+    int getPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    void start(int threads) throws IOException {
+        int port = getPort();
+
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Worker(), String.format("time-responder-%d-%d", port, i));
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+
+        LOG.info("Time service is listening to {} port.", port);
+    }
+
+    void stop() {
+        try {
+            // wakes the workers up with AsynchronousCloseException
+            channel.close();
+        } catch (IOException e) {
+            LOG.error("Failed to close time service socket.", e);
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(TimeQueryCodec.RESPONSE_SIZE);
+        // local times of receiving and answering a query, and their virtual times
+        private final double[] localTimes = new double[2];
+        private final double[] virtualTimes = new double[2];
+
+        // real time of a nanoTime reading, taken at a tick of currentTimeMillis and kept, so served times have
+        // nanoTime resolution instead of snapping to whole milliseconds
+        private long anchorMillis;
+        private long anchorNanos;
+
+        @Override
+        public void run() {
+            anchor();
+
+            while (true) {
+                buffer.clear();
+
+                SocketAddress source;
+                try {
+                    source = channel.receive(buffer);
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    LOG.error("Failed to receive time query.", e);
+                    continue;
+                }
+
+                long receiveNanos = System.nanoTime();
+
+                buffer.flip();
+
+                if (!TimeQueryCodec.isQuery(buffer)) {
+                    metrics.timeQueryMalformed();
+                    continue;
+                }
+
+                long origin = TimeQueryCodec.getQueryOrigin(buffer);
+
+                Clock clock = client.getClock();
+                double dispersion = client.getDispersion();
+
+                localTimes[0] = localTime(receiveNanos, clock);
+                localTimes[1] = localTime(System.nanoTime(), clock);
+                double rate = client.getTimes(localTimes, virtualTimes) * clock.getSkew();
+
+                buffer.clear();
+                TimeQueryCodec.encodeResponse(dispersion < 0 ? TimeQueryCodec.FLAG_UNSYNCHRONIZED : 0, origin,
+                        virtualTimes[0], virtualTimes[1], rate, Math.max(dispersion, 0), buffer);
+                buffer.flip();
+
+                try {
+                    channel.send(buffer, source);
+                    metrics.timeQueryAnswered();
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    LOG.error("Failed to answer time query of {}.", source, e);
+                }
+            }
+        }
+
+        private double localTime(long nanos, Clock clock) {
+            double realTime = anchorMillis + (nanos - anchorNanos) / 1e6;
+
+            // the client's own readings come from currentTimeMillis, follow it if the wall clock is stepped
+            if (Math.abs(realTime - Clock.getRealTime()) > MAX_ANCHOR_DRIFT) {
+                anchor();
+                realTime = anchorMillis + (nanos - anchorNanos) / 1e6;
+            }
+
+            return clock.getSkew() * realTime + clock.getOffset();
+        }
+
+        /**
+         * Waits for the next millisecond tick, the first reading of it is exact up to the tick instead of up to 1 ms.
+         */
+        private void anchor() {
+            long start = Clock.getRealTime();
+            long millis;
+
+            do {
+                millis = Clock.getRealTime();
+            } while (millis == start);
+
+            anchorNanos = System.nanoTime();
+            anchorMillis = millis;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package ru.spbau.gorokhov.ats.client;
+
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.gorokhov.ats.utils.LogRateLimiter;
+import ru.spbau.gorokhov.ats.utils.TimeQueryCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads synchronized time from the time service of a client running nearby, without running a client of its own.
+ * Each query is an NTP-style exchange: a few queries are sent, the one with the shortest round trip is kept, and the
+ * service time at its arrival is taken as the transmit time plus half of the round trip spent outside the service.
+ * Between queries time is interpolated from {@code System.nanoTime()} at the rate reported by the service,
+ * so readers only go to the network once the cached sample is older than the refresh interval. One of them refreshes
+ * it without holding a lock, the others keep interpolating the old sample meanwhile. A new sample may be behind
+ * the interpolated old one, so the time returned never goes below the latest one returned before: it stays there
+ * until the new sample catches up. Thread-safe.
+ */
+public class TimeServiceClient implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(TimeServiceClient.class);
+
+    private static final LogRateLimiter REFRESH_LOG = new LogRateLimiter(1);
+
+    private static final long DEFAULT_REFRESH_INTERVAL = 1000;
+    private static final int DEFAULT_TIMEOUT = 100;
+
+    private static final int QUERIES_PER_REFRESH = 3;
+
+    @RequiredArgsConstructor
+    private static class Sample {
+        private final double time;
+        private final long nanos;
+        private final double rate;
+        private final double error;
+    }
+
+    private final long refreshIntervalNanos;
+
+    private final DatagramSocket socket;
+    private final byte[] data = new byte[TimeQueryCodec.RESPONSE_SIZE];
+    private final ByteBuffer buffer = ByteBuffer.wrap(data);
+    private final DatagramPacket packet = new DatagramPacket(data, data.length);
+    private final TimeQueryCodec codec = new TimeQueryCodec();
+
+    private volatile Sample sample;
+    // a failed refresh is not retried before this, readers keep interpolating the old sample meanwhile
+    private volatile long nextRefreshNanos;
+    // owns the socket and buffers while set
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    // bits of the latest time returned
+    private final AtomicLong lastTime = new AtomicLong(Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY));
+
+    /**
+     * @param refreshInterval how long a sample is interpolated before the service is queried again, ms
+     * @param timeout         how long to wait for each answer, ms
+     */
+    public TimeServiceClient(String host, int port, long refreshInterval, int timeout) throws IOException {
+        refreshIntervalNanos = refreshInterval * 1000000;
+
+        socket = new DatagramSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        socket.setSoTimeout(timeout);
+    }
+
+    public TimeServiceClient(String host, int port) throws IOException {
+        this(host, port, DEFAULT_REFRESH_INTERVAL, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @throws IOException if the service has never answered
+     */
+    public long currentTimeMillis() throws IOException {
+        return (long) currentTime();
+    }
+
+    /**
+     * @return synchronized time in fractional milliseconds, never less than the one returned before
+     * @throws IOException if the service has never answered
+     */
+    public double currentTime() throws IOException {
+        long now = System.nanoTime();
+        Sample current = sample;
+
+        if (current == null || now - nextRefreshNanos >= 0) {
+            current = refresh(current);
+        }
+
+        double time = current.time + current.rate * (now - current.nanos) / 1e6;
+
+        while (true) {
+            long last = lastTime.get();
+            double lastValue = Double.longBitsToDouble(last);
+
+            if (time <= lastValue) {
+                return lastValue;
+            }
+
+            if (lastTime.compareAndSet(last, Double.doubleToRawLongBits(time))) {
+                return time;
+            }
+        }
+    }
+
+    /**
+     * @return error bound of the cached sample in milliseconds: the service's own error and half of the round trip,
+     * infinite if the service was not synchronized yet, NaN before the first answer
+     */
+    public double getError() {
+        Sample current = sample;
+
+        return current == null ? Double.NaN : current.error;
+    }
+
+    private Sample refresh(Sample current) throws IOException {
+        if (!refreshing.compareAndSet(false, true)) {
+            return current != null ? current : awaitFirstSample();
+        }
+
+        try {
+            return querySample();
+        } finally {
+            refreshing.set(false);
+
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Readers which come before the first sample have nothing to interpolate, they wait for the refresh under way.
+     */
+    private synchronized Sample awaitFirstSample() throws IOException {
+        while (refreshing.get()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the time service.");
+            }
+        }
+
+        Sample current = sample;
+
+        if (current == null) {
+            throw new IOException(String.format("No answer from time service %s.", socket.getRemoteSocketAddress()));
+        }
+
+        return current;
+    }
+
+    /**
+     * Called by the refreshing reader only.
+     */
+    private Sample querySample() throws IOException {
+        Sample current = sample;
+
+        if (current != null && System.nanoTime() - nextRefreshNanos < 0) {
+            // another reader has just refreshed it
+            return current;
+        }
+
+        Sample best = null;
+        IOException failure = null;
+
+        for (int i = 0; i < QUERIES_PER_REFRESH; i++) {
+            try {
+                Sample next = query();
+
+                if (next != null && (best == null || next.error < best.error)) {
+                    best = next;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        nextRefreshNanos = System.nanoTime() + refreshIntervalNanos;
+
+        if (best != null) {
+            sample = best;
+            return best;
+        }
+
+        if (current == null) {
+            throw failure != null ? failure : new IOException(String.format("No answer from time service %s.", socket.getRemoteSocketAddress()));
+        }
+
+        if (REFRESH_LOG.tryAcquire()) {
+            LOG.warn("Time service {} did not answer, interpolating a {} ms old sample ({} similar suppressed).",
+                    socket.getRemoteSocketAddress(), (System.nanoTime() - current.nanos) / 1000000, REFRESH_LOG.takeSuppressed());
+        }
+
+        return current;
+    }
+
+    /**
+     * @return null if no answer to this query came in time
+     */
+    private Sample query() throws IOException {
+        long origin = System.nanoTime();
+
+        buffer.clear();
+        TimeQueryCodec.encodeQuery(origin, buffer);
+        packet.setData(data, 0, TimeQueryCodec.QUERY_SIZE);
+        socket.send(packet);
+
+        while (true) {
+            packet.setData(data, 0, data.length);
+
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+
+            long arrival = System.nanoTime();
+
+            buffer.clear();
+            buffer.limit(packet.getLength());
+
+            // answers to earlier queries which timed out are skipped
+            if (!codec.decodeResponse(buffer) || codec.getOrigin() != origin) {
+                continue;
+            }
+
+            double rate = codec.getRate();
+            double roundTrip = Math.max(0, (arrival - origin) / 1e6 - (codec.getTransmitTime() - codec.getReceiveTime()) / rate);
+            boolean synchronizedService = (codec.getFlags() & TimeQueryCodec.FLAG_UNSYNCHRONIZED) == 0;
+
+            return new Sample(codec.getTransmitTime() + rate * roundTrip / 2, arrival, rate,
+                    synchronizedService ? codec.getError() + roundTrip / 2 : Double.POSITIVE_INFINITY);
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
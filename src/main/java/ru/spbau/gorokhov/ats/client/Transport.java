@@ -0,0 +1,23 @@
+package ru.spbau.gorokhov.ats.client;
+
+import java.io.IOException;
+
+/**
+ * How clients exchange gossip packets and reach the coordinator: {@link SocketTransport} over the network,
+ * or {@link MemoryTransport} between clients and coordinators of the same JVM.
+ */
+public interface Transport {
+    /**
+     * Binds an endpoint, it gets packets once {@link DatagramEndpoint#start(Runnable) started}.
+     *
+     * @param port              zero picks a free one
+     * @param receiveBufferSize room for packets not received yet in bytes, zero keeps the transport's default
+     */
+    DatagramEndpoint open(ClientRuntime runtime, int port, int receiveBufferSize) throws IOException;
+
+    /**
+     * Starts connecting a stream to the coordinator, the stream tells it is connected once
+     * {@link StreamEndpoint#start(Runnable) started}.
+     */
+    StreamEndpoint connect(ClientRuntime runtime, String host, int port) throws IOException;
+}
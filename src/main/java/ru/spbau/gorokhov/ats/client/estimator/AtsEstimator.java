@@ -0,0 +1,339 @@
+package ru.spbau.gorokhov.ats.client.estimator;
+
+import lombok.Getter;
+import ru.spbau.gorokhov.ats.model.AddressKeys;
+
+/**
+ * Average TimeSync update rules: virtual time is {@code skew * localTime + offsetError}.
+ * Neighbours are identified by packed address keys, see {@link AddressKeys}.
+ * Updates must come from one thread at a time, while {@link #getEstimate()} and {@link #getTime(long)} may be read
+ * from any thread: the estimate is published to them through a seqlock, so publishing allocates nothing and a reader
+ * only retries while a publish is in progress.
+ */
+public class AtsEstimator {
+    public static final long STAGE_TIME = 50000;
+
+    // weight of the latest disagreement with a neighbour in the dispersion
+    private static final double DISPERSION_WEIGHT = 0.1;
+
+    @Getter
+    private final EstimatorConfig config;
+
+    // assumed one-way delay of neighbours without round trip measurements
+    @Getter
+    private final long packetDeliveryDelay;
+
+    @Getter
+    private final NeighbourTable neighbours;
+
+    private final RelativeSkewEstimator relativeSkewEstimator;
+
+    private double skew = 1;
+    private double offsetError = 0;
+
+    // convergence staging: skew updates in a row which changed it by less than the tolerance
+    private int settledSkewUpdates = 0;
+
+    // mean distance in ms between the virtual time of neighbours and our own at offset updates, negative before the first one
+    @Getter
+    private volatile double dispersion = -1;
+
+    // published copy of skew and offsetError for lock-free readers, the sequence is odd while it is being written
+    private volatile long sequence = 0;
+    private volatile double publishedSkew = skew;
+    private volatile double publishedOffsetError = offsetError;
+
+    // within a batch the estimate is published once, at its end
+    private boolean batching = false;
+    private boolean unpublished = false;
+
+    public AtsEstimator(long packetDeliveryDelay, EstimatorConfig config) {
+        this.packetDeliveryDelay = packetDeliveryDelay;
+        this.config = config;
+
+        switch (config.getRelativeSkew()) {
+            case REGRESSION:
+                // a slope needs two samples
+                if (config.getSkewWindow() < 2) {
+                    throw new IllegalArgumentException(String.format("Skew window must be at least 2, got %d.", config.getSkewWindow()));
+                }
+
+                neighbours = new NeighbourTable(0, config.getSkewWindow());
+                relativeSkewEstimator = new RegressionRelativeSkew(neighbours, config);
+                break;
+
+            default:
+                neighbours = new NeighbourTable();
+                relativeSkewEstimator = new ExponentialRelativeSkew(neighbours, config);
+                break;
+        }
+    }
+
+    public AtsEstimator(long packetDeliveryDelay) {
+        this(packetDeliveryDelay, new EstimatorConfig());
+    }
+
+    public int slotFor(long clientKey) {
+        return neighbours.slotFor(clientKey);
+    }
+
+    /**
+     * Takes the timestamp exchange part of a packet: the neighbour's send stamp, and the echo of our own earlier
+     * send stamp with the time the neighbour held it. All stamps are {@code System.nanoTime()} values,
+     * zero echo means the neighbour has not heard from us yet.
+     */
+    public void recordRoundTrip(int slot, long sendStamp, long echoStamp, long echoHold, long receiveNanos) {
+        neighbours.setLastStamps(slot, sendStamp, receiveNanos);
+
+        if (echoStamp == 0) {
+            return;
+        }
+
+        long roundTrip = receiveNanos - echoStamp - echoHold;
+
+        if (roundTrip >= 0) {
+            neighbours.addDelaySample(slot, roundTrip / 2);
+        }
+    }
+
+    public void process(long clientKey, long clientTime, double clientSkew, double clientOffsetError, long localTime, long workTime) {
+        process(neighbours.slotFor(clientKey), clientTime, clientSkew, clientOffsetError, localTime, workTime);
+    }
+
+    /**
+     * @param localTime local clock reading at receiving, delivery delay is compensated here
+     * @param workTime  how long the client works, only fixed staging looks at it
+     */
+    public void process(int slot, long clientTime, double clientSkew, double clientOffsetError, long localTime, long workTime) {
+        switch (config.getStaging()) {
+            case FIXED:
+                processFixed(slot, clientTime, clientSkew, clientOffsetError, localTime, workTime);
+                break;
+
+            case CONCURRENT:
+                processConcurrent(slot, clientTime, clientSkew, clientOffsetError, localTime);
+                break;
+
+            case CONVERGENCE:
+                processConvergence(slot, clientTime, clientSkew, clientOffsetError, localTime);
+                break;
+        }
+
+        neighbours.setLastTimes(slot, clientTime, localTime);
+    }
+
+    private void processFixed(int slot, long clientTime, double clientSkew, double clientOffsetError, long localTime, long workTime) {
+        long stageTime = config.getStageTime();
+
+        if (workTime < stageTime && neighbours.getPackets(slot) > 0) {
+            updateRelativeSkew(slot, clientTime, localTime);
+        } else if (workTime > stageTime && workTime < 2 * stageTime) {
+            updateSkew(slot, clientSkew);
+            publish();
+        } else if (workTime > 2 * stageTime) {
+            updateOffsetError(slot, clientTime, clientSkew, clientOffsetError, localTime);
+            publish();
+        }
+    }
+
+    private void processConcurrent(int slot, long clientTime, double clientSkew, double clientOffsetError, long localTime) {
+        if (neighbours.getPackets(slot) == 0) {
+            return;
+        }
+
+        updateRelativeSkew(slot, clientTime, localTime);
+        updateSkewContinuously(slot, clientSkew, localTime);
+        updateOffsetError(slot, clientTime, clientSkew, clientOffsetError, localTime);
+        publish();
+    }
+
+    private void processConvergence(int slot, long clientTime, double clientSkew, double clientOffsetError, long localTime) {
+        if (neighbours.getPackets(slot) == 0) {
+            return;
+        }
+
+        int settled = config.getSettledUpdates();
+
+        double change = updateRelativeSkew(slot, clientTime, localTime);
+        if (change >= 0) {
+            neighbours.setSettledUpdates(slot, change < config.getRelativeSkewTolerance() ? neighbours.getSettledUpdates(slot) + 1 : 0);
+        }
+
+        if (neighbours.getSettledUpdates(slot) < settled) {
+            return;
+        }
+
+        if (settledSkewUpdates < settled) {
+            double skewChange = updateSkewContinuously(slot, clientSkew, localTime);
+            settledSkewUpdates = skewChange < config.getSkewTolerance() ? settledSkewUpdates + 1 : 0;
+        } else {
+            // once offsets are compensated the skew keeps following the neighbours, but does not gate anything anymore
+            updateSkewContinuously(slot, clientSkew, localTime);
+            updateOffsetError(slot, clientTime, clientSkew, clientOffsetError, localTime);
+        }
+
+        publish();
+    }
+
+    /**
+     * @return absolute change of the relative skew, negative if the packet gave no sample
+     */
+    private double updateRelativeSkew(int slot, long clientTime, long localTime) {
+        return relativeSkewEstimator.update(slot, clientTime, localTime);
+    }
+
+    /**
+     * @return absolute change of the skew
+     */
+    private double updateSkew(int slot, double clientSkew) {
+        double tune = config.getSkewTune();
+
+        double newSkew = tune * skew + (1 - tune) * neighbours.getRelativeSkew(slot) * clientSkew;
+        double change = Math.abs(newSkew - skew);
+        skew = newSkew;
+
+        return change;
+    }
+
+    /**
+     * Skew update which keeps the virtual time at {@code localTime} where it was, so with stages overlapping
+     * the noise of a skew update changes only the rate of the virtual clock rather than its reading.
+     */
+    private double updateSkewContinuously(int slot, double clientSkew, long localTime) {
+        double prevSkew = skew;
+        double change = updateSkew(slot, clientSkew);
+        offsetError += (prevSkew - skew) * localTime;
+
+        return change;
+    }
+
+    private void updateOffsetError(int slot, long clientTime, double clientSkew, double clientOffsetError, long localTime) {
+        double sendLocalTime = localTime - getDeliveryDelay(slot);
+        double disagreement = clientSkew * clientTime + clientOffsetError - skew * sendLocalTime - offsetError;
+
+        offsetError = offsetError + (1 - config.getOffsetErrorTune()) * disagreement;
+        dispersion = dispersion < 0 ? Math.abs(disagreement) : (1 - DISPERSION_WEIGHT) * dispersion + DISPERSION_WEIGHT * Math.abs(disagreement);
+    }
+
+    /**
+     * @return measured one-way delay to the neighbour in milliseconds, or the assumed one if it is not measured yet
+     */
+    public double getDeliveryDelay(int slot) {
+        long delayNanos = neighbours.getDelayNanos(slot);
+
+        return delayNanos < 0 ? packetDeliveryDelay : delayNanos / 1e6;
+    }
+
+    /**
+     * Updates until {@link #finishBatch()} are published together, readers see either none or all of them.
+     */
+    public void startBatch() {
+        batching = true;
+    }
+
+    public void finishBatch() {
+        batching = false;
+
+        if (unpublished) {
+            publish();
+        }
+    }
+
+    public void restore(EstimatorSnapshot snapshot) {
+        skew = snapshot.getSkew();
+        offsetError = snapshot.getOffsetError();
+
+        // the saved estimate had time to settle, convergence staging picks up where it stopped
+        settledSkewUpdates = config.getSettledUpdates();
+
+        for (int i = 0; i < snapshot.getNeighbourCount(); i++) {
+            int slot = neighbours.restore(snapshot.getKeys()[i], snapshot.getRelativeSkews()[i], snapshot.getPackets()[i],
+                    snapshot.getLastClientTimes()[i], snapshot.getLastLocalTimes()[i], snapshot.getDelayNanos()[i]);
+            neighbours.setSettledUpdates(slot, config.getSettledUpdates());
+        }
+
+        publish();
+    }
+
+    private void publish() {
+        if (batching) {
+            unpublished = true;
+            return;
+        }
+
+        unpublished = false;
+
+        long next = sequence + 1;
+        sequence = next;
+        publishedSkew = skew;
+        publishedOffsetError = offsetError;
+        sequence = next + 1;
+    }
+
+    /**
+     * @return copy of the published skew and offset error, taken together
+     */
+    public ClockEstimate getEstimate() {
+        while (true) {
+            long start = sequence;
+            double skew = publishedSkew;
+            double offsetError = publishedOffsetError;
+
+            if ((start & 1) == 0 && sequence == start) {
+                return new ClockEstimate(skew, offsetError);
+            }
+        }
+    }
+
+    /**
+     * Same as {@code getEstimate().getTime(localTime)} without the copy.
+     */
+    public long getTime(long localTime) {
+        while (true) {
+            long start = sequence;
+            double skew = publishedSkew;
+            double offsetError = publishedOffsetError;
+
+            if ((start & 1) == 0 && sequence == start) {
+                return (long) (skew * localTime + offsetError);
+            }
+        }
+    }
+
+    /**
+     * Converts fractional local times to synchronized time like {@code getEstimate().getTimes}, all of them
+     * with the same estimate and without the copy.
+     *
+     * @return skew of the estimate the times were converted with
+     */
+    public double getTimes(double[] localTimes, double[] result) {
+        while (true) {
+            long start = sequence;
+            double skew = publishedSkew;
+            double offsetError = publishedOffsetError;
+
+            for (int i = 0; i < localTimes.length; i++) {
+                result[i] = skew * localTimes[i] + offsetError;
+            }
+
+            if ((start & 1) == 0 && sequence == start) {
+                return skew;
+            }
+        }
+    }
+
+    public String neighboursToString() {
+        StringBuilder result = new StringBuilder("{");
+
+        for (int slot = 0; slot < neighbours.size(); slot++) {
+            if (slot > 0) {
+                result.append(", ");
+            }
+            result.append(AddressKeys.toString(neighbours.getKey(slot)))
+                    .append("=(relativeSkew=").append(neighbours.getRelativeSkew(slot))
+                    .append(", delay=").append(getDeliveryDelay(slot)).append(')');
+        }
+
+        return result.append('}').toString();
+    }
+}
@@ -0,0 +1,25 @@
+package ru.spbau.gorokhov.ats.client.estimator;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+@Getter
+@ToString
+@EqualsAndHashCode
+@RequiredArgsConstructor
+public class ClockEstimate {
+    private final double skew;
+    private final double offsetError;
+
+    public long getTime(long localTime) {
+        return (long) (skew * localTime + offsetError);
+    }
+
+    public void getTimes(long[] localTimes, long[] result) {
+        for (int i = 0; i < localTimes.length; i++) {
+            result[i] = (long) (skew * localTimes[i] + offsetError);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ru.spbau.gorokhov.ats.client.estimator;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+@Getter
+@Setter
+@Accessors(chain = true)
+public class EstimatorConfig {
+    public enum Staging {
+        // relative skew, skew consensus and offset compensation each take a fixed stage of work time
+        FIXED,
+        // every packet runs all three updates, as in the ATS paper
+        CONCURRENT,
+        // a neighbour joins skew consensus once its relative skew settles, offsets are compensated once the skew settles
+        CONVERGENCE
+    }
+
+    public enum RelativeSkew {
+        // exponential average of the rate between consecutive packets
+        EXPONENTIAL,
+        // least squares slope over a window of packet times
+        REGRESSION
+    }
+
+    private Staging staging = Staging.CONCURRENT;
+
+    private RelativeSkew relativeSkew = RelativeSkew.EXPONENTIAL;
+
+    // packet times per neighbour the regression is taken over, at least 2
+    private int skewWindow = 16;
+
+    // weights of the old value in the exponential averages
+    private double relativeSkewTune = 0.6;
+    private double skewTune = 0.6;
+    private double offsetErrorTune = 0.6;
+
+    // packets of a neighbour closer than this to the base of the sample give no relative skew sample, at ms resolution
+    // such intervals are mostly noise and a zero one makes the rate infinite; the base stays until a packet is far enough
+    private long minSkewInterval = 500;
+
+    // length of each stage in fixed staging, ms
+    private long stageTime = AtsEstimator.STAGE_TIME;
+
+    // convergence staging: a value is settled after this many updates in a row changed it by less than the tolerance
+    private int settledUpdates = 2;
+    private double relativeSkewTolerance = 1e-3;
+    private double skewTolerance = 3e-4;
+}
@@ -0,0 +1,32 @@
+package ru.spbau.gorokhov.ats.client.estimator;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Estimator state read back from a {@link SnapshotFile}, with the local clock it was estimated against.
+ */
+@Getter
+@RequiredArgsConstructor
+public class EstimatorSnapshot {
+    // real time of writing
+    private final long writtenAt;
+    private final long workTime;
+
+    private final double clockSkew;
+    private final double clockOffset;
+
+    private final double skew;
+    private final double offsetError;
+
+    private final long[] keys;
+    private final double[] relativeSkews;
+    private final int[] packets;
+    private final long[] lastClientTimes;
+    private final long[] lastLocalTimes;
+    private final long[] delayNanos;
+
+    public int getNeighbourCount() {
+        return keys.length;
+    }
+}
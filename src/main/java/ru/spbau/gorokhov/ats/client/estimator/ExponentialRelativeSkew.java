@@ -0,0 +1,42 @@
+package ru.spbau.gorokhov.ats.client.estimator;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Exponential average of the rate ratios between packets of a neighbour, as in the ATS paper. A ratio is taken over
+ * at least the min skew interval: packets which come sooner leave the base packet of the sample where it is,
+ * so a burst of them, e.g. a ping and its ACK, neither gives a ratio of millisecond noise nor loses the sample.
+ */
+@RequiredArgsConstructor
+class ExponentialRelativeSkew implements RelativeSkewEstimator {
+    private final NeighbourTable neighbours;
+    private final EstimatorConfig config;
+
+    @Override
+    public double update(int slot, long clientTime, long localTime) {
+        double tune = config.getRelativeSkewTune();
+
+        double currentRelativeSkew = neighbours.getRelativeSkew(slot);
+        long baseClientTime = neighbours.getSkewBaseClientTime(slot);
+        long baseLocalTime = neighbours.getSkewBaseLocalTime(slot);
+
+        long localInterval = localTime - baseLocalTime;
+        long clientInterval = clientTime - baseClientTime;
+
+        if (localInterval >= 0 && localInterval < config.getMinSkewInterval()) {
+            return -1;
+        }
+
+        neighbours.setSkewBase(slot, clientTime, localTime);
+
+        // a clock went back, the next sample starts from this packet
+        if (localInterval <= 0 || clientInterval <= 0) {
+            return -1;
+        }
+
+        double newRelativeSkew = tune * currentRelativeSkew + (1 - tune) * clientInterval / localInterval;
+        neighbours.setRelativeSkew(slot, newRelativeSkew);
+
+        return Math.abs(newRelativeSkew - currentRelativeSkew);
+    }
+}
@@ -0,0 +1,364 @@
+package ru.spbau.gorokhov.ats.client.estimator;
+
+import ru.spbau.gorokhov.ats.utils.Hashing;
+
+import java.util.Arrays;
+
+/**
+ * Estimator state of neighbours keyed by packed addresses (see {@link ru.spbau.gorokhov.ats.model.AddressKeys}).
+ * The state is stored column-wise in dense primitive arrays, indexed by an open-addressed hash index,
+ * so a lookup is one probe sequence and nothing is allocated until the table grows.
+ * Not thread-safe.
+ */
+public class NeighbourTable {
+    private static final int DEFAULT_CAPACITY = 8;
+
+    // min filter window of one-way delay samples
+    static final int DELAY_WINDOW = 8;
+
+    private long[] indexKeys;
+    // slot + 1, zero marks an empty cell
+    private int[] indexSlots;
+    private int indexMask;
+
+    private int size = 0;
+
+    private long[] keys;
+    private int[] packets;
+
+    private double[] relativeSkew;
+    // updates in a row which changed the relative skew by less than the tolerance
+    private int[] settledUpdates;
+    private long[] lastClientTime;
+    private long[] lastLocalTime;
+    // packet the next exponential relative skew sample is measured from
+    private long[] skewBaseClientTime;
+    private long[] skewBaseLocalTime;
+
+    private long[] lastRemoteStamp;
+    private long[] lastReceiveNanos;
+
+    private long[] delaySamples;
+    private int[] delaySampleCount;
+    private long[] delayNanos;
+
+    // windows of timestamp pairs for regression of the relative skew, null if it is not used
+    private final SkewSamples skewSamples;
+
+    /**
+     * @param skewWindow timestamp pairs kept per neighbour for regression of the relative skew, zero keeps none
+     */
+    public NeighbourTable(int expectedSize, int skewWindow) {
+        int capacity = Math.max(DEFAULT_CAPACITY, expectedSize);
+
+        keys = new long[capacity];
+        packets = new int[capacity];
+        relativeSkew = new double[capacity];
+        settledUpdates = new int[capacity];
+        lastClientTime = new long[capacity];
+        lastLocalTime = new long[capacity];
+        skewBaseClientTime = new long[capacity];
+        skewBaseLocalTime = new long[capacity];
+        lastRemoteStamp = new long[capacity];
+        lastReceiveNanos = new long[capacity];
+        delaySamples = new long[capacity * DELAY_WINDOW];
+        delaySampleCount = new int[capacity];
+        delayNanos = new long[capacity];
+        skewSamples = skewWindow > 0 ? new SkewSamples(skewWindow, capacity) : null;
+
+        allocateIndex(Integer.highestOneBit(2 * capacity - 1) << 1);
+    }
+
+    public NeighbourTable(int expectedSize) {
+        this(expectedSize, 0);
+    }
+
+    public NeighbourTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    private void allocateIndex(int cells) {
+        indexKeys = new long[cells];
+        indexSlots = new int[cells];
+        indexMask = cells - 1;
+    }
+
+    private static int hash(long key) {
+        return (int) Hashing.mix(key);
+    }
+
+    /**
+     * @return slot of the key, or -1 if it is absent
+     */
+    public int slotOf(long key) {
+        for (int cell = hash(key) & indexMask; indexSlots[cell] != 0; cell = (cell + 1) & indexMask) {
+            if (indexKeys[cell] == key) {
+                return indexSlots[cell] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return slot of the key, a new one with relative skew 1 and no packets if the key is absent
+     */
+    public int slotFor(long key) {
+        int cell = hash(key) & indexMask;
+
+        for (; indexSlots[cell] != 0; cell = (cell + 1) & indexMask) {
+            if (indexKeys[cell] == key) {
+                return indexSlots[cell] - 1;
+            }
+        }
+
+        if (size == keys.length) {
+            grow();
+        }
+
+        int slot = size++;
+
+        keys[slot] = key;
+        packets[slot] = 0;
+        relativeSkew[slot] = 1;
+        settledUpdates[slot] = 0;
+        lastClientTime[slot] = 0;
+        lastLocalTime[slot] = 0;
+        skewBaseClientTime[slot] = 0;
+        skewBaseLocalTime[slot] = 0;
+        lastRemoteStamp[slot] = 0;
+        lastReceiveNanos[slot] = 0;
+        delaySampleCount[slot] = 0;
+        delayNanos[slot] = -1;
+        if (skewSamples != null) {
+            skewSamples.reset(slot);
+        }
+
+        if (2 * size > indexKeys.length) {
+            rebuildIndex(2 * indexKeys.length);
+        } else {
+            indexKeys[cell] = key;
+            indexSlots[cell] = slot + 1;
+        }
+
+        return slot;
+    }
+
+    private void grow() {
+        int capacity = 2 * keys.length;
+
+        keys = Arrays.copyOf(keys, capacity);
+        packets = Arrays.copyOf(packets, capacity);
+        relativeSkew = Arrays.copyOf(relativeSkew, capacity);
+        settledUpdates = Arrays.copyOf(settledUpdates, capacity);
+        lastClientTime = Arrays.copyOf(lastClientTime, capacity);
+        lastLocalTime = Arrays.copyOf(lastLocalTime, capacity);
+        skewBaseClientTime = Arrays.copyOf(skewBaseClientTime, capacity);
+        skewBaseLocalTime = Arrays.copyOf(skewBaseLocalTime, capacity);
+        lastRemoteStamp = Arrays.copyOf(lastRemoteStamp, capacity);
+        lastReceiveNanos = Arrays.copyOf(lastReceiveNanos, capacity);
+        delaySamples = Arrays.copyOf(delaySamples, capacity * DELAY_WINDOW);
+        delaySampleCount = Arrays.copyOf(delaySampleCount, capacity);
+        delayNanos = Arrays.copyOf(delayNanos, capacity);
+        if (skewSamples != null) {
+            skewSamples.grow(capacity);
+        }
+    }
+
+    private void rebuildIndex(int cells) {
+        allocateIndex(cells);
+
+        for (int slot = 0; slot < size; slot++) {
+            int cell = hash(keys[slot]) & indexMask;
+            while (indexSlots[cell] != 0) {
+                cell = (cell + 1) & indexMask;
+            }
+            indexKeys[cell] = keys[slot];
+            indexSlots[cell] = slot + 1;
+        }
+    }
+
+    /**
+     * Removes the neighbour in the slot, the last neighbour takes its slot.
+     */
+    public void remove(int slot) {
+        removeFromIndex(keys[slot]);
+
+        int last = --size;
+
+        if (slot == last) {
+            return;
+        }
+
+        keys[slot] = keys[last];
+        packets[slot] = packets[last];
+        relativeSkew[slot] = relativeSkew[last];
+        settledUpdates[slot] = settledUpdates[last];
+        lastClientTime[slot] = lastClientTime[last];
+        lastLocalTime[slot] = lastLocalTime[last];
+        skewBaseClientTime[slot] = skewBaseClientTime[last];
+        skewBaseLocalTime[slot] = skewBaseLocalTime[last];
+        lastRemoteStamp[slot] = lastRemoteStamp[last];
+        lastReceiveNanos[slot] = lastReceiveNanos[last];
+        System.arraycopy(delaySamples, last * DELAY_WINDOW, delaySamples, slot * DELAY_WINDOW, DELAY_WINDOW);
+        delaySampleCount[slot] = delaySampleCount[last];
+        delayNanos[slot] = delayNanos[last];
+        if (skewSamples != null) {
+            skewSamples.move(last, slot);
+        }
+
+        int cell = hash(keys[slot]) & indexMask;
+        while (indexKeys[cell] != keys[slot] || indexSlots[cell] == 0) {
+            cell = (cell + 1) & indexMask;
+        }
+        indexSlots[cell] = slot + 1;
+    }
+
+    private void removeFromIndex(long key) {
+        int cell = hash(key) & indexMask;
+        while (indexKeys[cell] != key || indexSlots[cell] == 0) {
+            cell = (cell + 1) & indexMask;
+        }
+
+        // backward shift: move up every following key which may not be probed past the hole
+        for (int next = (cell + 1) & indexMask; indexSlots[next] != 0; next = (next + 1) & indexMask) {
+            int home = hash(indexKeys[next]) & indexMask;
+
+            if (((next - home) & indexMask) >= ((next - cell) & indexMask)) {
+                indexKeys[cell] = indexKeys[next];
+                indexSlots[cell] = indexSlots[next];
+                cell = next;
+            }
+        }
+
+        indexSlots[cell] = 0;
+    }
+
+    public void clear() {
+        Arrays.fill(indexSlots, 0);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return null if the table keeps no timestamp pairs
+     */
+    SkewSamples getSkewSamples() {
+        return skewSamples;
+    }
+
+    public long getKey(int slot) {
+        return keys[slot];
+    }
+
+    public int getPackets(int slot) {
+        return packets[slot];
+    }
+
+    public double getRelativeSkew(int slot) {
+        return relativeSkew[slot];
+    }
+
+    public void setRelativeSkew(int slot, double value) {
+        relativeSkew[slot] = value;
+    }
+
+    public int getSettledUpdates(int slot) {
+        return settledUpdates[slot];
+    }
+
+    public void setSettledUpdates(int slot, int value) {
+        settledUpdates[slot] = value;
+    }
+
+    public long getLastClientTime(int slot) {
+        return lastClientTime[slot];
+    }
+
+    public long getLastLocalTime(int slot) {
+        return lastLocalTime[slot];
+    }
+
+    /**
+     * Records a packet, the first one of a neighbour is also the base of its first relative skew sample.
+     */
+    public void setLastTimes(int slot, long clientTime, long localTime) {
+        if (packets[slot] == 0) {
+            setSkewBase(slot, clientTime, localTime);
+        }
+
+        lastClientTime[slot] = clientTime;
+        lastLocalTime[slot] = localTime;
+        packets[slot]++;
+    }
+
+    public long getSkewBaseClientTime(int slot) {
+        return skewBaseClientTime[slot];
+    }
+
+    public long getSkewBaseLocalTime(int slot) {
+        return skewBaseLocalTime[slot];
+    }
+
+    public void setSkewBase(int slot, long clientTime, long localTime) {
+        skewBaseClientTime[slot] = clientTime;
+        skewBaseLocalTime[slot] = localTime;
+    }
+
+    public long getLastRemoteStamp(int slot) {
+        return lastRemoteStamp[slot];
+    }
+
+    public long getLastReceiveNanos(int slot) {
+        return lastReceiveNanos[slot];
+    }
+
+    public void setLastStamps(int slot, long remoteStamp, long receiveNanos) {
+        lastRemoteStamp[slot] = remoteStamp;
+        lastReceiveNanos[slot] = receiveNanos;
+    }
+
+    /**
+     * @return minimum over the last {@link #DELAY_WINDOW} one-way delay samples, or -1 if there are none
+     */
+    public long getDelayNanos(int slot) {
+        return delayNanos[slot];
+    }
+
+    /**
+     * Puts back a neighbour saved earlier, its timestamp exchange starts over.
+     *
+     * @param delayNanos -1 if the delay was not measured
+     */
+    public int restore(long key, double relativeSkew, int packets, long lastClientTime, long lastLocalTime, long delayNanos) {
+        int slot = slotFor(key);
+
+        this.relativeSkew[slot] = relativeSkew;
+        this.packets[slot] = packets;
+        this.lastClientTime[slot] = lastClientTime;
+        this.lastLocalTime[slot] = lastLocalTime;
+        setSkewBase(slot, lastClientTime, lastLocalTime);
+
+        if (delayNanos >= 0) {
+            addDelaySample(slot, delayNanos);
+        }
+
+        return slot;
+    }
+
+    public void addDelaySample(int slot, long sampleNanos) {
+        int base = slot * DELAY_WINDOW;
+        int count = delaySampleCount[slot];
+
+        delaySamples[base + count % DELAY_WINDOW] = sampleNanos;
+        delaySampleCount[slot] = count + 1 < 2 * DELAY_WINDOW ? count + 1 : DELAY_WINDOW;
+
+        long min = Long.MAX_VALUE;
+        for (int i = Math.min(count + 1, DELAY_WINDOW) - 1; i >= 0; i--) {
+            min = Math.min(min, delaySamples[base + i]);
+        }
+        delayNanos[slot] = min;
+    }
+}
@@ -0,0 +1,38 @@
+package ru.spbau.gorokhov.ats.client.estimator;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Least squares slope of client time over local time across the last {@link EstimatorConfig#getSkewWindow()} samples
+ * of a neighbour. Every sample weighs the same, so the millisecond rounding of one packet moves the estimate
+ * by a window's share instead of the {@code 1 - relativeSkewTune} share it has in the exponential average,
+ * and an old sample leaves the estimate entirely once it falls out of the window.
+ */
+@RequiredArgsConstructor
+class RegressionRelativeSkew implements RelativeSkewEstimator {
+    private final NeighbourTable neighbours;
+    private final EstimatorConfig config;
+
+    @Override
+    public double update(int slot, long clientTime, long localTime) {
+        SkewSamples samples = neighbours.getSkewSamples();
+
+        // samples are spaced by the min interval from each other rather than from the previous packet
+        if (samples.size(slot) > 0 && (localTime - samples.getLastLocalTime(slot) < config.getMinSkewInterval()
+                || clientTime <= samples.getLastClientTime(slot))) {
+            return -1;
+        }
+
+        samples.add(slot, localTime, clientTime);
+
+        double newRelativeSkew = samples.slope(slot);
+        if (Double.isNaN(newRelativeSkew)) {
+            return -1;
+        }
+
+        double currentRelativeSkew = neighbours.getRelativeSkew(slot);
+        neighbours.setRelativeSkew(slot, newRelativeSkew);
+
+        return Math.abs(newRelativeSkew - currentRelativeSkew);
+    }
+}
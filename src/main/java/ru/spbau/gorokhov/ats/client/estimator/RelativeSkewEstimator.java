@@ -0,0 +1,13 @@
+package ru.spbau.gorokhov.ats.client.estimator;
+
+/**
+ * Estimates the rate of a neighbour's clock relative to the local one from the times of its packets
+ * and stores it in the {@link NeighbourTable}. Called before the packet times are recorded in the table,
+ * an estimator keeps the packets it measures from itself.
+ */
+interface RelativeSkewEstimator {
+    /**
+     * @return absolute change of the relative skew, negative if the packet gave no sample
+     */
+    double update(int slot, long clientTime, long localTime);
+}
@@ -0,0 +1,185 @@
+package ru.spbau.gorokhov.ats.client.estimator;
+
+import java.util.Arrays;
+
+/**
+ * Per slot rings of the last (local time, client time) pairs of a neighbour with running least squares sums over them,
+ * stored column-wise like {@link NeighbourTable} which owns it. Times are kept relative to a base sample of the slot,
+ * so with millisecond times every sum is an exact integer in a double and adding or evicting a sample is O(1)
+ * without drift. The base is moved to the oldest sample once per window of samples to keep the terms small.
+ * Not thread-safe.
+ */
+class SkewSamples {
+    private final int window;
+
+    private long[] localTimes;
+    private long[] clientTimes;
+    // index in the ring of the oldest sample
+    private int[] start;
+    private int[] count;
+    private int[] sinceRebase;
+
+    private long[] baseLocalTime;
+    private long[] baseClientTime;
+
+    private double[] sumX;
+    private double[] sumY;
+    private double[] sumXX;
+    private double[] sumXY;
+
+    SkewSamples(int window, int capacity) {
+        this.window = window;
+
+        localTimes = new long[capacity * window];
+        clientTimes = new long[capacity * window];
+        start = new int[capacity];
+        count = new int[capacity];
+        sinceRebase = new int[capacity];
+        baseLocalTime = new long[capacity];
+        baseClientTime = new long[capacity];
+        sumX = new double[capacity];
+        sumY = new double[capacity];
+        sumXX = new double[capacity];
+        sumXY = new double[capacity];
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    void grow(int capacity) {
+        localTimes = Arrays.copyOf(localTimes, capacity * window);
+        clientTimes = Arrays.copyOf(clientTimes, capacity * window);
+        start = Arrays.copyOf(start, capacity);
+        count = Arrays.copyOf(count, capacity);
+        sinceRebase = Arrays.copyOf(sinceRebase, capacity);
+        baseLocalTime = Arrays.copyOf(baseLocalTime, capacity);
+        baseClientTime = Arrays.copyOf(baseClientTime, capacity);
+        sumX = Arrays.copyOf(sumX, capacity);
+        sumY = Arrays.copyOf(sumY, capacity);
+        sumXX = Arrays.copyOf(sumXX, capacity);
+        sumXY = Arrays.copyOf(sumXY, capacity);
+    }
+
+    void reset(int slot) {
+        start[slot] = 0;
+        count[slot] = 0;
+        sinceRebase[slot] = 0;
+        sumX[slot] = 0;
+        sumY[slot] = 0;
+        sumXX[slot] = 0;
+        sumXY[slot] = 0;
+    }
+
+    void move(int from, int to) {
+        System.arraycopy(localTimes, from * window, localTimes, to * window, window);
+        System.arraycopy(clientTimes, from * window, clientTimes, to * window, window);
+        start[to] = start[from];
+        count[to] = count[from];
+        sinceRebase[to] = sinceRebase[from];
+        baseLocalTime[to] = baseLocalTime[from];
+        baseClientTime[to] = baseClientTime[from];
+        sumX[to] = sumX[from];
+        sumY[to] = sumY[from];
+        sumXX[to] = sumXX[from];
+        sumXY[to] = sumXY[from];
+    }
+
+    int size(int slot) {
+        return count[slot];
+    }
+
+    /**
+     * Only meaningful if the slot has samples.
+     */
+    long getLastLocalTime(int slot) {
+        return localTimes[slot * window + (start[slot] + count[slot] - 1) % window];
+    }
+
+    long getLastClientTime(int slot) {
+        return clientTimes[slot * window + (start[slot] + count[slot] - 1) % window];
+    }
+
+    /**
+     * Adds a sample, evicting the oldest one if the window is full.
+     */
+    void add(int slot, long localTime, long clientTime) {
+        int base = slot * window;
+
+        if (count[slot] == 0) {
+            baseLocalTime[slot] = localTime;
+            baseClientTime[slot] = clientTime;
+        }
+
+        if (count[slot] == window) {
+            int oldest = base + start[slot];
+            subtract(slot, localTimes[oldest], clientTimes[oldest]);
+            start[slot] = (start[slot] + 1) % window;
+            count[slot]--;
+        }
+
+        int index = base + (start[slot] + count[slot]) % window;
+        localTimes[index] = localTime;
+        clientTimes[index] = clientTime;
+        count[slot]++;
+
+        if (++sinceRebase[slot] >= window) {
+            rebase(slot);
+        } else {
+            double x = localTime - baseLocalTime[slot];
+            double y = clientTime - baseClientTime[slot];
+            sumX[slot] += x;
+            sumY[slot] += y;
+            sumXX[slot] += x * x;
+            sumXY[slot] += x * y;
+        }
+    }
+
+    private void subtract(int slot, long localTime, long clientTime) {
+        double x = localTime - baseLocalTime[slot];
+        double y = clientTime - baseClientTime[slot];
+        sumX[slot] -= x;
+        sumY[slot] -= y;
+        sumXX[slot] -= x * x;
+        sumXY[slot] -= x * y;
+    }
+
+    private void rebase(int slot) {
+        int base = slot * window;
+        int oldest = base + start[slot];
+
+        baseLocalTime[slot] = localTimes[oldest];
+        baseClientTime[slot] = clientTimes[oldest];
+        sinceRebase[slot] = 0;
+
+        double x = 0, y = 0, xx = 0, xy = 0;
+        for (int i = 0; i < count[slot]; i++) {
+            int index = base + (start[slot] + i) % window;
+            double dx = localTimes[index] - baseLocalTime[slot];
+            double dy = clientTimes[index] - baseClientTime[slot];
+            x += dx;
+            y += dy;
+            xx += dx * dx;
+            xy += dx * dy;
+        }
+
+        sumX[slot] = x;
+        sumY[slot] = y;
+        sumXX[slot] = xx;
+        sumXY[slot] = xy;
+    }
+
+    /**
+     * @return least squares slope of client time over local time in the window, NaN if it is not defined
+     */
+    double slope(int slot) {
+        int n = count[slot];
+        double denominator = n * sumXX[slot] - sumX[slot] * sumX[slot];
+
+        if (n < 2 || denominator <= 0) {
+            return Double.NaN;
+        }
+
+        return (n * sumXY[slot] - sumX[slot] * sumY[slot]) / denominator;
+    }
+}
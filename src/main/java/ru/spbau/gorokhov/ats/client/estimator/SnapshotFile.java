@@ -0,0 +1,175 @@
+package ru.spbau.gorokhov.ats.client.estimator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Small memory-mapped file with two slots for estimator snapshots. Each save goes to the older slot,
+ * so a crash in the middle of a write leaves the previous snapshot intact; slots are told apart
+ * by sequence numbers and checked with CRC32. Writes are not forced to disk, they only have to
+ * survive the process, not the machine.
+ * <pre>
+ * slot: magic:int version:int sequence:long writtenAt:long workTime:long clockSkew:double clockOffset:double
+ *       skew:double offsetError:double count:int crc:int rows
+ * row:  key:long relativeSkew:double packets:int lastClientTime:long lastLocalTime:long delayNanos:long
+ * </pre>
+ */
+public class SnapshotFile implements Closeable {
+    private static final int MAGIC = 0xA75C5AFE;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 72;
+    private static final int ROW_SIZE = 44;
+
+    private static final int COUNT_POSITION = 64;
+    private static final int CRC_POSITION = 68;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    private final int maxNeighbours;
+    private final int slotSize;
+
+    private final CRC32 crc = new CRC32();
+
+    private long sequence;
+    private int nextSlot;
+
+    public SnapshotFile(Path path, int maxNeighbours) throws IOException {
+        this.maxNeighbours = maxNeighbours;
+
+        slotSize = HEADER_SIZE + maxNeighbours * ROW_SIZE;
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2L * slotSize);
+
+        int latest = latestSlot();
+        sequence = latest < 0 ? 0 : buffer.getLong(latest * slotSize + 8);
+        nextSlot = latest == 0 ? 1 : 0;
+    }
+
+    /**
+     * @return the latest valid snapshot, or null if there is none
+     */
+    public EstimatorSnapshot read() {
+        int slot = latestSlot();
+
+        if (slot < 0) {
+            return null;
+        }
+
+        int base = slot * slotSize;
+        int count = buffer.getInt(base + COUNT_POSITION);
+
+        long[] keys = new long[count];
+        double[] relativeSkews = new double[count];
+        int[] packets = new int[count];
+        long[] lastClientTimes = new long[count];
+        long[] lastLocalTimes = new long[count];
+        long[] delayNanos = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            int row = base + HEADER_SIZE + i * ROW_SIZE;
+
+            keys[i] = buffer.getLong(row);
+            relativeSkews[i] = buffer.getDouble(row + 8);
+            packets[i] = buffer.getInt(row + 16);
+            lastClientTimes[i] = buffer.getLong(row + 20);
+            lastLocalTimes[i] = buffer.getLong(row + 28);
+            delayNanos[i] = buffer.getLong(row + 36);
+        }
+
+        return new EstimatorSnapshot(buffer.getLong(base + 16), buffer.getLong(base + 24),
+                buffer.getDouble(base + 32), buffer.getDouble(base + 40),
+                buffer.getDouble(base + 48), buffer.getDouble(base + 56),
+                keys, relativeSkews, packets, lastClientTimes, lastLocalTimes, delayNanos);
+    }
+
+    /**
+     * Must not run concurrently with updates of the estimator. Neighbours beyond the file's capacity are skipped.
+     */
+    public void write(AtsEstimator estimator, double clockSkew, double clockOffset, long workTime, long realTime) {
+        NeighbourTable neighbours = estimator.getNeighbours();
+        // not in a batch here, so the published estimate is the current one
+        ClockEstimate estimate = estimator.getEstimate();
+        int count = Math.min(neighbours.size(), maxNeighbours);
+        int base = nextSlot * slotSize;
+
+        buffer.putInt(base, MAGIC);
+        buffer.putInt(base + 4, VERSION);
+        buffer.putLong(base + 8, ++sequence);
+        buffer.putLong(base + 16, realTime);
+        buffer.putLong(base + 24, workTime);
+        buffer.putDouble(base + 32, clockSkew);
+        buffer.putDouble(base + 40, clockOffset);
+        buffer.putDouble(base + 48, estimate.getSkew());
+        buffer.putDouble(base + 56, estimate.getOffsetError());
+        buffer.putInt(base + COUNT_POSITION, count);
+
+        for (int slot = 0; slot < count; slot++) {
+            int row = base + HEADER_SIZE + slot * ROW_SIZE;
+
+            buffer.putLong(row, neighbours.getKey(slot));
+            buffer.putDouble(row + 8, neighbours.getRelativeSkew(slot));
+            buffer.putInt(row + 16, neighbours.getPackets(slot));
+            buffer.putLong(row + 20, neighbours.getLastClientTime(slot));
+            buffer.putLong(row + 28, neighbours.getLastLocalTime(slot));
+            buffer.putLong(row + 36, neighbours.getDelayNanos(slot));
+        }
+
+        buffer.putInt(base + CRC_POSITION, checksum(base, count));
+
+        nextSlot = 1 - nextSlot;
+    }
+
+    private int latestSlot() {
+        int latest = -1;
+        long latestSequence = -1;
+
+        for (int slot = 0; slot < 2; slot++) {
+            int base = slot * slotSize;
+
+            if (isValid(base) && buffer.getLong(base + 8) > latestSequence) {
+                latest = slot;
+                latestSequence = buffer.getLong(base + 8);
+            }
+        }
+
+        return latest;
+    }
+
+    private boolean isValid(int base) {
+        if (buffer.getInt(base) != MAGIC || buffer.getInt(base + 4) != VERSION) {
+            return false;
+        }
+
+        int count = buffer.getInt(base + COUNT_POSITION);
+
+        return count >= 0 && count <= maxNeighbours && buffer.getInt(base + CRC_POSITION) == checksum(base, count);
+    }
+
+    private int checksum(int base, int count) {
+        ByteBuffer view = buffer.duplicate();
+
+        crc.reset();
+
+        view.limit(base + CRC_POSITION).position(base);
+        crc.update(view);
+
+        view.limit(base + HEADER_SIZE + count * ROW_SIZE).position(base + HEADER_SIZE);
+        crc.update(view);
+
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
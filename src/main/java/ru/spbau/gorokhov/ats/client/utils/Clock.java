@@ -2,6 +2,8 @@ package ru.spbau.gorokhov.ats.client.utils;
 
 import lombok.Getter;
 
+import java.util.Random;
+
 @Getter
 public class Clock {
     private static final long MAX_SKEW_DEVIATION = 1000 * 60 * 60 * 24; // one day
@@ -10,6 +12,11 @@ public class Clock {
     private final double skew;
     private final double offset;
 
+    public Clock(double skew, double offset) {
+        this.skew = skew;
+        this.offset = offset;
+    }
+
     public Clock() {
         long realTime = getRealTime();
 
@@ -19,8 +26,22 @@ public class Clock {
         offset = RandomUtils.nextLong(-MAX_OFFSET_DEVIATION, MAX_OFFSET_DEVIATION);
     }
 
+    /**
+     * Clock with a random deviation as the default one would have at the given real time.
+     */
+    public static Clock random(Random random, long realTime) {
+        long alphaDeviation = RandomUtils.nextLong(random, -MAX_SKEW_DEVIATION, MAX_SKEW_DEVIATION);
+        double offset = RandomUtils.nextLong(random, -MAX_OFFSET_DEVIATION, MAX_OFFSET_DEVIATION);
+
+        return new Clock((realTime + alphaDeviation) * 1D / realTime, offset);
+    }
+
     public long getTime() {
-        return (long) (skew * getRealTime() + offset);
+        return getTime(getRealTime());
+    }
+
+    public long getTime(long realTime) {
+        return (long) (skew * realTime + offset);
     }
 
     public static long getRealTime() {
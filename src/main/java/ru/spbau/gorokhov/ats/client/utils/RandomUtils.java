@@ -6,11 +6,19 @@ public class RandomUtils {
     private static final Random RANDOM = new Random(System.currentTimeMillis());
 
     // FIXME implement better
+    public static long nextLong(Random random, long limit) {
+        return ((random.nextLong() % limit) + limit) % limit;
+    }
+
+    public static long nextLong(Random random, long from, long to) {
+        return from + nextLong(random, to - from + 1);
+    }
+
     public static long nextLong(long limit) {
-        return ((RANDOM.nextLong() % limit) + limit) % limit;
+        return nextLong(RANDOM, limit);
     }
 
     public static long nextLong(long from, long to) {
-        return from + nextLong(to - from + 1);
+        return nextLong(RANDOM, from, to);
     }
 }
@@ -0,0 +1,174 @@
+package ru.spbau.gorokhov.ats.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of all clients of one runtime.
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder decodeFailures = new LongAdder();
+    private final LongAdder rejectedSources = new LongAdder();
+    private final LongAdder suppressedAcks = new LongAdder();
+    private final LongAdder sendsDropped = new LongAdder();
+    private final LongAdder timeQueries = new LongAdder();
+    private final LongAdder malformedTimeQueries = new LongAdder();
+    private final LongAdder receiveQueueDrops = new LongAdder();
+    private final LongAdder estimatorBatches = new LongAdder();
+    private final LongAdder batchedUpdates = new LongAdder();
+    private final LongAdder multicastDuplicates = new LongAdder();
+    private final LongAdder multicastRateLimited = new LongAdder();
+
+    // time from receiving a packet to applying it to the estimator, waiting in the receive queue included
+    private final LatencyHistogram processLatency = new LatencyHistogram();
+
+    public void packetSent() {
+        packetsSent.increment();
+    }
+
+    public void packetReceived() {
+        packetsReceived.increment();
+    }
+
+    public void decodeFailed() {
+        decodeFailures.increment();
+    }
+
+    public void sourceRejected() {
+        rejectedSources.increment();
+    }
+
+    public void ackSuppressed() {
+        suppressedAcks.increment();
+    }
+
+    public void sendDropped() {
+        sendsDropped.increment();
+    }
+
+    public void timeQueryAnswered() {
+        timeQueries.increment();
+    }
+
+    public void timeQueryMalformed() {
+        malformedTimeQueries.increment();
+    }
+
+    public void receiveQueueDropped() {
+        receiveQueueDrops.increment();
+    }
+
+    public void estimatorBatch(int updates) {
+        estimatorBatches.increment();
+        batchedUpdates.add(updates);
+    }
+
+    public void multicastDuplicate() {
+        multicastDuplicates.increment();
+    }
+
+    public void multicastRateLimited() {
+        multicastRateLimited.increment();
+    }
+
+    public void processed(long nanos) {
+        processLatency.record(nanos);
+    }
+
+    public LatencyHistogram getProcessLatency() {
+        return processLatency;
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public long getDecodeFailures() {
+        return decodeFailures.sum();
+    }
+
+    @Override
+    public long getRejectedSources() {
+        return rejectedSources.sum();
+    }
+
+    @Override
+    public long getSuppressedAcks() {
+        return suppressedAcks.sum();
+    }
+
+    @Override
+    public long getSendsDropped() {
+        return sendsDropped.sum();
+    }
+
+    @Override
+    public long getTimeQueries() {
+        return timeQueries.sum();
+    }
+
+    @Override
+    public long getMalformedTimeQueries() {
+        return malformedTimeQueries.sum();
+    }
+
+    @Override
+    public long getReceiveQueueDrops() {
+        return receiveQueueDrops.sum();
+    }
+
+    @Override
+    public long getEstimatorBatches() {
+        return estimatorBatches.sum();
+    }
+
+    @Override
+    public long getMulticastDuplicates() {
+        return multicastDuplicates.sum();
+    }
+
+    @Override
+    public long getMulticastRateLimited() {
+        return multicastRateLimited.sum();
+    }
+
+    @Override
+    public double getEstimatorBatchMeanSize() {
+        long batches = estimatorBatches.sum();
+
+        return batches == 0 ? 0 : batchedUpdates.sum() * 1D / batches;
+    }
+
+    @Override
+    public long getProcessCount() {
+        return processLatency.getCount();
+    }
+
+    @Override
+    public double getProcessMeanNanos() {
+        return processLatency.getMean();
+    }
+
+    @Override
+    public long getProcessP50Nanos() {
+        return processLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getProcessP99Nanos() {
+        return processLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getProcessMaxNanos() {
+        return processLatency.getMax();
+    }
+}
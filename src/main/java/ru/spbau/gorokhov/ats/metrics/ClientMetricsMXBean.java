@@ -0,0 +1,45 @@
+package ru.spbau.gorokhov.ats.metrics;
+
+public interface ClientMetricsMXBean {
+    long getPacketsSent();
+
+    long getPacketsReceived();
+
+    long getDecodeFailures();
+
+    // packets from other than IPv4 addresses, their keys could collide so they are not applied
+    long getRejectedSources();
+
+    long getSuppressedAcks();
+
+    // sends which found the socket buffer full
+    long getSendsDropped();
+
+    // queries answered by time services, and packets they could not read as queries
+    long getTimeQueries();
+
+    long getMalformedTimeQueries();
+
+    // packets dropped because the estimator stage of their client fell behind
+    long getReceiveQueueDrops();
+
+    long getEstimatorBatches();
+
+    // multicast packets seen from their source before, and packets of sources over their rate
+    long getMulticastDuplicates();
+
+    long getMulticastRateLimited();
+
+    double getEstimatorBatchMeanSize();
+
+    // packets applied to estimators, the latency is from receiving to applying
+    long getProcessCount();
+
+    double getProcessMeanNanos();
+
+    long getProcessP50Nanos();
+
+    long getProcessP99Nanos();
+
+    long getProcessMaxNanos();
+}
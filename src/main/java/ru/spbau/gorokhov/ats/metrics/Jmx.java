@@ -0,0 +1,45 @@
+package ru.spbau.gorokhov.ats.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registers beans with the platform MBean server under the {@value #DOMAIN} domain.
+ * Failures are logged only, metrics are never worth failing a node for.
+ */
+public class Jmx {
+    public static final String DOMAIN = "ru.spbau.gorokhov.ats";
+
+    private static final Logger LOG = LoggerFactory.getLogger(Jmx.class);
+
+    /**
+     * @param properties key properties of the name, like {@code type=Server,port=8080}
+     * @return name of the registered bean, or null if it was not registered
+     */
+    public static ObjectName register(String properties, Object bean) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, name);
+            return name;
+        } catch (JMException e) {
+            LOG.warn("Failed to register MBean {}: {}", properties, e.getMessage());
+            return null;
+        }
+    }
+
+    public static void unregister(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            LOG.warn("Failed to unregister MBean {}: {}", name, e.getMessage());
+        }
+    }
+}
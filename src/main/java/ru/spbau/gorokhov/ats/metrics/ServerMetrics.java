@@ -0,0 +1,134 @@
+package ru.spbau.gorokhov.ats.metrics;
+
+import ru.spbau.gorokhov.ats.model.Request;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class ServerMetrics implements ServerMetricsMXBean {
+    private final LongAdder registerRequests = new LongAdder();
+    private final LongAdder updateNeighboursRequests = new LongAdder();
+    private final LongAdder neighboursDeltaRequests = new LongAdder();
+    private final LongAdder sendTimeRequests = new LongAdder();
+    private final LongAdder shardMembersRequests = new LongAdder();
+    private final LongAdder unknownRequests = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder journalDrops = new LongAdder();
+
+    private final LatencyHistogram handlerLatency = new LatencyHistogram();
+
+    public void requested(int requestId) {
+        switch (requestId) {
+            case Request.REGISTER:
+                registerRequests.increment();
+                break;
+
+            case Request.UPDATE_NEIGHBOURS:
+                updateNeighboursRequests.increment();
+                break;
+
+            case Request.NEIGHBOURS_DELTA:
+                neighboursDeltaRequests.increment();
+                break;
+
+            case Request.SEND_TIME:
+                sendTimeRequests.increment();
+                break;
+
+            case Request.SHARD_MEMBERS:
+                shardMembersRequests.increment();
+                break;
+
+            default:
+                unknownRequests.increment();
+                break;
+        }
+    }
+
+    public void evicted() {
+        evictions.increment();
+    }
+
+    public void journalDropped() {
+        journalDrops.increment();
+    }
+
+    public void handled(long nanos) {
+        handlerLatency.record(nanos);
+    }
+
+    public LatencyHistogram getHandlerLatency() {
+        return handlerLatency;
+    }
+
+    @Override
+    public long getRequests() {
+        return getRegisterRequests() + getUpdateNeighboursRequests() + getNeighboursDeltaRequests()
+                + getSendTimeRequests() + getShardMembersRequests() + getUnknownRequests();
+    }
+
+    @Override
+    public long getRegisterRequests() {
+        return registerRequests.sum();
+    }
+
+    @Override
+    public long getUpdateNeighboursRequests() {
+        return updateNeighboursRequests.sum();
+    }
+
+    @Override
+    public long getNeighboursDeltaRequests() {
+        return neighboursDeltaRequests.sum();
+    }
+
+    @Override
+    public long getSendTimeRequests() {
+        return sendTimeRequests.sum();
+    }
+
+    @Override
+    public long getShardMembersRequests() {
+        return shardMembersRequests.sum();
+    }
+
+    @Override
+    public long getUnknownRequests() {
+        return unknownRequests.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getJournalDrops() {
+        return journalDrops.sum();
+    }
+
+    @Override
+    public long getHandlerCount() {
+        return handlerLatency.getCount();
+    }
+
+    @Override
+    public double getHandlerMeanNanos() {
+        return handlerLatency.getMean();
+    }
+
+    @Override
+    public long getHandlerP50Nanos() {
+        return handlerLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getHandlerP99Nanos() {
+        return handlerLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getHandlerMaxNanos() {
+        return handlerLatency.getMax();
+    }
+}
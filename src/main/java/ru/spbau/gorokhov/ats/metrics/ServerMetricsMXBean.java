@@ -0,0 +1,31 @@
+package ru.spbau.gorokhov.ats.metrics;
+
+public interface ServerMetricsMXBean {
+    long getRequests();
+
+    long getRegisterRequests();
+
+    long getUpdateNeighboursRequests();
+
+    long getNeighboursDeltaRequests();
+
+    long getSendTimeRequests();
+
+    long getShardMembersRequests();
+
+    long getUnknownRequests();
+
+    long getEvictions();
+
+    long getJournalDrops();
+
+    long getHandlerCount();
+
+    double getHandlerMeanNanos();
+
+    long getHandlerP50Nanos();
+
+    long getHandlerP99Nanos();
+
+    long getHandlerMaxNanos();
+}
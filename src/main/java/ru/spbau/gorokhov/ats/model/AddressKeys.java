@@ -0,0 +1,81 @@
+package ru.spbau.gorokhov.ats.model;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * Packs an IPv4 address and a port into a single long: {@code ip << 16 | port}.
+ * Other addresses are hashed into keys with the highest bit set, so they never clash with IPv4 ones, but two of them
+ * may clash with each other: such keys only place an address, as in a hash ring, and never identify a peer.
+ */
+public class AddressKeys {
+    private static final long HASHED = Long.MIN_VALUE;
+
+    public static long of(InetAddress address, int port) {
+        byte[] ip = address.getAddress();
+
+        if (address instanceof Inet4Address) {
+            return of((ip[0] & 0xFF) << 24 | (ip[1] & 0xFF) << 16 | (ip[2] & 0xFF) << 8 | (ip[3] & 0xFF), port);
+        }
+
+        return hashed(address.getHostAddress(), port);
+    }
+
+    public static long of(String ip, int port) {
+        int packed = 0;
+        int octets = 0;
+        int octet = -1;
+
+        for (int i = 0; i <= ip.length(); i++) {
+            char c = i < ip.length() ? ip.charAt(i) : '.';
+
+            if (c == '.') {
+                if (octet < 0 || ++octets > 4) {
+                    return hashed(ip, port);
+                }
+                packed = packed << 8 | octet;
+                octet = -1;
+            } else if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : 10 * octet) + (c - '0');
+                if (octet > 255) {
+                    return hashed(ip, port);
+                }
+            } else {
+                return hashed(ip, port);
+            }
+        }
+
+        return octets == 4 ? of(packed, port) : hashed(ip, port);
+    }
+
+    public static long of(ClientAddress address) {
+        return of(address.getIp(), address.getPort());
+    }
+
+    public static long of(int ipv4, int port) {
+        return (ipv4 & 0xFFFFFFFFL) << 16 | (port & 0xFFFF);
+    }
+
+    public static boolean isIpv4(long key) {
+        return key >= 0;
+    }
+
+    public static ClientAddress toAddress(long key) {
+        if (!isIpv4(key)) {
+            throw new IllegalArgumentException(String.format("Key %x is a hash of a non IPv4 address.", key));
+        }
+
+        long ip = key >>> 16;
+        String host = String.format("%d.%d.%d.%d", (ip >>> 24) & 0xFF, (ip >>> 16) & 0xFF, (ip >>> 8) & 0xFF, ip & 0xFF);
+
+        return new ClientAddress(host, (int) (key & 0xFFFF));
+    }
+
+    public static String toString(long key) {
+        return isIpv4(key) ? toAddress(key).toString() : String.format("#%x", key);
+    }
+
+    private static long hashed(String ip, int port) {
+        return HASHED | ((long) ip.hashCode() & 0xFFFFFFFFL) << 16 | (port & 0xFFFF);
+    }
+}
@@ -0,0 +1,18 @@
+package ru.spbau.gorokhov.ats.model;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import java.util.List;
+
+@Getter
+@ToString
+@RequiredArgsConstructor
+public class NeighboursDelta {
+    private final long version;
+    // added contains the whole neighbour list and removed is empty
+    private final boolean reset;
+    private final List<ClientAddress> added;
+    private final List<ClientAddress> removed;
+}
@@ -5,6 +5,30 @@ public class Request {
     public static final int UPDATE_NEIGHBOURS = 22222;
     public static final int SEND_TIME = 33333;
     public static final int SEND_DATA = 44444;
+    public static final int OPEN_SESSION = 55555;
+    public static final int NEIGHBOURS_DELTA = 66666;
+    // from a coordinator to another one, see ShardBridges
+    public static final int SHARD_MEMBERS = 77777;
+
+    public static int payloadSize(int requestId) {
+        switch (requestId) {
+            case REGISTER:
+            case UPDATE_NEIGHBOURS:
+                return 0;
+
+            case NEIGHBOURS_DELTA:
+                return 8;
+
+            case SHARD_MEMBERS:
+                return 4;
+
+            case SEND_TIME:
+                return 16;
+
+            default:
+                return -1;
+        }
+    }
 
     public static String toString(int requestId) {
         switch (requestId) {
@@ -20,6 +44,15 @@ public class Request {
             case SEND_DATA:
                 return "SEND_DATA";
 
+            case OPEN_SESSION:
+                return "OPEN_SESSION";
+
+            case NEIGHBOURS_DELTA:
+                return "NEIGHBOURS_DELTA";
+
+            case SHARD_MEMBERS:
+                return "SHARD_MEMBERS";
+
             default:
                 return String.format("INVALID(%d)", requestId);
         }
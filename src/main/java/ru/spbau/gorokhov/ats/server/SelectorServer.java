@@ -0,0 +1,585 @@
+package ru.spbau.gorokhov.ats.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.gorokhov.ats.client.MemoryTransport;
+import ru.spbau.gorokhov.ats.client.StreamEndpoint;
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+import ru.spbau.gorokhov.ats.model.NeighboursDelta;
+import ru.spbau.gorokhov.ats.model.Request;
+import ru.spbau.gorokhov.ats.model.TimeInfo;
+import ru.spbau.gorokhov.ats.utils.NeighboursCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Serves the int-framed coordinator requests from a fixed number of selector threads.
+ * Handlers run on the given executor, or on the event loop itself if it is null.
+ * Connections are accepted on a server socket, or in a {@link MemoryTransport} if one is given,
+ * whose streams are all served by the first event loop.
+ * <p>
+ * A connection either carries a single legacy request ({@code port, requestId, payload}) or starts with
+ * {@link Request#OPEN_SESSION} and then carries any number of {@code length, requestNo, requestId, payload} frames,
+ * answered with {@code length, requestNo, response} frames in completion order.
+ */
+class SelectorServer {
+    private static final Logger LOG = LoggerFactory.getLogger(SelectorServer.class);
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final int FRAME_HEADER_SIZE = 12;
+
+    private final Server server;
+    private final int port;
+    private final Executor handlerExecutor;
+    // null for a server socket
+    private final MemoryTransport transport;
+
+    private final EventLoop[] loops;
+    private int nextLoop = 0;
+
+    private ServerSocketChannel serverChannel;
+    private Closeable listener;
+
+    private volatile boolean running = false;
+
+    SelectorServer(Server server, int port, int eventLoops, Executor handlerExecutor, MemoryTransport transport) throws IOException {
+        this.server = server;
+        this.port = port;
+        this.handlerExecutor = handlerExecutor;
+        this.transport = transport;
+
+        loops = new EventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    void start() throws IOException {
+        running = true;
+
+        EventLoop acceptor = loops[0];
+
+        if (transport != null) {
+            listener = transport.listen(port, acceptor::execute, acceptor::register);
+        } else {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+
+            acceptor.execute(() -> {
+                try {
+                    serverChannel.register(acceptor.selector, SelectionKey.OP_ACCEPT);
+                } catch (ClosedChannelException e) {
+                    LOG.error("Server channel was closed before registration.", e);
+                }
+            });
+        }
+
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    void stop() {
+        running = false;
+
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to close server channel.", e);
+        }
+    }
+
+    private EventLoop nextLoop() {
+        EventLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        return loop;
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        // event loop only
+        private final Set<Connection> connections = new HashSet<>();
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, String.format("server-loop-%d", index));
+        }
+
+        void execute(Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+                return;
+            }
+
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    LOG.error("Event loop crushed.", e);
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    ((SocketStream) key.attachment()).ready();
+                }
+            }
+
+            for (Connection connection : new ArrayList<>(connections)) {
+                connection.close();
+            }
+
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void accept() {
+            while (true) {
+                SocketChannel channel;
+
+                try {
+                    channel = serverChannel.accept();
+                    if (channel == null) {
+                        return;
+                    }
+
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                } catch (IOException e) {
+                    LOG.error("Failed to accept connection.", e);
+                    return;
+                }
+
+                EventLoop loop = nextLoop();
+                loop.execute(() -> loop.registerSocket(channel));
+            }
+        }
+
+        private void registerSocket(SocketChannel channel) {
+            try {
+                register(new SocketStream(selector, channel));
+            } catch (IOException e) {
+                LOG.error("Failed to register connection.", e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void register(StreamEndpoint stream) {
+            String clientIp = stream.getRemoteAddress().getAddress().getHostAddress();
+            Connection connection = new Connection(this, stream, clientIp);
+
+            connections.add(connection);
+            stream.start(connection::onReady);
+        }
+    }
+
+    /**
+     * Accepted socket on the selector of an event loop.
+     */
+    private static class SocketStream implements StreamEndpoint {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final InetSocketAddress remoteAddress;
+
+        private Runnable onReady;
+
+        SocketStream(Selector selector, SocketChannel channel) throws IOException {
+            this.channel = channel;
+
+            remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void start(Runnable onReady) {
+            this.onReady = onReady;
+        }
+
+        void ready() {
+            if (key.isWritable()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+
+            onReady.run();
+        }
+
+        @Override
+        public boolean finishConnect() {
+            return true;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            int read = channel.read(buffer);
+
+            // the end of the stream stays readable, it is not waited for again
+            if (read < 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+
+            return read;
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            int written = channel.write(buffer);
+
+            if (buffer.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+
+            return written;
+        }
+
+        @Override
+        public void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private class Connection {
+        private final EventLoop loop;
+        private final StreamEndpoint stream;
+        private final String clientIp;
+
+        private ClientAddress sessionAddress;
+
+        // bytes of a frame which arrived partially, empty most of the time
+        private ByteBuffer pending = ByteBuffer.allocate(64);
+
+        private final Queue<ByteBuffer> output = new ArrayDeque<>();
+
+        private int inFlight = 0;
+
+        private boolean closeAfterFlush = false;
+        // the client closed its side, nothing more is read
+        private boolean finished = false;
+        private boolean closed = false;
+
+        Connection(EventLoop loop, StreamEndpoint stream, String clientIp) {
+            this.loop = loop;
+            this.stream = stream;
+            this.clientIp = clientIp;
+        }
+
+        void onReady() {
+            try {
+                if (!finished) {
+                    read();
+                }
+                flush();
+            } catch (IOException | RuntimeException e) {
+                // a bad frame costs its own connection only, not the loop and every session on it
+                LOG.error("Failed to handle connection from {}.", clientIp, e);
+                close();
+            }
+        }
+
+        private void read() throws IOException {
+            ByteBuffer in = loop.readBuffer;
+            in.clear();
+
+            int read = stream.read(in);
+
+            if (read < 0) {
+                finished = true;
+                closeAfterFlush = true;
+                closeIfDone();
+                return;
+            }
+
+            in.flip();
+
+            if (pending.position() > 0) {
+                append(in);
+                pending.flip();
+                decode(pending);
+                pending.compact();
+            } else {
+                decode(in);
+                if (in.hasRemaining()) {
+                    append(in);
+                }
+            }
+        }
+
+        private void append(ByteBuffer in) {
+            if (pending.remaining() < in.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + in.remaining()));
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            pending.put(in);
+        }
+
+        private void decode(ByteBuffer in) {
+            while (!closeAfterFlush && !closed) {
+                int start = in.position();
+
+                if (sessionAddress == null) {
+                    if (in.remaining() < HEADER_SIZE) {
+                        return;
+                    }
+
+                    int clientPort = in.getInt(start);
+                    int requestId = in.getInt(start + 4);
+
+                    if (requestId == Request.OPEN_SESSION) {
+                        in.position(start + HEADER_SIZE);
+                        sessionAddress = new ClientAddress(clientIp, clientPort);
+
+                        LOG.info("Session opened by {}", sessionAddress);
+                        continue;
+                    }
+
+                    int payloadSize = Request.payloadSize(requestId);
+
+                    if (payloadSize < 0) {
+                        LOG.warn("{} request from {}, closing connection.", Request.toString(requestId), clientIp);
+                        close();
+                        return;
+                    }
+
+                    if (in.remaining() < HEADER_SIZE + payloadSize) {
+                        return;
+                    }
+
+                    in.position(start + HEADER_SIZE);
+
+                    // legacy protocol: one request per connection
+                    closeAfterFlush = true;
+
+                    dispatch(new ClientAddress(clientIp, clientPort), -1, requestId, in);
+                    return;
+                }
+
+                if (in.remaining() < FRAME_HEADER_SIZE) {
+                    return;
+                }
+
+                int length = in.getInt(start);
+                int requestNo = in.getInt(start + 4);
+                int requestId = in.getInt(start + 8);
+
+                int payloadSize = Request.payloadSize(requestId);
+
+                // unknown requests have no size, and -1 must not pass for a 7 byte frame
+                if (payloadSize < 0 || payloadSize != length - 8) {
+                    LOG.warn("Malformed {} request from {}, closing session.", Request.toString(requestId), sessionAddress);
+                    close();
+                    return;
+                }
+
+                if (in.remaining() < 4 + length) {
+                    return;
+                }
+
+                in.position(start + FRAME_HEADER_SIZE);
+
+                dispatch(sessionAddress, requestNo, requestId, in);
+            }
+        }
+
+        private void dispatch(ClientAddress clientAddress, int requestNo, int requestId, ByteBuffer in) {
+            if (LOG.isInfoEnabled() && Server.REQUEST_LOG.tryAcquire()) {
+                LOG.info("{} request from {} ({} similar suppressed)", Request.toString(requestId), clientAddress, Server.REQUEST_LOG.takeSuppressed());
+            }
+
+            server.getMetrics().requested(requestId);
+
+            Runnable handler;
+
+            switch (requestId) {
+                case Request.REGISTER:
+                    handler = () -> {
+                        server.register(clientAddress);
+                        respond(requestNo, null);
+                    };
+                    break;
+
+                case Request.SEND_TIME:
+                    TimeInfo timeInfo = new TimeInfo(in.getDouble(), in.getDouble());
+                    handler = () -> {
+                        server.updateTime(clientAddress, timeInfo);
+                        respond(requestNo, null);
+                    };
+                    break;
+
+                case Request.NEIGHBOURS_DELTA:
+                    long knownVersion = in.getLong();
+                    handler = () -> {
+                        NeighboursDelta delta = server.getNeighboursDelta(clientAddress, knownVersion);
+                        respond(requestNo, NeighboursCodec.encodeDelta(delta));
+                        LOG.debug("Neighbours were sent to {}: {}", clientAddress, delta);
+                    };
+                    break;
+
+                case Request.SHARD_MEMBERS:
+                    int count = in.getInt();
+                    handler = () -> respond(requestNo, NeighboursCodec.encode(server.getShardMembers(count)));
+                    break;
+
+                default:
+                    handler = () -> {
+                        List<ClientAddress> neighbours = server.getNeighbours(clientAddress);
+                        respond(requestNo, NeighboursCodec.encode(neighbours));
+                        LOG.debug("Neighbours were sent to {}: {}", clientAddress, neighbours);
+                    };
+                    break;
+            }
+
+            inFlight++;
+
+            Runnable timedHandler = () -> {
+                long start = System.nanoTime();
+
+                server.heartbeat(clientAddress, requestId);
+
+                handler.run();
+
+                server.getMetrics().handled(System.nanoTime() - start);
+            };
+
+            if (handlerExecutor == null) {
+                timedHandler.run();
+            } else {
+                handlerExecutor.execute(timedHandler);
+            }
+        }
+
+        private void respond(int requestNo, ByteBuffer response) {
+            loop.execute(() -> {
+                inFlight--;
+
+                if (sessionAddress != null) {
+                    ByteBuffer header = ByteBuffer.allocate(8);
+                    header.putInt(4 + (response == null ? 0 : response.remaining()));
+                    header.putInt(requestNo);
+                    header.flip();
+
+                    output.add(header);
+                }
+
+                if (response != null) {
+                    output.add(response);
+                }
+
+                try {
+                    flush();
+                } catch (IOException e) {
+                    LOG.error("Failed to send response to {}.", clientIp, e);
+                    close();
+                }
+            });
+        }
+
+        private void flush() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            while (!output.isEmpty()) {
+                ByteBuffer head = output.peek();
+                stream.write(head);
+
+                // the stream calls back once it has room
+                if (head.hasRemaining()) {
+                    return;
+                }
+
+                output.poll();
+            }
+
+            closeIfDone();
+        }
+
+        private void closeIfDone() {
+            if (closeAfterFlush && inFlight == 0 && output.isEmpty()) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            stream.close();
+            loop.connections.remove(this);
+        }
+    }
+}
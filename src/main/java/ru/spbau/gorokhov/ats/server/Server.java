@@ -3,35 +3,98 @@ package ru.spbau.gorokhov.ats.server;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.spbau.gorokhov.ats.model.AddressKeys;
 import ru.spbau.gorokhov.ats.model.ClientAddress;
+import ru.spbau.gorokhov.ats.model.NeighboursDelta;
 import ru.spbau.gorokhov.ats.model.Request;
+import ru.spbau.gorokhov.ats.metrics.Jmx;
+import ru.spbau.gorokhov.ats.metrics.ServerMetrics;
 import ru.spbau.gorokhov.ats.model.TimeInfo;
-import ru.spbau.gorokhov.ats.utils.Sleepyhead;
-
+import ru.spbau.gorokhov.ats.server.journal.Journal;
+import ru.spbau.gorokhov.ats.server.journal.JournalRecord;
+import ru.spbau.gorokhov.ats.server.lease.Leases;
+import ru.spbau.gorokhov.ats.server.shard.ShardBridges;
+import ru.spbau.gorokhov.ats.server.stats.ClusterStats;
+import ru.spbau.gorokhov.ats.server.stats.StatsEndpoint;
+import ru.spbau.gorokhov.ats.server.stats.TimeReportStore;
+import ru.spbau.gorokhov.ats.server.topology.Topology;
+import ru.spbau.gorokhov.ats.utils.LogRateLimiter;
+import ru.spbau.gorokhov.ats.utils.NeighboursCodec;
+
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
-public class Server {
+public class Server implements ServerMXBean {
     private static final Logger LOG = LoggerFactory.getLogger(Server.class);
 
     private static final int DEFAULT_PORT = 8080;
 
-    private static final int SHOW_TIME_DELAY = 2000;
+    // per-request messages of all handlers together
+    static final LogRateLimiter REQUEST_LOG = new LogRateLimiter(20);
+    private static final LogRateLimiter JOURNAL_LOG = new LogRateLimiter(1);
 
     private final int port;
 
-    private final List<ClientAddress> clients = new ArrayList<>();
+    private final ServerConfig config;
+
+    private final Topology topology;
+
+    private final TimeReportStore timeReports = new TimeReportStore();
+
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    private ObjectName mbeanName;
+    private ObjectName metricsName;
+
+    private StatsEndpoint statsEndpoint;
 
-    private final Map<ClientAddress, TimeInfo> clientTimes = new TreeMap<>();
+    private Journal journal;
+
+    // null if leases are disabled
+    private Leases leases;
+    // orders evictions against registrations and returning clients, so a leased client stays in the topology
+    private final Object membershipLock = new Object();
+    private ScheduledExecutorService leaseReaper;
+
+    // null if the coordinator is not sharded
+    private ShardBridges shardBridges;
+
+    private ExecutorService handlerExecutor;
+
+    private SelectorServer selectorServer;
 
     private boolean running = false;
 
-    public Server(int port) {
+    public Server(int port, ServerConfig config) {
+        // a blocking session holds its thread for the whole connection, inline it would stop the accept loop
+        if (config.getMode() == ServerConfig.Mode.BLOCKING && config.getHandlers() == ServerConfig.Handlers.INLINE) {
+            throw new IllegalArgumentException("Blocking mode needs a thread per session, inline handlers are not supported with it.");
+        }
+
+        // blocking sessions and shard bridges are plain sockets
+        if (config.getTransport() != null && (config.getMode() == ServerConfig.Mode.BLOCKING || !config.getShardPeers().isEmpty())) {
+            throw new IllegalArgumentException("A memory transport is supported in selector mode of a coordinator without shards only.");
+        }
+
         this.port = port;
+        this.config = config;
+
+        int bridges = config.getShardPeers().isEmpty() ? 0 : config.getBridgeNeighbours();
+        topology = new Topology(config.getTopologyStrategy(), config.getNeighbourCount(), bridges);
+    }
+
+    public Server(int port) {
+        this(port, new ServerConfig());
     }
 
     public Server() {
@@ -41,42 +104,259 @@ public class Server {
     public void start() {
         running = true;
 
-        new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(port)) {
-                LOG.info("Server running...");
-                LOG.info("Server IP: {}", Inet4Address.getLocalHost().getHostAddress());
+        if (config.getLeaseTimeout() > 0) {
+            leases = new Leases(config.getLeaseTimeout(), config.getLeaseTick(), System.currentTimeMillis());
+        }
 
-                while (running) {
-                    Socket newConnection = serverSocket.accept();
+        if (config.getJournalDirectory() != null) {
+            openJournal();
+        }
 
-                    new Thread(new RequestHandler(newConnection)).start();
-                }
+        if (leases != null) {
+            leaseReaper = Executors.newSingleThreadScheduledExecutor(task -> new Thread(task, String.format("lease-reaper-%d", port)));
+            leaseReaper.scheduleWithFixedDelay(this::expireLeases, config.getLeaseTick(), config.getLeaseTick(), TimeUnit.MILLISECONDS);
+        }
+
+        if (!config.getShardPeers().isEmpty()) {
+            shardBridges = new ShardBridges(port, config.getShardPeers(), config.getBridgeSampleSize(),
+                    config.getBridgeRefreshInterval(), topology);
+            shardBridges.start();
+        }
+
+        handlerExecutor = createHandlerExecutor();
+
+        mbeanName = Jmx.register(String.format("type=Server,port=%d", port), this);
+        metricsName = Jmx.register(String.format("type=ServerMetrics,port=%d", port), metrics);
+
+        if (config.getMode() == ServerConfig.Mode.SELECTOR) {
+            try {
+                selectorServer = new SelectorServer(this, port, config.getEventLoops(), handlerExecutor, config.getTransport());
+                selectorServer.start();
+
+                LOG.info("Server running with {} event loops...", config.getEventLoops());
+                LOG.info("Server IP: {}", Inet4Address.getLocalHost().getHostAddress());
             } catch (IOException e) {
                 LOG.error("Server crushed.", e);
             }
-        }).start();
+        } else {
+            new Thread(() -> {
+                try (ServerSocket serverSocket = new ServerSocket(port)) {
+                    LOG.info("Server running...");
+                    LOG.info("Server IP: {}", Inet4Address.getLocalHost().getHostAddress());
+
+                    while (running) {
+                        Socket newConnection = serverSocket.accept();
+                        newConnection.setKeepAlive(true);
+
+                        handlerExecutor.execute(new RequestHandler(newConnection));
+                    }
+                } catch (IOException e) {
+                    LOG.error("Server crushed.", e);
+                }
+            }).start();
+        }
+
+        if (config.getStatsPort() >= 0) {
+            statsEndpoint = new StatsEndpoint(timeReports, config.getStatsPort());
+            try {
+                statsEndpoint.start();
+            } catch (IOException e) {
+                LOG.error("Failed to start stats endpoint.", e);
+            }
+        }
+    }
+
+    private void openJournal() {
+        try {
+            journal = new Journal(Paths.get(config.getJournalDirectory()), config.getJournalSegmentRecords(),
+                    config.getJournalCommitInterval(), config.getJournalRetainedSegments());
+        } catch (IOException e) {
+            LOG.error("Failed to open journal, running without it.", e);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
 
-        new Thread(() -> {
-            while (running) {
-                Sleepyhead.sleep(SHOW_TIME_DELAY);
+        for (JournalRecord record : journal.getRecoveredState()) {
+            ClientAddress clientAddress = AddressKeys.toAddress(record.getKey());
 
-                showTime();
+            if (record.getEvent() == JournalRecord.REGISTER) {
+                topology.add(clientAddress);
+
+                // recovered clients get a full lease to reconnect
+                if (leases != null) {
+                    leases.renew(clientAddress, now);
+                }
+            } else {
+                timeReports.report(clientAddress, new TimeInfo(record.getSkew(), record.getOffset()));
+            }
+        }
+
+        LOG.info("Recovered {} clients and {} time reports from the journal.", topology.size(), timeReports.size());
+    }
+
+    private void journal(int type, ClientAddress clientAddress, double skew, double offset) {
+        if (journal == null) {
+            return;
+        }
+
+        long key = AddressKeys.of(clientAddress);
+
+        // records are fixed-size, only IPv4 addresses fit
+        if (AddressKeys.isIpv4(key) && !journal.append(type, System.currentTimeMillis(), key, skew, offset)) {
+            metrics.journalDropped();
+
+            if (JOURNAL_LOG.tryAcquire()) {
+                LOG.warn("Journal is behind, dropped a time report of {} ({} similar suppressed).", clientAddress, JOURNAL_LOG.takeSuppressed());
+            }
+        }
+    }
+
+    private void expireLeases() {
+        try {
+            for (ClientAddress clientAddress : leases.expire(System.currentTimeMillis())) {
+                evict(clientAddress);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Failed to expire leases.", e);
+        }
+    }
+
+    private void evict(ClientAddress clientAddress) {
+        synchronized (membershipLock) {
+            // renewed after it expired
+            if (leases.contains(clientAddress)) {
+                return;
+            }
+
+            // neighbours of the client get it in the removed part of their next delta
+            topology.remove(clientAddress);
+            timeReports.remove(clientAddress);
+
+            journal(JournalRecord.EVICT, clientAddress, 0, 0);
+        }
+
+        metrics.evicted();
+
+        LOG.info("Client {} was evicted, its lease expired.", clientAddress);
+    }
+
+    /**
+     * Renews the lease of the client, called before every request is handled.
+     */
+    void heartbeat(ClientAddress clientAddress, int requestId) {
+        // other coordinators are not clients
+        if (leases == null || requestId == Request.SHARD_MEMBERS) {
+            return;
+        }
+
+        if (!leases.renew(clientAddress, System.currentTimeMillis()) || requestId == Request.REGISTER) {
+            return;
+        }
+
+        // evicted while it was alive, e.g. during a long pause, it comes back with the next request
+        synchronized (membershipLock) {
+            if (topology.add(clientAddress)) {
+                journal(JournalRecord.REGISTER, clientAddress, 0, 0);
+
+                LOG.info("Client {} came back after its lease expired.", clientAddress);
             }
-        }).start();
+        }
     }
 
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss");
+    private ExecutorService createHandlerExecutor() {
+        switch (config.getHandlers()) {
+            case INLINE:
+                return null;
+
+            case VIRTUAL_THREADS:
+                try {
+                    Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                    return (ExecutorService) factory.invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    LOG.warn("Virtual threads are not supported by this JVM, using worker pool instead.");
+                    return createWorkerPool();
+                }
 
-    private void showTime() {
-        System.out.println("Clients:");
-        clientTimes.forEach((address, timeInfo) -> System.out.println(address + ": " + DATE_FORMAT.format(new Date(timeInfo.getTime()))));
+            default:
+                return createWorkerPool();
+        }
     }
 
-    private List<ClientAddress> getNeighbours(ClientAddress clientAddress) {
-        // TODO something smarter
-        synchronized (clients) {
-            return clients.stream().filter(s -> !s.equals(clientAddress)).collect(Collectors.toList());
+    private ExecutorService createWorkerPool() {
+        // blocking sessions hold their thread for the whole connection
+        if (config.getMode() == ServerConfig.Mode.BLOCKING) {
+            return Executors.newCachedThreadPool();
         }
+        return Executors.newFixedThreadPool(config.getWorkerThreads());
+    }
+
+    public ClusterStats getStats() {
+        return timeReports.snapshot(System.currentTimeMillis());
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public int getRegisteredClients() {
+        return topology.size();
+    }
+
+    @Override
+    public int getReportedClients() {
+        return timeReports.size();
+    }
+
+    @Override
+    public int getLeasedClients() {
+        return leases == null ? 0 : leases.size();
+    }
+
+    void register(ClientAddress clientAddress) {
+        boolean added;
+
+        synchronized (membershipLock) {
+            added = topology.add(clientAddress);
+
+            if (added) {
+                journal(JournalRecord.REGISTER, clientAddress, 0, 0);
+            }
+        }
+
+        if (added) {
+            LOG.info("Client {} was registered.", clientAddress);
+        } else {
+            LOG.info("Client {} was registered again.", clientAddress);
+        }
+    }
+
+    void updateTime(ClientAddress clientAddress, TimeInfo timeInfo) {
+        if (LOG.isInfoEnabled() && REQUEST_LOG.tryAcquire()) {
+            LOG.info("Got time info from {}: {} ({} similar suppressed)", clientAddress, timeInfo, REQUEST_LOG.takeSuppressed());
+        }
+
+        timeReports.report(clientAddress, timeInfo);
+
+        journal(JournalRecord.SEND_TIME, clientAddress, timeInfo.getSkew(), timeInfo.getOffset());
+    }
+
+    List<ClientAddress> getNeighbours(ClientAddress clientAddress) {
+        return topology.getNeighbours(clientAddress);
+    }
+
+    NeighboursDelta getNeighboursDelta(ClientAddress clientAddress, long knownVersion) {
+        return topology.getDelta(clientAddress, knownVersion);
+    }
+
+    List<ClientAddress> getShardMembers(int count) {
+        return topology.sample(Math.max(0, count));
     }
 
     @RequiredArgsConstructor
@@ -87,61 +367,154 @@ public class Server {
         public void run() {
             String clientIp = clientSocket.getInetAddress().getHostAddress();
 
-            try (DataInputStream clientOutput = new DataInputStream(clientSocket.getInputStream());
-                 DataOutputStream clientInput = new DataOutputStream(clientSocket.getOutputStream())) {
+            try (DataInputStream clientOutput = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+                 DataOutputStream clientInput = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()))) {
 
                 int clientPort = clientOutput.readInt();
                 ClientAddress clientAddress = new ClientAddress(clientIp, clientPort);
 
                 int requestId = clientOutput.readInt();
 
-                LOG.info("{} request from {}", Request.toString(requestId), clientAddress);
-
-                switch (requestId) {
-                    case Request.REGISTER:
-                        synchronized (clients) {
-                            clients.add(clientAddress);
-                        }
-                        LOG.info("Client {} was registered.", clientAddress);
-                        break;
-
-                    case Request.SEND_TIME:
-                        double clientSkew = clientOutput.readDouble();
-                        double clientOffset = clientOutput.readDouble();
-                        TimeInfo timeInfo = new TimeInfo(clientSkew, clientOffset);
-
-                        LOG.info("Got time info from {}: {}", clientAddress, timeInfo);
-
-                        synchronized (clientTimes) {
-                            clientTimes.put(clientAddress, timeInfo);
-                        }
-                        break;
-
-                    case Request.UPDATE_NEIGHBOURS:
-                        List<ClientAddress> neighbours = getNeighbours(clientAddress);
-                        try {
-                            clientInput.writeInt(neighbours.size());
-                            for (ClientAddress neighbour : neighbours) {
-                                clientInput.writeUTF(neighbour.getIp());
-                                clientInput.writeInt(neighbour.getPort());
-                            }
-
-                            LOG.info("Neighbours were sent to {}: {}", clientAddress, neighbours);
-                        } catch (IOException e) {
-                            LOG.error("Failed to send neighbours.", e);
-                        }
-                        break;
+                if (requestId == Request.OPEN_SESSION) {
+                    serveSession(clientAddress, clientOutput, clientInput);
+                    return;
+                }
+
+                ByteBuffer response = timedHandle(clientAddress, requestId, clientOutput);
 
+                if (response != null) {
+                    clientInput.write(response.array(), response.position(), response.remaining());
                 }
             } catch (IOException e) {
                 LOG.error("Failed to handle new connection.", e);
             }
         }
+
+        private void serveSession(ClientAddress clientAddress, DataInputStream clientOutput, DataOutputStream clientInput) throws IOException {
+            LOG.info("Session opened by {}", clientAddress);
+
+            while (true) {
+                int length;
+
+                try {
+                    length = clientOutput.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                int requestNo = clientOutput.readInt();
+                int requestId = clientOutput.readInt();
+
+                int payloadSize = Request.payloadSize(requestId);
+
+                // unknown requests have no size, and -1 must not pass for a 7 byte frame
+                if (payloadSize < 0 || payloadSize != length - 8) {
+                    LOG.warn("Malformed {} request from {}, closing session.", Request.toString(requestId), clientAddress);
+                    break;
+                }
+
+                ByteBuffer response = timedHandle(clientAddress, requestId, clientOutput);
+                int responseSize = response == null ? 0 : response.remaining();
+
+                clientInput.writeInt(4 + responseSize);
+                clientInput.writeInt(requestNo);
+                if (response != null) {
+                    clientInput.write(response.array(), response.position(), responseSize);
+                }
+                clientInput.flush();
+            }
+
+            LOG.info("Session closed by {}", clientAddress);
+        }
+
+        private ByteBuffer timedHandle(ClientAddress clientAddress, int requestId, DataInputStream clientOutput) throws IOException {
+            long start = System.nanoTime();
+
+            heartbeat(clientAddress, requestId);
+
+            ByteBuffer response = handle(clientAddress, requestId, clientOutput);
+
+            metrics.handled(System.nanoTime() - start);
+
+            return response;
+        }
+
+        private ByteBuffer handle(ClientAddress clientAddress, int requestId, DataInputStream clientOutput) throws IOException {
+            if (LOG.isInfoEnabled() && REQUEST_LOG.tryAcquire()) {
+                LOG.info("{} request from {} ({} similar suppressed)", Request.toString(requestId), clientAddress, REQUEST_LOG.takeSuppressed());
+            }
+
+            metrics.requested(requestId);
+
+            switch (requestId) {
+                case Request.REGISTER:
+                    register(clientAddress);
+                    return null;
+
+                case Request.SEND_TIME:
+                    double clientSkew = clientOutput.readDouble();
+                    double clientOffset = clientOutput.readDouble();
+
+                    updateTime(clientAddress, new TimeInfo(clientSkew, clientOffset));
+                    return null;
+
+                case Request.UPDATE_NEIGHBOURS:
+                    List<ClientAddress> neighbours = getNeighbours(clientAddress);
+
+                    LOG.debug("Neighbours were sent to {}: {}", clientAddress, neighbours);
+
+                    return NeighboursCodec.encode(neighbours);
+
+                case Request.NEIGHBOURS_DELTA:
+                    NeighboursDelta delta = getNeighboursDelta(clientAddress, clientOutput.readLong());
+
+                    LOG.debug("Neighbours were sent to {}: {}", clientAddress, delta);
+
+                    return NeighboursCodec.encodeDelta(delta);
+
+                case Request.SHARD_MEMBERS:
+                    return NeighboursCodec.encode(getShardMembers(clientOutput.readInt()));
+
+                default:
+                    return null;
+            }
+        }
     }
 
     public void stop() {
         running = false;
 
+        if (selectorServer != null) {
+            selectorServer.stop();
+        }
+
+        if (handlerExecutor != null) {
+            handlerExecutor.shutdown();
+        }
+
+        if (leaseReaper != null) {
+            leaseReaper.shutdownNow();
+        }
+
+        if (shardBridges != null) {
+            shardBridges.stop();
+        }
+
+        if (statsEndpoint != null) {
+            statsEndpoint.stop();
+        }
+
+        Jmx.unregister(mbeanName);
+        Jmx.unregister(metricsName);
+
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOG.error("Failed to close journal.", e);
+            }
+        }
+
         LOG.info("Stopping server...");
     }
 
@@ -0,0 +1,71 @@
+package ru.spbau.gorokhov.ats.server;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import ru.spbau.gorokhov.ats.client.MemoryTransport;
+import ru.spbau.gorokhov.ats.server.topology.RandomTopology;
+import ru.spbau.gorokhov.ats.server.topology.TopologyStrategy;
+
+import java.util.Collections;
+import java.util.List;
+
+@Getter
+@Setter
+@Accessors(chain = true)
+public class ServerConfig {
+    public enum Mode {
+        // thread per connection
+        BLOCKING,
+        // fixed set of selector event loops
+        SELECTOR
+    }
+
+    public enum Handlers {
+        // run handlers on the event loop thread, selector mode only
+        INLINE,
+        WORKER_POOL,
+        // falls back to the worker pool on JVMs without virtual threads
+        VIRTUAL_THREADS
+    }
+
+    private Mode mode = Mode.SELECTOR;
+
+    private int eventLoops = 2;
+
+    // serve sessions of clients in this in-JVM network instead of on a server socket, selector mode only
+    private MemoryTransport transport = null;
+
+    private Handlers handlers = Handlers.WORKER_POOL;
+
+    // selector mode only, blocking mode needs a thread per open connection
+    private int workerThreads = Runtime.getRuntime().availableProcessors();
+
+    private TopologyStrategy topologyStrategy = new RandomTopology();
+
+    private int neighbourCount = 8;
+
+    // host:port of the other coordinator shards, empty if this coordinator serves the whole cluster
+    private List<String> shardPeers = Collections.emptyList();
+    // neighbours from other shards given to every client on top of the neighbour count
+    private int bridgeNeighbours = 2;
+    // members asked from every other shard, bridges are picked among them
+    private int bridgeSampleSize = 256;
+    private long bridgeRefreshInterval = 10000;
+
+    // clients not heard of for this long are evicted, non-positive disables leases
+    private long leaseTimeout = 30000;
+    // granularity of lease expiry
+    private long leaseTick = 100;
+
+    // loopback HTTP port of the cluster stats, zero picks a free one, negative disables them
+    private int statsPort = 8081;
+
+    // directory of the membership and time report journal, null disables it
+    private String journalDirectory = null;
+    private int journalSegmentRecords = 1 << 16;
+    // longest time an event waits to be forced to disk
+    private long journalCommitInterval = 10;
+    // segments kept for history besides the compacted state
+    private int journalRetainedSegments = 8;
+}
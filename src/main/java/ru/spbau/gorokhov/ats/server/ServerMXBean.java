@@ -0,0 +1,11 @@
+package ru.spbau.gorokhov.ats.server;
+
+public interface ServerMXBean {
+    int getPort();
+
+    int getRegisteredClients();
+
+    int getReportedClients();
+
+    int getLeasedClients();
+}
@@ -0,0 +1,360 @@
+package ru.spbau.gorokhov.ats.server.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of coordinator events in memory-mapped segment files of fixed-size records:
+ * <pre>
+ * record: timestamp:long key:long skew:double offset:double type:int crc:int
+ * </pre>
+ * Zero type marks the end of a segment, a record with a wrong checksum is a torn write and ends it too.
+ * <p>
+ * Appends only copy the record into a staging buffer; a committer thread moves staged records
+ * into the segment and forces it once per batch, so events are durable within the commit interval.
+ * Appends never wait for the committer, they may run on the selector thread: if it falls so far behind
+ * that the staging buffer is full, a SEND_TIME record is dropped and the caller is told so, while REGISTER
+ * and EVICT records, which the recovered membership depends on, grow the buffer instead.
+ * Opening a journal compacts it: the latest state is rewritten at the start of a new segment,
+ * and segments beyond the retained history are deleted.
+ */
+public class Journal implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+
+    static final int RECORD_SIZE = 40;
+    private static final int BODY_SIZE = 36;
+    private static final int TYPE_POSITION = 32;
+
+    private static final int STAGING_SIZE = 4096 * BODY_SIZE;
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private final Path directory;
+    private final int segmentRecords;
+    private final long commitInterval;
+
+    private final List<JournalRecord> recoveredState;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled when a batch starts and when the staging buffer is half full
+    private final Condition staged = lock.newCondition();
+
+    // guarded by lock
+    private ByteBuffer staging = ByteBuffer.allocate(STAGING_SIZE);
+    private ByteBuffer committing = ByteBuffer.allocate(STAGING_SIZE);
+    private boolean running = true;
+
+    // committer thread only
+    private final CRC32 crc = new CRC32();
+    private long segmentIndex;
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+
+    private final Thread committer;
+
+    public Journal(Path directory, int segmentRecords, long commitInterval, int retainedSegments) throws IOException {
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.commitInterval = commitInterval;
+
+        Files.createDirectories(directory);
+
+        List<Path> segments = listSegments(directory);
+
+        recoveredState = compact(segments);
+
+        segmentIndex = segments.isEmpty() ? 0 : indexOf(segments.get(segments.size() - 1)) + 1;
+        openSegment();
+
+        for (JournalRecord record : recoveredState) {
+            ensureSegmentSpace();
+            write(record.compacted());
+        }
+        segment.force();
+
+        // the compacted state does not depend on them any more
+        for (int i = 0; i < segments.size() - retainedSegments; i++) {
+            Files.delete(segments.get(i));
+        }
+
+        LOG.info("Journal {} recovered {} records from {} segments.", directory, recoveredState.size(), segments.size());
+
+        committer = new Thread(this::commitLoop, "journal-committer");
+        committer.start();
+    }
+
+    /**
+     * @return latest REGISTER and SEND_TIME record of every client found at opening and not evicted since,
+     * in registration order
+     */
+    public List<JournalRecord> getRecoveredState() {
+        return recoveredState;
+    }
+
+    /**
+     * @return false if the record was dropped: the journal is closed, or it is a SEND_TIME record
+     * and the committer is behind
+     */
+    public boolean append(int type, long timestamp, long key, double skew, double offset) {
+        lock.lock();
+        try {
+            if (!running) {
+                return false;
+            }
+
+            if (staging.position() + BODY_SIZE > STAGING_SIZE) {
+                staged.signal();
+
+                if (type == JournalRecord.SEND_TIME) {
+                    return false;
+                }
+
+                if (staging.remaining() < BODY_SIZE) {
+                    ByteBuffer grown = ByteBuffer.allocate(2 * staging.capacity());
+                    staging.flip();
+                    grown.put(staging);
+                    staging = grown;
+                }
+            }
+
+            staging.putLong(timestamp);
+            staging.putLong(key);
+            staging.putDouble(skew);
+            staging.putDouble(offset);
+            staging.putInt(type);
+
+            if (staging.position() == BODY_SIZE || staging.position() == STAGING_SIZE / 2) {
+                staged.signal();
+            }
+
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            ByteBuffer batch;
+            boolean last;
+
+            lock.lock();
+            try {
+                while (running && staging.position() == 0) {
+                    staged.awaitUninterruptibly();
+                }
+
+                // group commit window
+                if (running && staging.position() < STAGING_SIZE / 2) {
+                    staged.await(commitInterval, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } finally {
+                last = !running;
+
+                batch = staging;
+                // a buffer grown by membership records is not kept
+                staging = committing.capacity() > STAGING_SIZE ? ByteBuffer.allocate(STAGING_SIZE) : committing;
+                committing = batch;
+                staging.clear();
+
+                lock.unlock();
+            }
+
+            batch.flip();
+
+            try {
+                commit(batch);
+            } catch (IOException e) {
+                LOG.error("Failed to commit {} journal records.", batch.remaining() / BODY_SIZE, e);
+            }
+
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    private void commit(ByteBuffer batch) throws IOException {
+        if (!batch.hasRemaining()) {
+            return;
+        }
+
+        while (batch.hasRemaining()) {
+            ensureSegmentSpace();
+
+            int start = segment.position();
+
+            ByteBuffer body = batch.duplicate();
+            body.limit(body.position() + BODY_SIZE);
+            segment.put(body);
+            batch.position(batch.position() + BODY_SIZE);
+
+            segment.putInt(checksum(segment, start));
+        }
+
+        segment.force();
+    }
+
+    private void write(JournalRecord record) {
+        int start = segment.position();
+
+        segment.putLong(record.getTimestamp());
+        segment.putLong(record.getKey());
+        segment.putDouble(record.getSkew());
+        segment.putDouble(record.getOffset());
+        segment.putInt(record.getType());
+        segment.putInt(checksum(segment, start));
+    }
+
+    private void ensureSegmentSpace() throws IOException {
+        if (segment.remaining() < RECORD_SIZE) {
+            segment.force();
+            segmentChannel.close();
+
+            segmentIndex++;
+            openSegment();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", segmentIndex, SEGMENT_SUFFIX));
+
+        segmentChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * RECORD_SIZE);
+    }
+
+    private int checksum(ByteBuffer buffer, int start) {
+        ByteBuffer body = buffer.duplicate();
+        body.limit(start + BODY_SIZE).position(start);
+
+        crc.reset();
+        crc.update(body);
+
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            running = false;
+            staged.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        segmentChannel.close();
+    }
+
+    /**
+     * Replays every record of the journal in order, compacted ones included.
+     */
+    public static void read(Path directory, Consumer<JournalRecord> visitor) throws IOException {
+        read(listSegments(directory), visitor);
+    }
+
+    private static void read(List<Path> segments, Consumer<JournalRecord> visitor) throws IOException {
+        CRC32 crc = new CRC32();
+
+        for (Path path : segments) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                for (int start = 0; start + RECORD_SIZE <= segment.limit(); start += RECORD_SIZE) {
+                    int type = segment.getInt(start + TYPE_POSITION);
+
+                    if (type == 0) {
+                        break;
+                    }
+
+                    ByteBuffer body = segment.duplicate();
+                    body.limit(start + BODY_SIZE).position(start);
+                    crc.reset();
+                    crc.update(body);
+
+                    if ((int) crc.getValue() != segment.getInt(start + BODY_SIZE)) {
+                        LOG.warn("Journal segment {} is torn at record {}.", path, start / RECORD_SIZE);
+                        break;
+                    }
+
+                    visitor.accept(new JournalRecord(type, segment.getLong(start), segment.getLong(start + 8),
+                            segment.getDouble(start + 16), segment.getDouble(start + 24)));
+                }
+            }
+        }
+    }
+
+    private static List<JournalRecord> compact(List<Path> segments) throws IOException {
+        Map<Long, JournalRecord> registrations = new LinkedHashMap<>();
+        Map<Long, JournalRecord> reports = new LinkedHashMap<>();
+
+        read(segments, record -> {
+            if (record.getEvent() == JournalRecord.REGISTER) {
+                registrations.putIfAbsent(record.getKey(), record);
+            } else if (record.getEvent() == JournalRecord.SEND_TIME) {
+                reports.put(record.getKey(), record);
+            } else if (record.getEvent() == JournalRecord.EVICT) {
+                registrations.remove(record.getKey());
+                reports.remove(record.getKey());
+            }
+        });
+
+        List<JournalRecord> state = new ArrayList<>(registrations.size() + reports.size());
+        state.addAll(registrations.values());
+        state.addAll(reports.values());
+
+        return state;
+    }
+
+    private static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+
+        // zero-padded indices sort by name
+        Collections.sort(segments);
+
+        return segments;
+    }
+
+    private static long indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
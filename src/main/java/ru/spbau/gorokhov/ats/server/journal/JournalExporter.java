@@ -0,0 +1,44 @@
+package ru.spbau.gorokhov.ats.server.journal;
+
+import ru.spbau.gorokhov.ats.model.AddressKeys;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Prints the events of a journal directory as CSV, without the records repeated by compaction.
+ */
+public class JournalExporter {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: JournalExporter <journal directory>");
+            System.exit(1);
+        }
+
+        System.out.println("time_ms,event,client,skew,offset");
+
+        Journal.read(Paths.get(args[0]), record -> {
+            if (record.isCompacted()) {
+                return;
+            }
+
+            String event;
+            switch (record.getEvent()) {
+                case JournalRecord.REGISTER:
+                    event = "register";
+                    break;
+
+                case JournalRecord.EVICT:
+                    event = "evict";
+                    break;
+
+                default:
+                    event = "send_time";
+                    break;
+            }
+
+            System.out.println(String.format("%d,%s,%s,%s,%s", record.getTimestamp(), event,
+                    AddressKeys.toString(record.getKey()), record.getSkew(), record.getOffset()));
+        });
+    }
+}
@@ -0,0 +1,38 @@
+package ru.spbau.gorokhov.ats.server.journal;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+@Getter
+@ToString
+@RequiredArgsConstructor
+public class JournalRecord {
+    public static final int REGISTER = 1;
+    public static final int SEND_TIME = 2;
+    // lease of the client expired, skew and offset are zero
+    public static final int EVICT = 3;
+
+    // set on records rewritten by compaction, they repeat earlier history
+    static final int COMPACTED = 0x100;
+
+    private final int type;
+    // real time of the event
+    private final long timestamp;
+    // client address, see AddressKeys
+    private final long key;
+    private final double skew;
+    private final double offset;
+
+    public int getEvent() {
+        return type & ~COMPACTED;
+    }
+
+    public boolean isCompacted() {
+        return (type & COMPACTED) != 0;
+    }
+
+    JournalRecord compacted() {
+        return new JournalRecord(type | COMPACTED, timestamp, key, skew, offset);
+    }
+}
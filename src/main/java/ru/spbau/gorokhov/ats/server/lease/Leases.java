@@ -0,0 +1,76 @@
+package ru.spbau.gorokhov.ats.server.lease;
+
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Liveness leases of clients: every request of a client renews its lease, a client which has not been heard of
+ * for the lease timeout expires. Expiry runs on a {@link TimingWheel}, so neither renewals nor expiry depend
+ * on the number of clients.
+ */
+public class Leases {
+    private static final int WHEEL_LEVELS = 4;
+
+    private final long timeout;
+
+    private final TimingWheel<ClientAddress> wheel;
+    private final Map<ClientAddress, TimingWheel.Timer<ClientAddress>> timers = new HashMap<>();
+
+    public Leases(long timeout, long tick, long now) {
+        this.timeout = timeout;
+
+        wheel = new TimingWheel<>(tick, WHEEL_LEVELS, now);
+    }
+
+    /**
+     * @return true if the client had no lease
+     */
+    public synchronized boolean renew(ClientAddress client, long now) {
+        TimingWheel.Timer<ClientAddress> timer = timers.get(client);
+
+        if (timer != null) {
+            wheel.reschedule(timer, now + timeout);
+            return false;
+        }
+
+        timers.put(client, wheel.schedule(client, now + timeout));
+        return true;
+    }
+
+    public synchronized boolean remove(ClientAddress client) {
+        TimingWheel.Timer<ClientAddress> timer = timers.remove(client);
+
+        if (timer == null) {
+            return false;
+        }
+
+        wheel.cancel(timer);
+        return true;
+    }
+
+    /**
+     * @return clients whose leases expired by {@code now}, they hold no lease anymore
+     */
+    public synchronized List<ClientAddress> expire(long now) {
+        List<ClientAddress> expired = new ArrayList<>();
+
+        wheel.advance(now, client -> {
+            timers.remove(client);
+            expired.add(client);
+        });
+
+        return expired;
+    }
+
+    public synchronized boolean contains(ClientAddress client) {
+        return timers.containsKey(client);
+    }
+
+    public synchronized int size() {
+        return timers.size();
+    }
+}
@@ -0,0 +1,155 @@
+package ru.spbau.gorokhov.ats.server.lease;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel: every level has {@link #SLOTS} buckets, a bucket of level {@code l} spans
+ * {@code SLOTS^l} ticks. A timer is kept at the lowest level whose upper digits of the deadline match the current tick,
+ * and moves one level down when the current tick reaches its bucket. Scheduling, rescheduling and cancelling
+ * are O(1) list operations, advancing costs one bucket per tick plus the cascaded timers.
+ * Deadlines are rounded up to whole ticks, deadlines beyond the top level are clamped to its span.
+ * Not thread-safe.
+ */
+public class TimingWheel<T> {
+    private static final int SLOT_BITS = 6;
+    public static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    public static class Timer<T> {
+        private final T value;
+        private long deadline;
+
+        private Timer<T> prev;
+        private Timer<T> next;
+
+        private Timer(T value) {
+            this.value = value;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public boolean isScheduled() {
+            return prev != null;
+        }
+    }
+
+    private final long tickMs;
+    private final int levels;
+
+    // sentinel heads of circular lists, level * SLOTS + slot
+    private final Timer<T>[] buckets;
+
+    private long currentTick;
+    private int size = 0;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMs, int levels, long nowMs) {
+        this.tickMs = tickMs;
+        this.levels = levels;
+
+        buckets = (Timer<T>[]) new Timer<?>[levels * SLOTS];
+        for (int i = 0; i < buckets.length; i++) {
+            Timer<T> head = new Timer<>(null);
+            head.prev = head;
+            head.next = head;
+            buckets[i] = head;
+        }
+
+        currentTick = nowMs / tickMs;
+    }
+
+    public Timer<T> schedule(T value, long deadlineMs) {
+        Timer<T> timer = new Timer<>(value);
+
+        reschedule(timer, deadlineMs);
+
+        return timer;
+    }
+
+    public void reschedule(Timer<T> timer, long deadlineMs) {
+        if (timer.isScheduled()) {
+            unlink(timer);
+        } else {
+            size++;
+        }
+
+        long deadline = (deadlineMs + tickMs - 1) / tickMs;
+        long span = 1L << (SLOT_BITS * levels);
+
+        // buckets of the current tick were already fired
+        timer.deadline = Math.min(Math.max(deadline, currentTick + 1), currentTick + span - 1);
+
+        place(timer);
+    }
+
+    public void cancel(Timer<T> timer) {
+        if (timer.isScheduled()) {
+            unlink(timer);
+            size--;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Fires every timer with a deadline up to {@code nowMs}, fired timers are no longer scheduled.
+     */
+    public void advance(long nowMs, Consumer<T> expired) {
+        long targetTick = nowMs / tickMs;
+
+        while (currentTick < targetTick) {
+            currentTick++;
+
+            for (int level = levels - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                }
+            }
+
+            Timer<T> head = buckets[(int) currentTick & SLOT_MASK];
+
+            while (head.next != head) {
+                Timer<T> timer = head.next;
+                unlink(timer);
+                size--;
+
+                expired.accept(timer.value);
+            }
+        }
+    }
+
+    private void cascade(int level, int slot) {
+        Timer<T> head = buckets[level * SLOTS + slot];
+
+        while (head.next != head) {
+            Timer<T> timer = head.next;
+            unlink(timer);
+            place(timer);
+        }
+    }
+
+    private void place(Timer<T> timer) {
+        int level = 0;
+        while (level < levels - 1 && (timer.deadline >>> (SLOT_BITS * (level + 1))) != (currentTick >>> (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+
+        Timer<T> head = buckets[level * SLOTS + ((int) (timer.deadline >>> (SLOT_BITS * level)) & SLOT_MASK)];
+
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+    }
+
+    private static <T> void unlink(Timer<T> timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+}
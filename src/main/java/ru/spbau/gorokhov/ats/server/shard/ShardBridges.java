@@ -0,0 +1,104 @@
+package ru.spbau.gorokhov.ats.server.shard;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+import ru.spbau.gorokhov.ats.model.Request;
+import ru.spbau.gorokhov.ats.server.topology.Topology;
+import ru.spbau.gorokhov.ats.utils.NeighboursCodec;
+import ru.spbau.gorokhov.ats.utils.ShardRing;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically asks the other coordinator shards for a sample of their members with one-shot
+ * {@link Request#SHARD_MEMBERS} requests and hands the union to the topology as bridge candidates.
+ * Members of a shard which does not answer stop being bridges until it answers again.
+ */
+public class ShardBridges {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardBridges.class);
+
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final int READ_TIMEOUT = 2000;
+
+    // lets the other shards of a cluster started together come up first
+    private static final long FIRST_REFRESH_DELAY = 1000;
+
+    private final int localPort;
+    private final List<InetSocketAddress> peers;
+    private final int sampleSize;
+    private final long refreshInterval;
+    private final Topology topology;
+
+    private ScheduledExecutorService scheduler;
+
+    public ShardBridges(int localPort, List<String> peers, int sampleSize, long refreshInterval, Topology topology) {
+        this.localPort = localPort;
+        this.sampleSize = sampleSize;
+        this.refreshInterval = refreshInterval;
+        this.topology = topology;
+
+        this.peers = new ArrayList<>(peers.size());
+        for (String peer : peers) {
+            this.peers.add(ShardRing.parseEndpoint(peer));
+        }
+    }
+
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> new Thread(task, String.format("shard-bridges-%d", localPort)));
+        scheduler.scheduleWithFixedDelay(this::refresh, FIRST_REFRESH_DELAY, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void refresh() {
+        List<ClientAddress> remote = new ArrayList<>();
+
+        for (InetSocketAddress peer : peers) {
+            try {
+                remote.addAll(fetch(peer));
+            } catch (IOException e) {
+                LOG.warn("Failed to get members of shard {}:{}: {}", peer.getHostString(), peer.getPort(), e.getMessage());
+            }
+        }
+
+        topology.setRemoteMembers(remote);
+
+        LOG.debug("Got {} bridge candidates from {} shards.", remote.size(), peers.size());
+    }
+
+    private List<ClientAddress> fetch(InetSocketAddress peer) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(peer.getHostString(), peer.getPort()), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(localPort);
+            out.writeInt(Request.SHARD_MEMBERS);
+            out.writeInt(sampleSize);
+            out.flush();
+
+            // one-shot requests are answered with the bare response, the coordinator closes the connection after it
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] chunk = new byte[4096];
+            for (int read = in.read(chunk); read >= 0; read = in.read(chunk)) {
+                response.write(chunk, 0, read);
+            }
+
+            return NeighboursCodec.decode(ByteBuffer.wrap(response.toByteArray()));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ru.spbau.gorokhov.ats.server.stats;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Dispersion of the reported virtual clocks {@code skew * realTime + offset} at one real time.
+ * Distributions are null when nobody has reported yet.
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor
+public class ClusterStats {
+    private final long realTime;
+    private final int clients;
+
+    private final Distribution skew;
+    private final Distribution offset;
+    // deviation of every virtual clock from the median one, in milliseconds
+    private final Distribution timeError;
+
+    // difference between the fastest and the slowest virtual clock
+    private final double maxPairwiseError;
+
+    /**
+     * @return one {@code name value} line per metric
+     */
+    public String toText() {
+        StringBuilder out = new StringBuilder();
+
+        out.append("real_time ").append(realTime).append('\n');
+        out.append("clients ").append(clients).append('\n');
+
+        if (clients > 0) {
+            skew.appendTo(out, "skew");
+            offset.appendTo(out, "offset");
+            timeError.appendTo(out, "time_error");
+            out.append("max_pairwise_error ").append(maxPairwiseError).append('\n');
+        }
+
+        return out.toString();
+    }
+}
@@ -0,0 +1,41 @@
+package ru.spbau.gorokhov.ats.server.stats;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+@Getter
+@ToString
+@RequiredArgsConstructor
+public class Distribution {
+    private final double mean;
+    private final double stdDev;
+    private final double min;
+    private final double p50;
+    private final double p90;
+    private final double p99;
+    private final double max;
+
+    /**
+     * @param sorted ascending values, not empty
+     */
+    static Distribution of(double mean, double stdDev, double[] sorted, int count) {
+        return new Distribution(mean, stdDev, sorted[0],
+                percentile(sorted, count, 0.5), percentile(sorted, count, 0.9), percentile(sorted, count, 0.99),
+                sorted[count - 1]);
+    }
+
+    private static double percentile(double[] sorted, int count, double rank) {
+        return sorted[(int) Math.ceil(rank * count) - 1];
+    }
+
+    void appendTo(StringBuilder out, String name) {
+        out.append(name).append("_mean ").append(mean).append('\n');
+        out.append(name).append("_stddev ").append(stdDev).append('\n');
+        out.append(name).append("_min ").append(min).append('\n');
+        out.append(name).append("_p50 ").append(p50).append('\n');
+        out.append(name).append("_p90 ").append(p90).append('\n');
+        out.append(name).append("_p99 ").append(p99).append('\n');
+        out.append(name).append("_max ").append(max).append('\n');
+    }
+}
@@ -0,0 +1,67 @@
+package ru.spbau.gorokhov.ats.server.stats;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves {@code GET /stats} with the current {@link ClusterStats} as plain text, on the loopback interface only.
+ */
+public class StatsEndpoint {
+    private static final Logger LOG = LoggerFactory.getLogger(StatsEndpoint.class);
+
+    private final TimeReportStore store;
+    private final int port;
+
+    private HttpServer httpServer;
+
+    public StatsEndpoint(TimeReportStore store, int port) {
+        this.store = store;
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/stats", this::handle);
+        httpServer.start();
+
+        LOG.info("Cluster stats are served at http://localhost:{}/stats", httpServer.getAddress().getPort());
+    }
+
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = store.snapshot(System.currentTimeMillis()).toText().getBytes(StandardCharsets.US_ASCII);
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=us-ascii");
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package ru.spbau.gorokhov.ats.server.stats;
+
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+import ru.spbau.gorokhov.ats.model.TimeInfo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Latest time report of every client, kept in dense arrays, so a report is O(1).
+ * All statistics are computed from a copy of the arrays when {@link #snapshot} is pulled, means and deviations
+ * in two passes: offsets and time errors are large and nearly equal, so their variance would cancel out
+ * of running sums.
+ * Thread-safe.
+ */
+public class TimeReportStore {
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private final Map<ClientAddress, Integer> slots = new HashMap<>();
+    private ClientAddress[] addresses = new ClientAddress[DEFAULT_CAPACITY];
+    private double[] skews = new double[DEFAULT_CAPACITY];
+    private double[] offsets = new double[DEFAULT_CAPACITY];
+    private int size = 0;
+
+    public synchronized void report(ClientAddress address, TimeInfo timeInfo) {
+        Integer slot = slots.get(address);
+
+        if (slot == null) {
+            if (size == skews.length) {
+                addresses = Arrays.copyOf(addresses, 2 * size);
+                skews = Arrays.copyOf(skews, 2 * size);
+                offsets = Arrays.copyOf(offsets, 2 * size);
+            }
+
+            slot = size++;
+            slots.put(address, slot);
+            addresses[slot] = address;
+        }
+
+        skews[slot] = timeInfo.getSkew();
+        offsets[slot] = timeInfo.getOffset();
+    }
+
+    public synchronized void remove(ClientAddress address) {
+        Integer slot = slots.remove(address);
+
+        if (slot == null) {
+            return;
+        }
+
+        int last = --size;
+
+        if (slot != last) {
+            addresses[slot] = addresses[last];
+            skews[slot] = skews[last];
+            offsets[slot] = offsets[last];
+            slots.put(addresses[slot], slot);
+        }
+
+        addresses[last] = null;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public ClusterStats snapshot(long realTime) {
+        int count;
+        double[] skew;
+        double[] offset;
+
+        synchronized (this) {
+            count = size;
+
+            if (count == 0) {
+                return new ClusterStats(realTime, 0, null, null, null, 0);
+            }
+
+            skew = Arrays.copyOf(skews, count);
+            offset = Arrays.copyOf(offsets, count);
+        }
+
+        double skewMean = mean(skew, count, 1);
+        double skewVariance = variance(skew, count, skewMean);
+        double offsetMean = mean(offset, count, offset[0]);
+        double offsetVariance = variance(offset, count, offsetMean);
+
+        // virtual time is realTime + realTime * (skew - 1) + offset
+        double[] time = new double[count];
+        for (int i = 0; i < count; i++) {
+            time[i] = realTime * (skew[i] - 1) + offset[i];
+        }
+
+        Arrays.sort(skew);
+        Arrays.sort(offset);
+        Arrays.sort(time);
+
+        double median = time[(count - 1) / 2];
+
+        for (int i = 0; i < count; i++) {
+            time[i] -= median;
+        }
+        double timeErrorMean = mean(time, count, 0);
+        double timeVariance = variance(time, count, timeErrorMean);
+
+        return new ClusterStats(realTime, count,
+                Distribution.of(skewMean, Math.sqrt(skewVariance), skew, count),
+                Distribution.of(offsetMean, Math.sqrt(offsetVariance), offset, count),
+                Distribution.of(timeErrorMean, Math.sqrt(timeVariance), time, count),
+                time[count - 1] - time[0]);
+    }
+
+    /**
+     * Mean of the values, summed as their differences from the shift so the sum of large values stays exact.
+     */
+    private static double mean(double[] values, int count, double shift) {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += values[i] - shift;
+        }
+        return shift + sum / count;
+    }
+
+    private static double variance(double[] values, int count, double mean) {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            double difference = values[i] - mean;
+            sum += difference * difference;
+        }
+        return sum / count;
+    }
+}
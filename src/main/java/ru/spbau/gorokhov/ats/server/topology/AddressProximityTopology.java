@@ -0,0 +1,79 @@
+package ru.spbau.gorokhov.ats.server.topology;
+
+import ru.spbau.gorokhov.ats.model.AddressKeys;
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+
+import java.util.*;
+
+/**
+ * Half of the neighbours are the closest members found so far, the rest are random to keep the graph mixing.
+ * Each selection compares the current close neighbours with a small random sample, so the neighbourhood
+ * improves over time without scanning the whole membership. Closeness is address proximity, the number of leading
+ * bits two IPv4 addresses share, on the assumption that nodes of one subnet are also close in network delay;
+ * no delays are measured.
+ */
+public class AddressProximityTopology implements TopologyStrategy {
+    private static final int SAMPLE_FACTOR = 2;
+
+    private final Random random;
+
+    public AddressProximityTopology(Random random) {
+        this.random = random;
+    }
+
+    public AddressProximityTopology() {
+        this(new Random());
+    }
+
+    @Override
+    public void select(ClientAddress node, Topology topology, int degree, Set<ClientAddress> neighbours) {
+        List<ClientAddress> members = topology.getMembers();
+
+        if (members.isEmpty()) {
+            return;
+        }
+
+        List<ClientAddress> previous = new ArrayList<>(neighbours);
+
+        List<ClientAddress> candidates = new ArrayList<>(neighbours);
+        for (int i = 0; i < SAMPLE_FACTOR * degree; i++) {
+            ClientAddress candidate = members.get(random.nextInt(members.size()));
+            if (!candidate.equals(node) && !neighbours.contains(candidate)) {
+                candidates.add(candidate);
+            }
+        }
+
+        long nodeKey = AddressKeys.of(node);
+        candidates.sort(Comparator.comparingInt(candidate -> distance(nodeKey, AddressKeys.of(candidate))));
+
+        neighbours.clear();
+        for (ClientAddress candidate : candidates) {
+            if (neighbours.size() >= (degree + 1) / 2) {
+                break;
+            }
+            neighbours.add(candidate);
+        }
+
+        for (ClientAddress neighbour : previous) {
+            if (neighbours.size() >= degree) {
+                break;
+            }
+            neighbours.add(neighbour);
+        }
+
+        RandomTopology.fill(node, topology, degree, neighbours, random);
+    }
+
+    /**
+     * @return bits after the common prefix of the two IPv4 addresses, 0 to 32; other addresses are farthest
+     */
+    private static int distance(long fromKey, long toKey) {
+        if (!AddressKeys.isIpv4(fromKey) || !AddressKeys.isIpv4(toKey)) {
+            return 33;
+        }
+
+        long differing = (fromKey ^ toKey) >>> 16;
+
+        return differing == 0 ? 0 : 64 - Long.numberOfLeadingZeros(differing);
+    }
+}
@@ -0,0 +1,56 @@
+package ru.spbau.gorokhov.ats.server.topology;
+
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Keeps existing neighbours and fills the rest randomly, picking the less popular of two random members,
+ * so in-degrees stay close to the degree as well.
+ */
+public class RandomTopology implements TopologyStrategy {
+    private final Random random;
+
+    public RandomTopology(Random random) {
+        this.random = random;
+    }
+
+    public RandomTopology() {
+        this(new Random());
+    }
+
+    @Override
+    public void select(ClientAddress node, Topology topology, int degree, Set<ClientAddress> neighbours) {
+        fill(node, topology, degree, neighbours, random);
+    }
+
+    static void fill(ClientAddress node, Topology topology, int degree, Set<ClientAddress> neighbours, Random random) {
+        List<ClientAddress> members = topology.getMembers();
+
+        int others = members.size() - (topology.contains(node) ? 1 : 0);
+
+        if (others <= degree) {
+            for (ClientAddress member : members) {
+                if (!member.equals(node)) {
+                    neighbours.add(member);
+                }
+            }
+            return;
+        }
+
+        int attempts = 4 * degree;
+
+        while (neighbours.size() < degree && attempts --> 0) {
+            ClientAddress first = members.get(random.nextInt(members.size()));
+            ClientAddress second = members.get(random.nextInt(members.size()));
+
+            ClientAddress candidate = topology.getInDegree(first) <= topology.getInDegree(second) ? first : second;
+
+            if (!candidate.equals(node)) {
+                neighbours.add(candidate);
+            }
+        }
+    }
+}
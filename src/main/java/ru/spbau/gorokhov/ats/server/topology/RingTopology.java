@@ -0,0 +1,48 @@
+package ru.spbau.gorokhov.ats.server.topology;
+
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Successor, predecessor and chords at power of two distances along the membership ring,
+ * which keeps the diameter logarithmic.
+ */
+public class RingTopology implements TopologyStrategy {
+    @Override
+    public void select(ClientAddress node, Topology topology, int degree, Set<ClientAddress> neighbours) {
+        List<ClientAddress> members = topology.getMembers();
+        int size = members.size();
+
+        neighbours.clear();
+
+        if (size == 0) {
+            return;
+        }
+
+        int position = topology.indexOf(node);
+        if (position < 0) {
+            position = Math.floorMod(node.hashCode(), size);
+        }
+
+        add(node, members, degree, position + 1, neighbours);
+        add(node, members, degree, position - 1, neighbours);
+
+        for (int distance = 2; distance < size; distance *= 2) {
+            add(node, members, degree, position + distance, neighbours);
+        }
+    }
+
+    private static void add(ClientAddress node, List<ClientAddress> members, int degree, int position, Set<ClientAddress> neighbours) {
+        if (neighbours.size() >= degree) {
+            return;
+        }
+
+        ClientAddress member = members.get(Math.floorMod(position, members.size()));
+
+        if (!member.equals(node)) {
+            neighbours.add(member);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package ru.spbau.gorokhov.ats.server.topology;
+
+import ru.spbau.gorokhov.ats.model.AddressKeys;
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+import ru.spbau.gorokhov.ats.model.NeighboursDelta;
+import ru.spbau.gorokhov.ats.utils.Hashing;
+
+import java.util.*;
+
+/**
+ * Cluster membership and bounded neighbour lists of its members.
+ * Every node has a versioned neighbour set, and the set last sent to the node is remembered,
+ * so answers are deltas against what the node already has.
+ * <p>
+ * With sharded coordinators every node also gets up to {@code bridgeCount} bridge neighbours
+ * from the members of other shards, so the averaging spans the whole cluster.
+ */
+public class Topology {
+    private final TopologyStrategy strategy;
+    private final int degree;
+    private final int bridgeCount;
+
+    private final List<ClientAddress> members = new ArrayList<>();
+    private final List<ClientAddress> membersView = Collections.unmodifiableList(members);
+    private final Map<ClientAddress, Integer> memberIndex = new HashMap<>();
+
+    private final Map<ClientAddress, View> views = new HashMap<>();
+    private final Map<ClientAddress, Integer> inDegree = new HashMap<>();
+
+    // members of other shards bridge neighbours are picked from
+    private List<ClientAddress> remoteMembers = Collections.emptyList();
+    private Set<ClientAddress> remoteMemberSet = Collections.emptySet();
+
+    public Topology(TopologyStrategy strategy, int degree, int bridgeCount) {
+        this.strategy = strategy;
+        this.degree = degree;
+        this.bridgeCount = bridgeCount;
+    }
+
+    public Topology(TopologyStrategy strategy, int degree) {
+        this(strategy, degree, 0);
+    }
+
+    public synchronized boolean add(ClientAddress node) {
+        if (memberIndex.containsKey(node)) {
+            return false;
+        }
+
+        memberIndex.put(node, members.size());
+        members.add(node);
+
+        return true;
+    }
+
+    public synchronized boolean remove(ClientAddress node) {
+        Integer index = memberIndex.remove(node);
+
+        if (index == null) {
+            return false;
+        }
+
+        ClientAddress last = members.remove(members.size() - 1);
+        if (index < members.size()) {
+            members.set(index, last);
+            memberIndex.put(last, index);
+        }
+
+        View view = views.remove(node);
+        if (view != null) {
+            view.current.forEach(this::decrementInDegree);
+        }
+
+        return true;
+    }
+
+    public synchronized int size() {
+        return members.size();
+    }
+
+    /**
+     * Replaces the members of other shards, bridges to members which are gone are replaced on the next refresh.
+     */
+    public synchronized void setRemoteMembers(List<ClientAddress> remote) {
+        remoteMembers = new ArrayList<>(remote);
+        remoteMemberSet = new HashSet<>(remote);
+    }
+
+    /**
+     * Bottom-k sample by address hash: it is spread over the members like a random one,
+     * but stays the same as long as none of the sampled members leaves and no member with a lower hash joins.
+     */
+    public synchronized List<ClientAddress> sample(int count) {
+        if (members.size() <= count) {
+            return new ArrayList<>(members);
+        }
+
+        // max-heap of the lowest hashes seen
+        PriorityQueue<ClientAddress> lowest = new PriorityQueue<>(count + 1,
+                (a, b) -> Long.compare(Hashing.mix(AddressKeys.of(b)), Hashing.mix(AddressKeys.of(a))));
+
+        for (ClientAddress member : members) {
+            lowest.add(member);
+            if (lowest.size() > count) {
+                lowest.poll();
+            }
+        }
+
+        return new ArrayList<>(lowest);
+    }
+
+    public synchronized List<ClientAddress> getNeighbours(ClientAddress node) {
+        return new ArrayList<>(refresh(node).current);
+    }
+
+    public synchronized NeighboursDelta getDelta(ClientAddress node, long knownVersion) {
+        View view = refresh(node);
+
+        NeighboursDelta delta;
+
+        if (knownVersion != view.sentVersion || view.sent == null) {
+            delta = new NeighboursDelta(view.version, true, new ArrayList<>(view.current), Collections.emptyList());
+        } else {
+            List<ClientAddress> added = new ArrayList<>();
+            for (ClientAddress neighbour : view.current) {
+                if (!view.sent.contains(neighbour)) {
+                    added.add(neighbour);
+                }
+            }
+
+            List<ClientAddress> removed = new ArrayList<>();
+            for (ClientAddress neighbour : view.sent) {
+                if (!view.current.contains(neighbour)) {
+                    removed.add(neighbour);
+                }
+            }
+
+            delta = new NeighboursDelta(view.version, false, added, removed);
+        }
+
+        view.sent = new HashSet<>(view.current);
+        view.sentVersion = view.version;
+
+        return delta;
+    }
+
+    // accessors for strategies, called under the topology lock
+
+    List<ClientAddress> getMembers() {
+        return membersView;
+    }
+
+    boolean contains(ClientAddress node) {
+        return memberIndex.containsKey(node);
+    }
+
+    int indexOf(ClientAddress node) {
+        return memberIndex.getOrDefault(node, -1);
+    }
+
+    int getInDegree(ClientAddress node) {
+        return inDegree.getOrDefault(node, 0);
+    }
+
+    private View refresh(ClientAddress node) {
+        View view = views.computeIfAbsent(node, k -> new View());
+
+        Set<ClientAddress> selected = new LinkedHashSet<>(view.current);
+        selected.removeIf(neighbour -> !memberIndex.containsKey(neighbour));
+
+        strategy.select(node, this, degree, selected);
+
+        if (bridgeCount > 0) {
+            selectBridges(node, view.current, selected);
+        }
+
+        if (!selected.equals(view.current)) {
+            for (ClientAddress neighbour : selected) {
+                if (!view.current.contains(neighbour) && memberIndex.containsKey(neighbour)) {
+                    inDegree.merge(neighbour, 1, Integer::sum);
+                }
+            }
+            for (ClientAddress neighbour : view.current) {
+                if (!selected.contains(neighbour)) {
+                    decrementInDegree(neighbour);
+                }
+            }
+
+            view.current = selected;
+            view.version++;
+        }
+
+        return view;
+    }
+
+    private void selectBridges(ClientAddress node, Set<ClientAddress> previous, Set<ClientAddress> selected) {
+        int bridges = 0;
+
+        for (ClientAddress neighbour : previous) {
+            if (bridges < bridgeCount && remoteMemberSet.contains(neighbour) && !memberIndex.containsKey(neighbour)) {
+                selected.add(neighbour);
+                bridges++;
+            }
+        }
+
+        if (remoteMembers.isEmpty()) {
+            return;
+        }
+
+        // picks depend on the node only, so a node keeps its bridges while the remote members stay the same
+        long seed = Hashing.mix(AddressKeys.of(node));
+
+        for (int attempt = 0; bridges < bridgeCount && attempt < 4 * bridgeCount; attempt++) {
+            ClientAddress candidate = remoteMembers.get((int) Long.remainderUnsigned(Hashing.mix(seed + attempt), remoteMembers.size()));
+
+            if (selected.add(candidate)) {
+                bridges++;
+            }
+        }
+    }
+
+    private void decrementInDegree(ClientAddress node) {
+        inDegree.computeIfPresent(node, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private static class View {
+        private Set<ClientAddress> current = new LinkedHashSet<>();
+        private long version = 0;
+
+        private Set<ClientAddress> sent;
+        private long sentVersion = -1;
+    }
+}
@@ -0,0 +1,13 @@
+package ru.spbau.gorokhov.ats.server.topology;
+
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+
+import java.util.Set;
+
+public interface TopologyStrategy {
+    /**
+     * Updates neighbours of the node in place. Neighbours which left the cluster are already removed from the set,
+     * the node itself must never be added.
+     */
+    void select(ClientAddress node, Topology topology, int degree, Set<ClientAddress> neighbours);
+}
@@ -0,0 +1,27 @@
+package ru.spbau.gorokhov.ats.simulation;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+@Getter
+@ToString
+@RequiredArgsConstructor
+public class ConvergenceSample {
+    private final long timeMs;
+    // difference between the fastest and the slowest virtual clock
+    private final double maxErrorMs;
+    private final double stdDevMs;
+    // difference between the fastest and the slowest virtual clock rate
+    private final double skewSpread;
+    private final long delivered;
+    private final long lost;
+
+    public static String csvHeader() {
+        return "time_s,max_error_ms,stddev_ms,skew_spread,delivered,lost";
+    }
+
+    public String toCsv() {
+        return String.format("%.3f,%.3f,%.3f,%.3e,%d,%d", timeMs / 1000D, maxErrorMs, stdDevMs, skewSpread, delivered, lost);
+    }
+}
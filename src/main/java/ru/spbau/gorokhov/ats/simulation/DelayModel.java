@@ -0,0 +1,20 @@
+package ru.spbau.gorokhov.ats.simulation;
+
+import java.util.Random;
+
+public interface DelayModel {
+    long nextDelay(Random random);
+
+    static DelayModel constant(long delayMs) {
+        return random -> delayMs;
+    }
+
+    static DelayModel uniform(long minMs, long maxMs) {
+        return random -> minMs + (long) (random.nextDouble() * (maxMs - minMs + 1));
+    }
+
+    // long tail of queueing delays on top of the propagation delay
+    static DelayModel exponential(long minMs, double meanExtraMs) {
+        return random -> minMs + (long) (-meanExtraMs * Math.log(1 - random.nextDouble()));
+    }
+}
@@ -0,0 +1,15 @@
+package ru.spbau.gorokhov.ats.simulation;
+
+import java.util.Random;
+
+public interface LossModel {
+    boolean isLost(Random random);
+
+    static LossModel none() {
+        return random -> false;
+    }
+
+    static LossModel bernoulli(double lossProbability) {
+        return random -> random.nextDouble() < lossProbability;
+    }
+}
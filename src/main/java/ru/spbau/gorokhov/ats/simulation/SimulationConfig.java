@@ -0,0 +1,30 @@
+package ru.spbau.gorokhov.ats.simulation;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import ru.spbau.gorokhov.ats.client.estimator.AtsEstimator;
+import ru.spbau.gorokhov.ats.client.estimator.EstimatorConfig;
+
+@Getter
+@Setter
+@Accessors(chain = true)
+public class SimulationConfig {
+    private long seed = 42;
+
+    private int nodes = 1000;
+    private int neighbourCount = 8;
+
+    private long durationMs = 3 * AtsEstimator.STAGE_TIME + 50000;
+
+    // the same schedule as the real client has
+    private long firstSendDelayMs = 3000;
+    private long sendIntervalMs = 1000;
+    private long packetDeliveryDelayMs = 1;
+    private EstimatorConfig estimator = new EstimatorConfig();
+
+    private long sampleIntervalMs = 1000;
+
+    private DelayModel delayModel = DelayModel.uniform(0, 2);
+    private LossModel lossModel = LossModel.none();
+}
@@ -0,0 +1,298 @@
+package ru.spbau.gorokhov.ats.simulation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.gorokhov.ats.client.estimator.AtsEstimator;
+import ru.spbau.gorokhov.ats.client.estimator.ClockEstimate;
+import ru.spbau.gorokhov.ats.client.estimator.EstimatorConfig;
+import ru.spbau.gorokhov.ats.client.utils.Clock;
+import ru.spbau.gorokhov.ats.model.AddressKeys;
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+import ru.spbau.gorokhov.ats.server.topology.RandomTopology;
+import ru.spbau.gorokhov.ats.server.topology.Topology;
+
+import java.util.*;
+
+/**
+ * Discrete-event simulation of a cluster running the client update rules in virtual time.
+ * The same seed and config always give the same run.
+ */
+public class Simulator {
+    private static final Logger LOG = LoggerFactory.getLogger(Simulator.class);
+
+    // virtual time zero, clock deviations are modeled relative to the epoch as the real clock does
+    private static final long EPOCH = 1500000000000L;
+
+    private final SimulationConfig config;
+    private final Random random;
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now = 0;
+    private long sequence = 0;
+    private long processedEvents = 0;
+
+    private Node[] nodes;
+
+    private long delivered = 0;
+    private long lost = 0;
+
+    private final List<ConvergenceSample> samples = new ArrayList<>();
+
+    public Simulator(SimulationConfig config) {
+        this.config = config;
+
+        random = new Random(config.getSeed());
+    }
+
+    public List<ConvergenceSample> run() {
+        createNodes();
+
+        for (int i = 0; i < nodes.length; i++) {
+            schedule(new SendEvent(nodes[i].startTime + config.getFirstSendDelayMs(), i));
+        }
+        schedule(new SampleEvent(0));
+
+        while (!events.isEmpty() && events.peek().time <= config.getDurationMs()) {
+            Event event = events.poll();
+            now = event.time;
+            event.fire();
+            processedEvents++;
+        }
+
+        return samples;
+    }
+
+    public long getProcessedEvents() {
+        return processedEvents;
+    }
+
+    private void createNodes() {
+        int count = config.getNodes();
+
+        Topology topology = new Topology(new RandomTopology(random), config.getNeighbourCount());
+
+        Map<ClientAddress, Integer> indices = new HashMap<>();
+
+        nodes = new Node[count];
+        for (int i = 0; i < count; i++) {
+            ClientAddress address = new ClientAddress(String.format("10.%d.%d.%d", (i >> 16) & 255, (i >> 8) & 255, i & 255), 1 + (i >> 24));
+            nodes[i] = new Node(address, Clock.random(random, EPOCH), random.nextInt((int) config.getSendIntervalMs()),
+                    new AtsEstimator(config.getPacketDeliveryDelayMs(), config.getEstimator()));
+            topology.add(address);
+            indices.put(address, i);
+        }
+
+        for (Node node : nodes) {
+            List<ClientAddress> neighbours = topology.getNeighbours(node.address);
+            node.neighbours = neighbours.stream().mapToInt(indices::get).toArray();
+        }
+    }
+
+    private void schedule(Event event) {
+        event.sequence = sequence++;
+        events.add(event);
+    }
+
+    private long localTime(Node node) {
+        return node.clock.getTime(EPOCH + now);
+    }
+
+    private void sample() {
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double minSkew = Double.MAX_VALUE;
+        double maxSkew = -Double.MAX_VALUE;
+        double sum = 0;
+        double sumSquares = 0;
+
+        for (Node node : nodes) {
+            // relative to the first node to keep doubles precise
+            double time = node.estimator.getTime(localTime(node)) - nodes[0].estimator.getTime(localTime(nodes[0]));
+            double skew = node.estimator.getEstimate().getSkew() * node.clock.getSkew();
+
+            min = Math.min(min, time);
+            max = Math.max(max, time);
+            minSkew = Math.min(minSkew, skew);
+            maxSkew = Math.max(maxSkew, skew);
+            sum += time;
+            sumSquares += time * time;
+        }
+
+        double mean = sum / nodes.length;
+        double stdDev = Math.sqrt(Math.max(0, sumSquares / nodes.length - mean * mean));
+
+        samples.add(new ConvergenceSample(now, max - min, stdDev, maxSkew - minSkew, delivered, lost));
+    }
+
+    private static class Node {
+        private final ClientAddress address;
+        private final long key;
+        private final Clock clock;
+        private final AtsEstimator estimator;
+        private final long startTime;
+
+        private int[] neighbours;
+
+        Node(ClientAddress address, Clock clock, long startTime, AtsEstimator estimator) {
+            this.estimator = estimator;
+            this.address = address;
+            this.key = AddressKeys.of(address);
+            this.clock = clock;
+            this.startTime = startTime;
+        }
+    }
+
+    private abstract static class Event implements Comparable<Event> {
+        private final long time;
+        private long sequence;
+
+        Event(long time) {
+            this.time = time;
+        }
+
+        abstract void fire();
+
+        @Override
+        public int compareTo(Event that) {
+            if (time != that.time) {
+                return Long.compare(time, that.time);
+            }
+            return Long.compare(sequence, that.sequence);
+        }
+    }
+
+    private class SendEvent extends Event {
+        private final int from;
+
+        SendEvent(long time, int from) {
+            super(time);
+            this.from = from;
+        }
+
+        @Override
+        void fire() {
+            Node node = nodes[from];
+
+            if (node.neighbours.length > 0) {
+                int to = node.neighbours[random.nextInt(node.neighbours.length)];
+
+                if (config.getLossModel().isLost(random)) {
+                    lost++;
+                } else {
+                    long delay = config.getDelayModel().nextDelay(random);
+                    ClockEstimate estimate = node.estimator.getEstimate();
+                    schedule(new DeliveryEvent(now + delay, from, to, localTime(node), estimate.getSkew(), estimate.getOffsetError()));
+                }
+            }
+
+            schedule(new SendEvent(now + config.getSendIntervalMs(), from));
+        }
+    }
+
+    private class DeliveryEvent extends Event {
+        private final int from;
+        private final int to;
+        private final long clientTime;
+        private final double clientSkew;
+        private final double clientOffsetError;
+
+        DeliveryEvent(long time, int from, int to, long clientTime, double clientSkew, double clientOffsetError) {
+            super(time);
+            this.from = from;
+            this.to = to;
+            this.clientTime = clientTime;
+            this.clientSkew = clientSkew;
+            this.clientOffsetError = clientOffsetError;
+        }
+
+        @Override
+        void fire() {
+            Node node = nodes[to];
+
+            node.estimator.process(nodes[from].key, clientTime, clientSkew, clientOffsetError, localTime(node), now - node.startTime);
+
+            delivered++;
+        }
+    }
+
+    private class SampleEvent extends Event {
+        SampleEvent(long time) {
+            super(time);
+        }
+
+        @Override
+        void fire() {
+            sample();
+
+            schedule(new SampleEvent(now + config.getSampleIntervalMs()));
+        }
+    }
+
+    /**
+     * Arguments are {@code key=value} pairs: nodes, neighbours, duration (s), seed, loss (probability),
+     * delay (max uniform delay, ms), staging (fixed, concurrent or convergence), skew (exponential or regression)
+     * and window (samples of the regression).
+     */
+    public static void main(String[] args) {
+        SimulationConfig config = new SimulationConfig();
+
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+
+            switch (parts[0]) {
+                case "nodes":
+                    config.setNodes(Integer.parseInt(parts[1]));
+                    break;
+
+                case "neighbours":
+                    config.setNeighbourCount(Integer.parseInt(parts[1]));
+                    break;
+
+                case "duration":
+                    config.setDurationMs(Long.parseLong(parts[1]) * 1000);
+                    break;
+
+                case "seed":
+                    config.setSeed(Long.parseLong(parts[1]));
+                    break;
+
+                case "loss":
+                    config.setLossModel(LossModel.bernoulli(Double.parseDouble(parts[1])));
+                    break;
+
+                case "delay":
+                    config.setDelayModel(DelayModel.uniform(0, Long.parseLong(parts[1])));
+                    break;
+
+                case "staging":
+                    config.getEstimator().setStaging(EstimatorConfig.Staging.valueOf(parts[1].toUpperCase()));
+                    break;
+
+                case "skew":
+                    config.getEstimator().setRelativeSkew(EstimatorConfig.RelativeSkew.valueOf(parts[1].toUpperCase()));
+                    break;
+
+                case "window":
+                    config.getEstimator().setSkewWindow(Integer.parseInt(parts[1]));
+                    break;
+
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown argument: %s", arg));
+            }
+        }
+
+        Simulator simulator = new Simulator(config);
+
+        long start = System.currentTimeMillis();
+        List<ConvergenceSample> samples = simulator.run();
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        System.out.println(ConvergenceSample.csvHeader());
+        for (ConvergenceSample sample : samples) {
+            System.out.println(sample.toCsv());
+        }
+
+        LOG.info("Simulated {} nodes for {} s in {} ms: {} events, {}x real time.",
+                config.getNodes(), config.getDurationMs() / 1000, elapsed, simulator.getProcessedEvents(), config.getDurationMs() / elapsed);
+    }
+}
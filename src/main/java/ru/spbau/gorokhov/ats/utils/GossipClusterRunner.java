@@ -0,0 +1,170 @@
+package ru.spbau.gorokhov.ats.utils;
+
+import ru.spbau.gorokhov.ats.client.Client;
+import ru.spbau.gorokhov.ats.client.ClientConfig;
+import ru.spbau.gorokhov.ats.client.ClientRuntime;
+import ru.spbau.gorokhov.ats.client.MemoryTransport;
+import ru.spbau.gorokhov.ats.client.MemoryTransportConfig;
+import ru.spbau.gorokhov.ats.client.Transport;
+import ru.spbau.gorokhov.ats.server.Server;
+import ru.spbau.gorokhov.ats.server.ServerConfig;
+import ru.spbau.gorokhov.ats.client.SocketTransport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs clients which find each other by gossip membership on loopback, without a coordinator:
+ * the first one listens to a fixed port and is the seed of all others. Halfway through, some clients are stopped
+ * to show them being suspected and dropped. Prints the view sizes of running clients and the max error between them.
+ * Arguments are {@code key=value} pairs: clients, port (of the seed), failures, duration (s), and transport
+ * ({@code udp} or {@code memory}) with the faults of the memory one: latency and jitter (us), loss and reorder
+ * (probabilities), seed. With {@code coordinator=true} the clients get their neighbours from a coordinator
+ * listening to the port over the same transport instead.
+ */
+public class GossipClusterRunner {
+    private static final long SAMPLE_INTERVAL = 5000;
+
+    public static void main(String[] args) throws IOException {
+        int clientCount = 100;
+        int seedPort = 18300;
+        int failures = 10;
+        long durationMs = 120000;
+        boolean memory = false;
+        boolean coordinator = false;
+        MemoryTransportConfig network = new MemoryTransportConfig();
+
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+
+            switch (parts[0]) {
+                case "clients":
+                    clientCount = Integer.parseInt(parts[1]);
+                    break;
+
+                case "port":
+                    seedPort = Integer.parseInt(parts[1]);
+                    break;
+
+                case "failures":
+                    failures = Integer.parseInt(parts[1]);
+                    break;
+
+                case "duration":
+                    durationMs = Long.parseLong(parts[1]) * 1000;
+                    break;
+
+                case "transport":
+                    memory = "memory".equals(parts[1]);
+                    break;
+
+                case "coordinator":
+                    coordinator = Boolean.parseBoolean(parts[1]);
+                    break;
+
+                case "latency":
+                    network.setLatencyMicros(Long.parseLong(parts[1]));
+                    break;
+
+                case "jitter":
+                    network.setJitterMicros(Long.parseLong(parts[1]));
+                    break;
+
+                case "loss":
+                    network.setLoss(Double.parseDouble(parts[1]));
+                    break;
+
+                case "reorder":
+                    network.setReorder(Double.parseDouble(parts[1]));
+                    break;
+
+                case "seed":
+                    network.setSeed(Long.parseLong(parts[1]));
+                    break;
+
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown argument: %s", arg));
+            }
+        }
+
+        ClientRuntime runtime = new ClientRuntime();
+        Transport transport = memory ? new MemoryTransport(network) : new SocketTransport();
+        List<String> seeds = Collections.singletonList(String.format("127.0.0.1:%d", seedPort));
+
+        Server server = null;
+        if (coordinator) {
+            server = new Server(seedPort, new ServerConfig()
+                    .setTransport(memory ? (MemoryTransport) transport : null)
+                    .setStatsPort(-1));
+            server.start();
+        }
+
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            ClientConfig config = new ClientConfig()
+                    .setMembership(coordinator ? ClientConfig.Membership.COORDINATOR : ClientConfig.Membership.GOSSIP)
+                    .setSeeds(seeds)
+                    .setPort(i == 0 && !coordinator ? seedPort : 0)
+                    .setTransport(transport)
+                    .setRegisterMBean(false)
+                    .setPrintDebugInfo(false);
+
+            Client client = new Client(coordinator ? "127.0.0.1" : null, seedPort, config, runtime);
+            client.connect();
+            clients.add(client);
+        }
+
+        System.out.println("time_s,running,min_view,max_view,max_error_ms");
+
+        List<Client> running = new ArrayList<>(clients);
+        boolean failed = false;
+
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < durationMs) {
+            Sleepyhead.sleep(SAMPLE_INTERVAL);
+
+            if (!failed && System.currentTimeMillis() - start >= durationMs / 2) {
+                // never the seed, so the survivors still have a way back in
+                for (int i = 0; i < failures && running.size() > 1; i++) {
+                    running.remove(running.size() - 1).disconnect();
+                }
+                failed = true;
+            }
+
+            int minView = Integer.MAX_VALUE;
+            int maxView = 0;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (Client client : running) {
+                minView = Math.min(minView, client.getNeighbourCount());
+                maxView = Math.max(maxView, client.getNeighbourCount());
+
+                long time = client.getTime();
+                min = Math.min(min, time);
+                max = Math.max(max, time);
+            }
+
+            System.out.println(String.format("%d,%d,%d,%d,%d",
+                    (System.currentTimeMillis() - start) / 1000, running.size(), minView, maxView, max - min));
+        }
+
+        for (Client client : running) {
+            client.disconnect();
+        }
+        runtime.close();
+
+        if (server != null) {
+            server.stop();
+        }
+
+        if (transport instanceof MemoryTransport) {
+            MemoryTransport memoryTransport = (MemoryTransport) transport;
+            memoryTransport.close();
+
+            System.out.println(String.format("delivered=%d, lost=%d, overflowed=%d, unreachable=%d", memoryTransport.getDelivered(),
+                    memoryTransport.getLost(), memoryTransport.getOverflowed(), memoryTransport.getUnreachable()));
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package ru.spbau.gorokhov.ats.utils;
+
+/**
+ * Hash of long keys for open-addressed tables, hash rings and seeded picks.
+ */
+public class Hashing {
+    /**
+     * MurmurHash3 finalizer: every input bit affects every output bit, so the low bits alone make a good table index.
+     */
+    public static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
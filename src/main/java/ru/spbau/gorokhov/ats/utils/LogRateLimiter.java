@@ -0,0 +1,51 @@
+package ru.spbau.gorokhov.ats.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lets through at most the given number of log messages per second, shared by all threads.
+ * Meant to guard per-packet and per-request logging:
+ * <pre>
+ * if (LOG.isInfoEnabled() && LIMITER.tryAcquire()) {
+ *     LOG.info("... ({} suppressed)", ..., LIMITER.takeSuppressed());
+ * }
+ * </pre>
+ */
+public class LogRateLimiter {
+    private final int permitsPerSecond;
+
+    private final AtomicLong second = new AtomicLong();
+    private final AtomicInteger used = new AtomicInteger();
+
+    private final LongAdder suppressed = new LongAdder();
+
+    public LogRateLimiter(int permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    public boolean tryAcquire() {
+        long now = System.nanoTime() / 1_000_000_000L;
+        long current = second.get();
+
+        if (now != current && second.compareAndSet(current, now)) {
+            used.set(0);
+        }
+
+        // plain read first, so the suppressed path does not write to the shared counter
+        if (used.get() >= permitsPerSecond || used.incrementAndGet() > permitsPerSecond) {
+            suppressed.increment();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return messages suppressed since the previous call
+     */
+    public long takeSuppressed() {
+        return suppressed.sumThenReset();
+    }
+}
@@ -0,0 +1,111 @@
+package ru.spbau.gorokhov.ats.utils;
+
+import ru.spbau.gorokhov.ats.client.Client;
+import ru.spbau.gorokhov.ats.client.ClientConfig;
+import ru.spbau.gorokhov.ats.client.ClientRuntime;
+import ru.spbau.gorokhov.ats.metrics.ClientMetrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs clients which sync through one multicast group on this host, without a coordinator, and prints the number
+ * of peers each has heard from and the max error between them. Arguments are {@code key=value} pairs: clients, group
+ * (ip:port), interface (name, the first multicast capable one by default), duration (s), send_delay (ms, how often
+ * each client multicasts) and min_interval (ms, the per source rate limit). A send delay below the min interval
+ * shows the rate limit at work.
+ */
+public class MulticastClusterRunner {
+    private static final long SAMPLE_INTERVAL = 5000;
+
+    public static void main(String[] args) throws IOException {
+        int clientCount = 100;
+        long durationMs = 120000;
+        ClientConfig template = new ClientConfig();
+
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+
+            switch (parts[0]) {
+                case "clients":
+                    clientCount = Integer.parseInt(parts[1]);
+                    break;
+
+                case "group":
+                    template.setMulticastGroup(parts[1]);
+                    break;
+
+                case "interface":
+                    template.setMulticastInterface(parts[1]);
+                    break;
+
+                case "duration":
+                    durationMs = Long.parseLong(parts[1]) * 1000;
+                    break;
+
+                case "send_delay":
+                    template.setMinSendDelay(Long.parseLong(parts[1])).setMaxSendDelay(Long.parseLong(parts[1]));
+                    break;
+
+                case "min_interval":
+                    template.setMulticastMinInterval(Long.parseLong(parts[1]));
+                    break;
+
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown argument: %s", arg));
+            }
+        }
+
+        ClientRuntime runtime = new ClientRuntime();
+
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            ClientConfig config = new ClientConfig()
+                    .setMembership(ClientConfig.Membership.MULTICAST)
+                    .setMulticastGroup(template.getMulticastGroup())
+                    .setMulticastInterface(template.getMulticastInterface())
+                    .setMulticastMinInterval(template.getMulticastMinInterval())
+                    .setMinSendDelay(template.getMinSendDelay())
+                    .setMaxSendDelay(template.getMaxSendDelay())
+                    .setRegisterMBean(false)
+                    .setPrintDebugInfo(false);
+
+            Client client = new Client(null, 0, config, runtime);
+            client.connect();
+            clients.add(client);
+        }
+
+        System.out.println("time_s,min_peers,max_peers,max_error_ms");
+
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < durationMs) {
+            Sleepyhead.sleep(SAMPLE_INTERVAL);
+
+            int minPeers = Integer.MAX_VALUE;
+            int maxPeers = 0;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (Client client : clients) {
+                minPeers = Math.min(minPeers, client.getNeighbourCount());
+                maxPeers = Math.max(maxPeers, client.getNeighbourCount());
+
+                long time = client.getTime();
+                min = Math.min(min, time);
+                max = Math.max(max, time);
+            }
+
+            System.out.println(String.format("%d,%d,%d,%d",
+                    (System.currentTimeMillis() - start) / 1000, minPeers, maxPeers, max - min));
+        }
+
+        for (Client client : clients) {
+            client.disconnect();
+        }
+        runtime.close();
+
+        ClientMetrics metrics = runtime.getMetrics();
+        System.out.println(String.format("sent=%d, received=%d, duplicates=%d, rate_limited=%d, applied=%d", metrics.getPacketsSent(),
+                metrics.getPacketsReceived(), metrics.getMulticastDuplicates(), metrics.getMulticastRateLimited(), metrics.getProcessCount()));
+    }
+}
@@ -1,27 +1,23 @@
 package ru.spbau.gorokhov.ats.utils;
 
 import ru.spbau.gorokhov.ats.client.Client;
+import ru.spbau.gorokhov.ats.client.ClientRuntime;
 
 import java.io.IOException;
 import java.net.InetAddress;
 
 public class MultipleClientsRunner {
+    private static final int DEFAULT_CLIENT_COUNT = 10;
+
     public static void main(String[] args) throws IOException {
         String serverHostname = InetAddress.getLocalHost().getHostName();
 
-        new Client(serverHostname).connect();
-        new Client(serverHostname).connect();
-
-        new Client(serverHostname).connect();
-        new Client(serverHostname).connect();
-
-        new Client(serverHostname).connect();
-        new Client(serverHostname).connect();
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENT_COUNT;
 
-        new Client(serverHostname).connect();
-        new Client(serverHostname).connect();
+        ClientRuntime runtime = new ClientRuntime();
 
-        new Client(serverHostname).connect();
-        new Client(serverHostname).connect();
+        for (int i = 0; i < clientCount; i++) {
+            new Client(serverHostname, runtime).connect();
+        }
     }
 }
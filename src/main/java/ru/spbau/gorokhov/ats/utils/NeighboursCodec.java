@@ -0,0 +1,73 @@
+package ru.spbau.gorokhov.ats.utils;
+
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+import ru.spbau.gorokhov.ats.model.NeighboursDelta;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class NeighboursCodec {
+    // ip addresses are ascii, so the strings match DataOutputStream.writeUTF
+    public static ByteBuffer encode(List<ClientAddress> neighbours) {
+        ByteBuffer buffer = ByteBuffer.allocate(size(neighbours));
+        write(neighbours, buffer);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    public static List<ClientAddress> decode(ByteBuffer buffer) {
+        int count = buffer.getInt();
+
+        List<ClientAddress> neighbours = new ArrayList<>(count);
+
+        while (count --> 0) {
+            byte[] ip = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(ip);
+            int port = buffer.getInt();
+            neighbours.add(new ClientAddress(new String(ip, StandardCharsets.US_ASCII), port));
+        }
+
+        return neighbours;
+    }
+
+    public static ByteBuffer encodeDelta(NeighboursDelta delta) {
+        ByteBuffer buffer = ByteBuffer.allocate(9 + size(delta.getAdded()) + size(delta.getRemoved()));
+        buffer.putLong(delta.getVersion());
+        buffer.put((byte) (delta.isReset() ? 1 : 0));
+        write(delta.getAdded(), buffer);
+        write(delta.getRemoved(), buffer);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    public static NeighboursDelta decodeDelta(ByteBuffer buffer) {
+        long version = buffer.getLong();
+        boolean reset = buffer.get() != 0;
+        List<ClientAddress> added = decode(buffer);
+        List<ClientAddress> removed = decode(buffer);
+
+        return new NeighboursDelta(version, reset, added, removed);
+    }
+
+    private static int size(List<ClientAddress> neighbours) {
+        int size = 4;
+        for (ClientAddress neighbour : neighbours) {
+            size += 2 + neighbour.getIp().length() + 4;
+        }
+        return size;
+    }
+
+    private static void write(List<ClientAddress> neighbours, ByteBuffer buffer) {
+        buffer.putInt(neighbours.size());
+        for (ClientAddress neighbour : neighbours) {
+            byte[] ip = neighbour.getIp().getBytes(StandardCharsets.US_ASCII);
+            buffer.putShort((short) ip.length);
+            buffer.put(ip);
+            buffer.putInt(neighbour.getPort());
+        }
+    }
+}
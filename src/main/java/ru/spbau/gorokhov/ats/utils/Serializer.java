@@ -1,8 +1,17 @@
 package ru.spbau.gorokhov.ats.utils;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 public class Serializer {
+    // what the fields of plain value classes are made of
+    private static final Set<String> VALUE_CLASSES = new HashSet<>(Arrays.asList(
+            String.class.getName(), Number.class.getName(), Boolean.class.getName(), Character.class.getName(),
+            Byte.class.getName(), Short.class.getName(), Integer.class.getName(), Long.class.getName(),
+            Float.class.getName(), Double.class.getName()));
+
     public static byte[] serialize(Object obj) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         ObjectOutputStream os = new ObjectOutputStream(out);
@@ -16,7 +25,32 @@ public class Serializer {
         return is.readObject();
     }
 
-    public static <T> T deserialize(byte[] data, Class<T> clazz) throws IOException, ClassNotFoundException {
-        return clazz.cast(deserialize(data));
+    /**
+     * Safe for untrusted data: a class is only ever loaded if it is the expected one, one of the {@code allowed},
+     * a string or a boxed primitive, so the stream can not instantiate gadget classes of the classpath.
+     */
+    public static <T> T deserialize(byte[] data, Class<T> clazz, Class<?>... allowed) throws IOException, ClassNotFoundException {
+        Set<String> classes = new HashSet<>(VALUE_CLASSES);
+        classes.add(clazz.getName());
+        for (Class<?> allowedClass : allowed) {
+            classes.add(allowedClass.getName());
+        }
+
+        ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException {
+                if (!classes.contains(description.getName())) {
+                    throw new InvalidClassException(description.getName(), "Class is not allowed in this stream.");
+                }
+                return super.resolveClass(description);
+            }
+
+            @Override
+            protected Class<?> resolveProxyClass(String[] interfaces) throws InvalidClassException {
+                throw new InvalidClassException("Proxy classes are not allowed in this stream.");
+            }
+        };
+
+        return clazz.cast(is.readObject());
     }
 }
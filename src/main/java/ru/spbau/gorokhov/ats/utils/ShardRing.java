@@ -0,0 +1,98 @@
+package ru.spbau.gorokhov.ats.utils;
+
+import ru.spbau.gorokhov.ats.model.AddressKeys;
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consistent hash ring of coordinator shards given as {@code host:port}. Every shard owns {@link #VIRTUAL_NODES}
+ * points of the ring and a client belongs to the first point after the hash of its address,
+ * so adding or removing a shard only moves the clients of the points next to its own.
+ */
+public class ShardRing {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final List<InetSocketAddress> shards;
+
+    // sorted points and the shards owning them
+    private final long[] points;
+    private final int[] owners;
+
+    public ShardRing(List<String> shards) {
+        List<InetSocketAddress> endpoints = new ArrayList<>(shards.size());
+        for (String shard : shards) {
+            endpoints.add(parseEndpoint(shard));
+        }
+        this.shards = Collections.unmodifiableList(endpoints);
+
+        long[] entries = new long[shards.size() * VIRTUAL_NODES];
+        for (int shard = 0; shard < shards.size(); shard++) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                // a point keeps its owner in the low bits, so sorting keeps both together
+                entries[shard * VIRTUAL_NODES + i] = (hash(shards.get(shard) + "#" + i) & ~0xFFFFL) | shard;
+            }
+        }
+        Arrays.sort(entries);
+
+        points = new long[entries.length];
+        owners = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i];
+            owners[i] = (int) (entries[i] & 0xFFFF);
+        }
+    }
+
+    public List<InetSocketAddress> getShards() {
+        return shards;
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    public int shardFor(ClientAddress client) {
+        return shardFor(AddressKeys.of(client));
+    }
+
+    public int shardFor(long clientKey) {
+        if (points.length == 0) {
+            throw new IllegalStateException("Ring has no shards.");
+        }
+
+        int index = Arrays.binarySearch(points, Hashing.mix(clientKey));
+        if (index < 0) {
+            index = -index - 1;
+        }
+
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * @param endpoint {@code host:port}, the host is not resolved
+     */
+    public static InetSocketAddress parseEndpoint(String endpoint) {
+        int colon = endpoint.lastIndexOf(':');
+
+        if (colon <= 0 || colon == endpoint.length() - 1) {
+            throw new IllegalArgumentException(String.format("Expected host:port, got %s", endpoint));
+        }
+
+        return InetSocketAddress.createUnresolved(endpoint.substring(0, colon), Integer.parseInt(endpoint.substring(colon + 1)));
+    }
+
+    private static long hash(String value) {
+        // FNV-1a, then mixed since its high bits are weak
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return Hashing.mix(hash);
+    }
+}
@@ -0,0 +1,118 @@
+package ru.spbau.gorokhov.ats.utils;
+
+import ru.spbau.gorokhov.ats.client.Client;
+import ru.spbau.gorokhov.ats.client.ClientConfig;
+import ru.spbau.gorokhov.ats.client.ClientRuntime;
+import ru.spbau.gorokhov.ats.server.Server;
+import ru.spbau.gorokhov.ats.server.ServerConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs sharded coordinators on consecutive loopback ports and clients routed between them,
+ * printing the clients of every shard and the max error over all clients.
+ * Arguments are {@code key=value} pairs: shards, clients, port (of the first shard), bridges, duration (s).
+ */
+public class ShardedClusterRunner {
+    private static final long SAMPLE_INTERVAL = 5000;
+
+    public static void main(String[] args) throws IOException {
+        int shardCount = 3;
+        int clientCount = 300;
+        int basePort = 18200;
+        int bridges = 2;
+        long durationMs = 200000;
+
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+
+            switch (parts[0]) {
+                case "shards":
+                    shardCount = Integer.parseInt(parts[1]);
+                    break;
+
+                case "clients":
+                    clientCount = Integer.parseInt(parts[1]);
+                    break;
+
+                case "port":
+                    basePort = Integer.parseInt(parts[1]);
+                    break;
+
+                case "bridges":
+                    bridges = Integer.parseInt(parts[1]);
+                    break;
+
+                case "duration":
+                    durationMs = Long.parseLong(parts[1]) * 1000;
+                    break;
+
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown argument: %s", arg));
+            }
+        }
+
+        List<String> endpoints = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            endpoints.add(String.format("127.0.0.1:%d", basePort + i));
+        }
+
+        List<Server> servers = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            List<String> peers = new ArrayList<>(endpoints);
+            peers.remove(i);
+
+            Server server = new Server(basePort + i, new ServerConfig()
+                    .setStatsPort(-1)
+                    .setShardPeers(peers)
+                    .setBridgeNeighbours(bridges));
+            server.start();
+            servers.add(server);
+        }
+
+        ClientRuntime runtime = new ClientRuntime();
+        ClientConfig config = new ClientConfig()
+                .setShards(endpoints)
+                .setPrintDebugInfo(false);
+
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            Client client = new Client("127.0.0.1", basePort, config, runtime);
+            client.connect();
+            clients.add(client);
+        }
+
+        System.out.println("time_s,clients_per_shard,max_error_ms");
+
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < durationMs) {
+            Sleepyhead.sleep(SAMPLE_INTERVAL);
+
+            StringBuilder perShard = new StringBuilder();
+            for (Server server : servers) {
+                perShard.append(perShard.length() == 0 ? "" : "/").append(server.getRegisteredClients());
+            }
+
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (Client client : clients) {
+                long time = client.getTime();
+                min = Math.min(min, time);
+                max = Math.max(max, time);
+            }
+
+            System.out.println(String.format("%d,%s,%d", (System.currentTimeMillis() - start) / 1000, perShard, max - min));
+        }
+
+        for (Client client : clients) {
+            client.disconnect();
+        }
+        runtime.close();
+
+        for (Server server : servers) {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package ru.spbau.gorokhov.ats.utils;
+
+import lombok.Getter;
+import ru.spbau.gorokhov.ats.model.ClientAddress;
+import ru.spbau.gorokhov.ats.model.SyncInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size binary format of gossip packets:
+ * <pre>
+ * v1: magic:short version:byte flags:byte port:int time:long skew:double offset:double
+ * v2: v1 sendStamp:long echoStamp:long echoHold:long
+ * v3: v2 incarnation:int count:int (key:long incarnation:int status:int)*count
+ * </pre>
+ * Version 2 carries a two-way timestamp exchange: the sender's {@code System.nanoTime()} at sending,
+ * the last send stamp it received from the recipient, and how long ago it received it.
+ * Version 3 adds gossip membership: the sender's own incarnation and a digest of up to {@link #MAX_MEMBERS}
+ * other members keyed by {@link ru.spbau.gorokhov.ats.model.AddressKeys}, flags ask for or mark an acknowledgement.
+ * A codec instance keeps the last decoded packet in its fields, so it should be owned by a single thread.
+ */
+@Getter
+public class SyncInfoCodec {
+    public static final short MAGIC = (short) 0xA75C;
+    public static final byte VERSION = 1;
+    public static final byte ROUND_TRIP_VERSION = 2;
+    public static final byte MEMBERSHIP_VERSION = 3;
+    public static final int PACKET_SIZE = 32;
+    public static final int ROUND_TRIP_PACKET_SIZE = 56;
+    public static final int MEMBERSHIP_HEADER_SIZE = 64;
+    public static final int MEMBER_SIZE = 16;
+    public static final int MAX_MEMBERS = 16;
+    public static final int MAX_PACKET_SIZE = MEMBERSHIP_HEADER_SIZE + MAX_MEMBERS * MEMBER_SIZE;
+
+    // the recipient should answer right away
+    public static final int FLAG_PING = 1;
+    // the packet answers a ping
+    public static final int FLAG_ACK = 2;
+
+    // first bytes of any ObjectOutputStream output
+    private static final short LEGACY_MAGIC = (short) 0xACED;
+
+    private final boolean legacyCompatible;
+
+    private byte version;
+    private int flags;
+    private int port;
+    private long time;
+    private double skew;
+    private double offset;
+
+    // zero in packets without timestamp exchange
+    private long sendStamp;
+    private long echoStamp;
+    private long echoHold;
+
+    // zero in packets without membership
+    private int incarnation;
+    private int memberCount;
+    private final long[] memberKeys = new long[MAX_MEMBERS];
+    private final int[] memberIncarnations = new int[MAX_MEMBERS];
+    private final int[] memberStatuses = new int[MAX_MEMBERS];
+
+    public SyncInfoCodec(boolean legacyCompatible) {
+        this.legacyCompatible = legacyCompatible;
+    }
+
+    public SyncInfoCodec() {
+        this(false);
+    }
+
+    public static void encode(int port, long time, double skew, double offset, ByteBuffer buffer) {
+        encodeHeader(VERSION, 0, port, time, skew, offset, buffer);
+    }
+
+    public static void encode(int port, long time, double skew, double offset, long sendStamp, long echoStamp, long echoHold, ByteBuffer buffer) {
+        encodeHeader(ROUND_TRIP_VERSION, 0, port, time, skew, offset, buffer);
+        buffer.putLong(sendStamp);
+        buffer.putLong(echoStamp);
+        buffer.putLong(echoHold);
+    }
+
+    public static void encode(int port, long time, double skew, double offset, long sendStamp, long echoStamp, long echoHold,
+                              int flags, int incarnation, long[] memberKeys, int[] memberIncarnations, int[] memberStatuses, int memberCount,
+                              ByteBuffer buffer) {
+        if (memberCount > MAX_MEMBERS) {
+            throw new IllegalArgumentException(String.format("At most %d members fit a packet, got %d.", MAX_MEMBERS, memberCount));
+        }
+
+        encodeHeader(MEMBERSHIP_VERSION, flags, port, time, skew, offset, buffer);
+        buffer.putLong(sendStamp);
+        buffer.putLong(echoStamp);
+        buffer.putLong(echoHold);
+        buffer.putInt(incarnation);
+        buffer.putInt(memberCount);
+
+        for (int i = 0; i < memberCount; i++) {
+            buffer.putLong(memberKeys[i]);
+            buffer.putInt(memberIncarnations[i]);
+            buffer.putInt(memberStatuses[i]);
+        }
+    }
+
+    public static void encode(SyncInfo syncInfo, ByteBuffer buffer) {
+        encode(syncInfo.getPort(), syncInfo.getTime(), syncInfo.getSkew(), syncInfo.getOffset(), buffer);
+    }
+
+    private static void encodeHeader(byte version, int flags, int port, long time, double skew, double offset, ByteBuffer buffer) {
+        buffer.putShort(MAGIC);
+        buffer.put(version);
+        buffer.put((byte) flags);
+        buffer.putInt(port);
+        buffer.putLong(time);
+        buffer.putDouble(skew);
+        buffer.putDouble(offset);
+    }
+
+    /**
+     * Decodes the packet between buffer's position and limit.
+     *
+     * @return false if the packet is malformed, in which case the codec state is left untouched
+     */
+    public boolean decode(ByteBuffer buffer) {
+        int start = buffer.position();
+        int length = buffer.remaining();
+
+        if (length < 3) {
+            return false;
+        }
+
+        short magic = buffer.getShort(start);
+
+        if (magic == LEGACY_MAGIC && legacyCompatible) {
+            return decodeLegacy(buffer);
+        }
+
+        byte version = buffer.get(start + 2);
+
+        if (magic != MAGIC || length != packetSize(version, buffer, start, length)) {
+            return false;
+        }
+
+        this.version = version;
+        flags = buffer.get(start + 3) & 0xFF;
+        port = buffer.getInt(start + 4);
+        time = buffer.getLong(start + 8);
+        skew = buffer.getDouble(start + 16);
+        offset = buffer.getDouble(start + 24);
+
+        if (version >= ROUND_TRIP_VERSION) {
+            sendStamp = buffer.getLong(start + 32);
+            echoStamp = buffer.getLong(start + 40);
+            echoHold = buffer.getLong(start + 48);
+        } else {
+            sendStamp = 0;
+            echoStamp = 0;
+            echoHold = 0;
+        }
+
+        if (version == MEMBERSHIP_VERSION) {
+            incarnation = buffer.getInt(start + 56);
+            memberCount = buffer.getInt(start + 60);
+
+            for (int i = 0; i < memberCount; i++) {
+                int entry = start + MEMBERSHIP_HEADER_SIZE + i * MEMBER_SIZE;
+                memberKeys[i] = buffer.getLong(entry);
+                memberIncarnations[i] = buffer.getInt(entry + 8);
+                memberStatuses[i] = buffer.getInt(entry + 12);
+            }
+        } else {
+            incarnation = 0;
+            memberCount = 0;
+        }
+
+        buffer.position(start + length);
+
+        return true;
+    }
+
+    private static int packetSize(byte version, ByteBuffer buffer, int start, int length) {
+        switch (version) {
+            case VERSION:
+                return PACKET_SIZE;
+
+            case ROUND_TRIP_VERSION:
+                return ROUND_TRIP_PACKET_SIZE;
+
+            case MEMBERSHIP_VERSION:
+                if (length < MEMBERSHIP_HEADER_SIZE) {
+                    return -1;
+                }
+
+                int count = buffer.getInt(start + 60);
+
+                return count < 0 || count > MAX_MEMBERS ? -1 : MEMBERSHIP_HEADER_SIZE + count * MEMBER_SIZE;
+
+            default:
+                return -1;
+        }
+    }
+
+    private boolean decodeLegacy(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+
+        SyncInfo syncInfo;
+
+        try {
+            syncInfo = Serializer.deserialize(data, SyncInfo.class, ClientAddress.class);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            return false;
+        }
+
+        version = 0;
+        flags = 0;
+        port = syncInfo.getPort();
+        time = syncInfo.getTime();
+        skew = syncInfo.getSkew();
+        offset = syncInfo.getOffset();
+        sendStamp = 0;
+        echoStamp = 0;
+        echoHold = 0;
+        incarnation = 0;
+        memberCount = 0;
+
+        return true;
+    }
+
+    public SyncInfo toSyncInfo() {
+        return new SyncInfo(port, time, skew, offset);
+    }
+}
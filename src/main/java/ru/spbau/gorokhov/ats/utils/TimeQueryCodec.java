@@ -0,0 +1,101 @@
+package ru.spbau.gorokhov.ats.utils;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format of the time service, all numbers big-endian:
+ * <pre>
+ * query:    magic:short version:byte type:byte reserved:int origin:long
+ * response: magic:short version:byte type:byte flags:int origin:long
+ *           receiveTime:double transmitTime:double rate:double error:double
+ * </pre>
+ * The origin is an opaque stamp of the querying side echoed back, times are virtual milliseconds at receiving the query
+ * and at sending the response, the rate is virtual milliseconds per real one and the error is the responder's estimate
+ * of its distance from the other nodes in milliseconds.
+ * Queries are read and responses written in place, without allocation; a codec instance keeps the last decoded
+ * response in its fields, so it should be owned by a single thread.
+ */
+@Getter
+public class TimeQueryCodec {
+    public static final short MAGIC = (short) 0xA75E;
+    public static final byte VERSION = 1;
+    public static final byte QUERY = 1;
+    public static final byte RESPONSE = 2;
+    public static final int QUERY_SIZE = 16;
+    public static final int RESPONSE_SIZE = 48;
+
+    // the responder has not compensated its offset yet, its time may be far from the others
+    public static final int FLAG_UNSYNCHRONIZED = 1;
+
+    private int flags;
+    private long origin;
+    private double receiveTime;
+    private double transmitTime;
+    private double rate;
+    private double error;
+
+    public static void encodeQuery(long origin, ByteBuffer buffer) {
+        buffer.putShort(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(QUERY);
+        buffer.putInt(0);
+        buffer.putLong(origin);
+    }
+
+    /**
+     * Checks the packet from the buffer position to its limit without moving the position.
+     */
+    public static boolean isQuery(ByteBuffer buffer) {
+        int start = buffer.position();
+
+        return buffer.limit() - start == QUERY_SIZE
+                && buffer.getShort(start) == MAGIC
+                && buffer.get(start + 2) == VERSION
+                && buffer.get(start + 3) == QUERY;
+    }
+
+    public static long getQueryOrigin(ByteBuffer buffer) {
+        return buffer.getLong(buffer.position() + 8);
+    }
+
+    public static void encodeResponse(int flags, long origin, double receiveTime, double transmitTime, double rate, double error, ByteBuffer buffer) {
+        buffer.putShort(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(RESPONSE);
+        buffer.putInt(flags);
+        buffer.putLong(origin);
+        buffer.putDouble(receiveTime);
+        buffer.putDouble(transmitTime);
+        buffer.putDouble(rate);
+        buffer.putDouble(error);
+    }
+
+    /**
+     * Decodes a response from the buffer position to its limit.
+     *
+     * @return false if it is not a response of a known version, the fields are left as they were
+     */
+    public boolean decodeResponse(ByteBuffer buffer) {
+        int start = buffer.position();
+
+        if (buffer.limit() - start != RESPONSE_SIZE
+                || buffer.getShort(start) != MAGIC
+                || buffer.get(start + 2) != VERSION
+                || buffer.get(start + 3) != RESPONSE) {
+            return false;
+        }
+
+        flags = buffer.getInt(start + 4);
+        origin = buffer.getLong(start + 8);
+        receiveTime = buffer.getDouble(start + 16);
+        transmitTime = buffer.getDouble(start + 24);
+        rate = buffer.getDouble(start + 32);
+        error = buffer.getDouble(start + 40);
+
+        buffer.position(start + RESPONSE_SIZE);
+
+        return true;
+    }
+}